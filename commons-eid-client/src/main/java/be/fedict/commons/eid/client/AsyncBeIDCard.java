@@ -0,0 +1,240 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client;
+
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import be.fedict.commons.eid.client.impl.BeIDDigest;
+
+/**
+ * An asynchronous facade for a BeIDCard. Operations are queued on a single
+ * thread dedicated to the card, so the card I/O stays serial, while the
+ * calling threads only receive a Future. One application thread can thus
+ * drive many card readers without blocking on any of them.
+ * <p>
+ * Cancelling a Future with <code>mayInterruptIfRunning</code> interrupts the
+ * card thread, which aborts long running file reads at the next block.
+ * Optionally, a Callback is invoked (on the card thread) once an operation
+ * completes. An operation runs with the deadline the submitting thread had set
+ * on the BeIDCard, if any.
+ * <p>
+ * Do not use the wrapped BeIDCard directly while operations are queued.
+ */
+public class AsyncBeIDCard {
+
+	/**
+	 * Receives the outcome of an asynchronous operation.
+	 * 
+	 * @param <T>
+	 *            the type of the result
+	 */
+	public interface Callback<T> {
+		void succeeded(T result);
+
+		void failed(Throwable cause);
+
+		void cancelled();
+	}
+
+	private final BeIDCard beIDCard;
+	private final ExecutorService executor;
+
+	/**
+	 * Instantiate an AsyncBeIDCard, starting the thread dedicated to the card.
+	 * Call close() to stop it again.
+	 * 
+	 * @param beIDCard
+	 *            the card to wrap
+	 */
+	public AsyncBeIDCard(final BeIDCard beIDCard) {
+		this.beIDCard = beIDCard;
+		final String threadName = "AsyncBeIDCard"
+				+ (null == beIDCard.getCardTerminal() ? "" : " ["
+						+ beIDCard.getCardTerminal().getName() + "]");
+		this.executor = new ThreadPoolExecutor(1, 1, 0L,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable, threadName);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * @return the wrapped BeIDCard
+	 */
+	public BeIDCard getBeIDCard() {
+		return this.beIDCard;
+	}
+
+	public Future<byte[]> readFile(final FileType fileType) {
+		return readFile(fileType, null);
+	}
+
+	public Future<byte[]> readFile(final FileType fileType,
+			final Callback<byte[]> callback) {
+		return submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return AsyncBeIDCard.this.beIDCard.readFile(fileType);
+			}
+		}, callback);
+	}
+
+	public Future<List<X509Certificate>> getCertificateChain(
+			final FileType fileType) {
+		return getCertificateChain(fileType, null);
+	}
+
+	public Future<List<X509Certificate>> getCertificateChain(
+			final FileType fileType,
+			final Callback<List<X509Certificate>> callback) {
+		return submit(new Callable<List<X509Certificate>>() {
+			@Override
+			public List<X509Certificate> call() throws Exception {
+				return AsyncBeIDCard.this.beIDCard
+						.getCertificateChain(fileType);
+			}
+		}, callback);
+	}
+
+	public Future<byte[]> sign(final byte[] digestValue,
+			final BeIDDigest digestAlgo, final FileType fileType,
+			final boolean requireSecureReader) {
+		return sign(digestValue, digestAlgo, fileType, requireSecureReader,
+				null);
+	}
+
+	public Future<byte[]> sign(final byte[] digestValue,
+			final BeIDDigest digestAlgo, final FileType fileType,
+			final boolean requireSecureReader, final Callback<byte[]> callback) {
+		return submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return AsyncBeIDCard.this.beIDCard.sign(digestValue,
+						digestAlgo, fileType, requireSecureReader);
+			}
+		}, callback);
+	}
+
+	public Future<byte[]> getChallenge(final int size) {
+		return getChallenge(size, null);
+	}
+
+	public Future<byte[]> getChallenge(final int size,
+			final Callback<byte[]> callback) {
+		return submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return AsyncBeIDCard.this.beIDCard.getChallenge(size);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Queue an arbitrary operation on the card thread, with the deadline the
+	 * calling thread set on the BeIDCard.
+	 * 
+	 * @param operation
+	 *            the operation, typically calling the BeIDCard
+	 * @param callback
+	 *            the callback to notify on completion, may be
+	 *            <code>null</code>
+	 * @return the Future result of the operation
+	 */
+	public <T> Future<T> submit(final Callable<T> operation,
+			final Callback<T> callback) {
+		final Deadline deadline = this.beIDCard.getDeadline();
+		final FutureTask<T> task = new CallbackFutureTask<T>(
+				new Callable<T>() {
+					@Override
+					public T call() throws Exception {
+						AsyncBeIDCard.this.beIDCard.setDeadline(deadline);
+						try {
+							return operation.call();
+						} finally {
+							AsyncBeIDCard.this.beIDCard.setDeadline(null);
+						}
+					}
+				}, callback);
+		this.executor.execute(task);
+		return task;
+	}
+
+	/**
+	 * Stop the card thread once the queued operations are done, and close the
+	 * card.
+	 */
+	public void close() {
+		this.executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				AsyncBeIDCard.this.beIDCard.close();
+			}
+		});
+		this.executor.shutdown();
+	}
+
+	private static final class CallbackFutureTask<T> extends FutureTask<T> {
+		private final Callback<T> callback;
+
+		public CallbackFutureTask(final Callable<T> operation,
+				final Callback<T> callback) {
+			super(operation);
+			this.callback = callback;
+		}
+
+		@Override
+		protected void done() {
+			if (null == this.callback) {
+				return;
+			}
+			if (isCancelled()) {
+				this.callback.cancelled();
+				return;
+			}
+			final T result;
+			try {
+				result = get();
+			} catch (final ExecutionException eex) {
+				this.callback.failed(eex.getCause());
+				return;
+			} catch (final InterruptedException iex) {
+				// cannot happen, as the task is done
+				Thread.currentThread().interrupt();
+				return;
+			}
+			this.callback.succeeded(result);
+		}
+	}
+}
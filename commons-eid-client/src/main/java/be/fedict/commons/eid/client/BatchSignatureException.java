@@ -0,0 +1,56 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown by BeIDCard.signBatch() when one of the signatures could not be
+ * created. Makes the signatures created before the failure available to the
+ * catching code; the cause is the exception that interrupted the batch.
+ */
+public class BatchSignatureException extends Exception {
+
+	private static final long serialVersionUID = 1;
+
+	private final List<byte[]> signatures;
+
+	public BatchSignatureException(final List<byte[]> signatures,
+			final Throwable cause) {
+		super("signature #" + signatures.size() + " failed: "
+				+ cause.getMessage(), cause);
+		this.signatures = Collections.unmodifiableList(signatures);
+	}
+
+	/**
+	 * @return the signatures that were created, in the order of the digests
+	 */
+	public List<byte[]> getSignatures() {
+		return this.signatures;
+	}
+
+	/**
+	 * @return the index of the digest that could not be signed
+	 */
+	public int getFailedIndex() {
+		return this.signatures.size();
+	}
+}
@@ -24,15 +24,31 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import javax.smartcardio.ATR;
 import javax.smartcardio.Card;
@@ -43,12 +59,24 @@ import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
 import be.fedict.commons.eid.client.event.BeIDCardListener;
+import be.fedict.commons.eid.client.impl.AppletSelections;
+import be.fedict.commons.eid.client.impl.AppletSelections.Selection;
 import be.fedict.commons.eid.client.impl.BeIDDigest;
+import be.fedict.commons.eid.client.impl.BeIDFileCache;
+import be.fedict.commons.eid.client.impl.BeIDFileStore;
+import be.fedict.commons.eid.client.impl.ByteBufferPool;
 import be.fedict.commons.eid.client.impl.CCID;
+import be.fedict.commons.eid.client.impl.CardSecurityState;
+import be.fedict.commons.eid.client.impl.CertificateCache;
+import be.fedict.commons.eid.client.impl.CertificateDecoder;
+import be.fedict.commons.eid.client.impl.CertificateInfoParser;
+import be.fedict.commons.eid.client.impl.DefaultPacingPolicy;
 import be.fedict.commons.eid.client.impl.LocaleManager;
+import be.fedict.commons.eid.client.impl.ReadBinaryBlockSizes;
 import be.fedict.commons.eid.client.impl.VoidLogger;
 import be.fedict.commons.eid.client.spi.BeIDCardUI;
 import be.fedict.commons.eid.client.spi.Logger;
+import be.fedict.commons.eid.client.spi.PacingPolicy;
 import be.fedict.commons.eid.client.spi.UserCancelledException;
 
 /**
@@ -109,6 +137,34 @@ public class BeIDCard {
 			0x00, 0x00, 0x30, 0x29, 0x05, 0x70, 0x00, (byte) 0xAD, 0x13, 0x10,
 			0x01, 0x01, (byte) 0xFF,};
 	private static final int BLOCK_SIZE = 0xff;
+	private static final int EXTENDED_BLOCK_SIZE = 0x1000;
+	private static final int MAX_TRANSMIT_ATTEMPTS = 32;
+	private static final int INITIAL_RESPONSE_BUFFER_SIZE = 0x400;
+	private static final int CHIP_SERIAL_NUMBER_OFFSET = 4;
+	private static final int CHIP_SERIAL_NUMBER_LENGTH = 12;
+	private static final long EXCLUSIVE_WAIT_SLICE = 100;
+	private static final long MINIMUM_YIELD_PAUSE = 10;
+
+	/*
+	 * Orders file types by their path on the card, grouping the files of a
+	 * single directory.
+	 */
+	private static final Comparator<FileType> FILE_PATH_ORDER = new Comparator<FileType>() {
+		@Override
+		public int compare(final FileType fileType1, final FileType fileType2) {
+			final byte[] fileId1 = fileType1.getFileId();
+			final byte[] fileId2 = fileType2.getFileId();
+			final int length = Math.min(fileId1.length, fileId2.length);
+			for (int idx = 0; idx < length; idx++) {
+				final int difference = (fileId1[idx] & 0xff)
+						- (fileId2[idx] & 0xff);
+				if (0 != difference) {
+					return difference;
+				}
+			}
+			return fileId1.length - fileId2.length;
+		}
+	};
 
 	private final CardChannel cardChannel;
 	private final List<BeIDCardListener> cardListeners;
@@ -117,6 +173,31 @@ public class BeIDCard {
 	private final Card card;
 	private final Logger logger;
 
+	private final Object transmitLock;
+	private final CommandAPDU[] getResponseApdus;
+	private byte[] responseBuffer;
+
+	private final Object exclusiveLock;
+	private Thread exclusiveOwner;
+	private int exclusiveDepth;
+	private long exclusiveSince;
+	private boolean yielded;
+	private long yieldedSince;
+	private CardSession session;
+	private final CardSecurityState securityState;
+
+	private PacingPolicy pacingPolicy;
+	private final ThreadLocal<Deadline> deadline;
+	private volatile BeIDFileCache fileCache;
+	private volatile CertificateCache certificateCache;
+	private volatile CertificateDecoder certificateDecoder;
+	private volatile BeIDFileStore fileStore;
+	private volatile boolean appletActive;
+	private volatile boolean appletSelectionAttempted;
+	private volatile boolean releasedSinceConnect;
+	private volatile boolean fileStoreLoaded;
+	private volatile boolean fileStoreDirty;
+	private volatile byte[] chipSerialNumber;
 	private CCID ccid;
 	private BeIDCardUI ui;
 	private CardTerminal cardTerminal;
@@ -146,6 +227,14 @@ public class BeIDCard {
 		}
 		this.logger = logger;
 		this.cardListeners = new LinkedList<BeIDCardListener>();
+		this.transmitLock = new Object();
+		this.getResponseApdus = new CommandAPDU[0x100];
+		this.responseBuffer = new byte[INITIAL_RESPONSE_BUFFER_SIZE];
+		this.pacingPolicy = DefaultPacingPolicy.getInstance();
+		this.certificateDecoder = CertificateDecoder.getInstance();
+		this.exclusiveLock = new Object();
+		this.securityState = new CardSecurityState();
+		this.deadline = new ThreadLocal<Deadline>();
 		try {
 			this.certificateFactory = CertificateFactory.getInstance("X.509");
 		} catch (final CertificateException e) {
@@ -218,6 +307,8 @@ public class BeIDCard {
 	public BeIDCard close() {
 		this.logger.debug("closing eID card");
 		setCardTerminal(null);
+		this.securityState.reset();
+		this.invalidateFileCache();
 
 		try {
 			this.card.disconnect(true);
@@ -298,9 +389,7 @@ public class BeIDCard {
 	public X509Certificate getCertificate(final FileType fileType)
 			throws CertificateException, CardException, IOException,
 			InterruptedException {
-		return (X509Certificate) this.certificateFactory
-				.generateCertificate(new ByteArrayInputStream(
-						readFile(fileType)));
+		return this.generateCertificate(fileType);
 	}
 
 	/**
@@ -397,17 +486,42 @@ public class BeIDCard {
 			throws CertificateException, CardException, IOException,
 			InterruptedException {
 		final List<X509Certificate> chain = new LinkedList<X509Certificate>();
-		chain.add((X509Certificate) this.certificateFactory
-				.generateCertificate(new ByteArrayInputStream(
-						readFile(fileType))));
-		if (fileType.chainIncludesCitizenCA()) {
-			chain.add((X509Certificate) this.certificateFactory
-					.generateCertificate(new ByteArrayInputStream(
-							readFile(FileType.CACertificate))));
+		final CertificateDecoder decoder = this.certificateDecoder;
+		if (null == decoder) {
+			this.beginExclusive();
+
+			try {
+				chain.add(this.generateCertificate(fileType));
+				if (fileType.chainIncludesCitizenCA()) {
+					chain.add(this.generateCertificate(FileType.CACertificate));
+				}
+				chain.add(this.generateCertificate(FileType.RootCertificate));
+			} finally {
+				this.endExclusive();
+			}
+			return chain;
+		}
+
+		// decode each certificate while the next one is being read
+		final List<Future<X509Certificate>> certificates = new ArrayList<Future<X509Certificate>>(
+				3);
+		this.beginExclusive();
+
+		try {
+			certificates.add(this.decodeCertificate(fileType, decoder));
+			if (fileType.chainIncludesCitizenCA()) {
+				certificates.add(this.decodeCertificate(
+						FileType.CACertificate, decoder));
+			}
+			certificates.add(this.decodeCertificate(FileType.RootCertificate,
+					decoder));
+		} finally {
+			this.endExclusive();
+		}
+
+		for (Future<X509Certificate> certificate : certificates) {
+			chain.add(getDecodedCertificate(certificate));
 		}
-		chain.add((X509Certificate) this.certificateFactory
-				.generateCertificate(new ByteArrayInputStream(
-						readFile(FileType.RootCertificate))));
 		return chain;
 	}
 
@@ -525,6 +639,99 @@ public class BeIDCard {
 			final FileType fileType, final boolean requireSecureReader,
 			final String applicationName) throws CardException, IOException,
 			InterruptedException, UserCancelledException {
+		checkSigningPreconditions(fileType, requireSecureReader);
+
+		this.beginExclusive();
+		notifySigningBegin(fileType);
+
+		try {
+			return computeSignature(digestValue, digestAlgo, fileType,
+					applicationName);
+		} finally {
+			this.endExclusive();
+			notifySigningEnd(fileType);
+		}
+	}
+
+	/**
+	 * Sign a list of digest values with the same key, within a single
+	 * exclusive transaction. The key is selected once, and the COMPUTE DIGITAL
+	 * SIGNATURE commands follow each other without further ado. For the
+	 * authentication key, the PIN is asked for at most once, relying on the
+	 * PIN caching of the card. The non-repudiation key still requires a PIN
+	 * verification for every single signature.
+	 * 
+	 * @param digestValues
+	 *            the digest values to be signed.
+	 * @param digestAlgo
+	 *            the algorithm used to calculate the given digest values.
+	 * @param fileType
+	 *            the certificate's file type.
+	 * @return the signatures, in the order of the digest values
+	 * @throws BatchSignatureException
+	 *             when one of the signatures failed. Holds the signatures
+	 *             created up to then.
+	 * @throws CardException
+	 */
+	public List<byte[]> signBatch(final List<byte[]> digestValues,
+			final BeIDDigest digestAlgo, final FileType fileType)
+			throws BatchSignatureException, CardException {
+		return signBatch(digestValues, digestAlgo, fileType, false, null);
+	}
+
+	/**
+	 * Sign a list of digest values with the same key, within a single
+	 * exclusive transaction. See signBatch(List, BeIDDigest, FileType).
+	 * 
+	 * @param digestValues
+	 *            the digest values to be signed.
+	 * @param digestAlgo
+	 *            the algorithm used to calculate the given digest values.
+	 * @param fileType
+	 *            the certificate's file type.
+	 * @param requireSecureReader
+	 *            <code>true</code> if a secure pinpad reader is required.
+	 * @param applicationName
+	 *            the optional application name.
+	 * @return the signatures, in the order of the digest values
+	 * @throws BatchSignatureException
+	 *             when one of the signatures failed. Holds the signatures
+	 *             created up to then.
+	 * @throws CardException
+	 */
+	public List<byte[]> signBatch(final List<byte[]> digestValues,
+			final BeIDDigest digestAlgo, final FileType fileType,
+			final boolean requireSecureReader, final String applicationName)
+			throws BatchSignatureException, CardException {
+		checkSigningPreconditions(fileType, requireSecureReader);
+
+		final List<byte[]> signatures = new ArrayList<byte[]>(
+				digestValues.size());
+		this.beginExclusive();
+		notifySigningBegin(fileType);
+
+		try {
+			for (byte[] digestValue : digestValues) {
+				try {
+					signatures.add(computeSignature(digestValue, digestAlgo,
+							fileType, applicationName));
+				} catch (final InterruptedException iex) {
+					Thread.currentThread().interrupt();
+					throw new BatchSignatureException(signatures, iex);
+				} catch (final Exception ex) {
+					throw new BatchSignatureException(signatures, ex);
+				}
+			}
+		} finally {
+			this.endExclusive();
+			notifySigningEnd(fileType);
+		}
+
+		return signatures;
+	}
+
+	private void checkSigningPreconditions(final FileType fileType,
+			final boolean requireSecureReader) {
 		if (!fileType.isCertificateUserCanSignWith()) {
 			throw new IllegalArgumentException(
 					"Not a certificate that can be used for signing: "
@@ -540,29 +747,25 @@ public class BeIDCard {
 				&& (getCCID().hasFeature(CCID.FEATURE.VERIFY_PIN_START))) {
 			throw new SecurityException("not a secure reader");
 		}
+	}
 
-		this.beginExclusive();
-		notifySigningBegin(fileType);
+	/*
+	 * Compute a single signature, on a card that is held exclusively.
+	 */
+	private byte[] computeSignature(final byte[] digestValue,
+			final BeIDDigest digestAlgo, final FileType fileType,
+			final String applicationName) throws CardException, IOException,
+			InterruptedException, UserCancelledException {
+		boolean completed = false;
 
 		try {
-			// select the key
-			this.logger.debug("selecting key...");
-
-			ResponseAPDU responseApdu = transmitCommand(
-					BeIDCommandAPDU.SELECT_ALGORITHM_AND_PRIVATE_KEY,
-					new byte[]{(byte) 0x04, // length
-							// of
-							// following
-							// data
-							(byte) 0x80, digestAlgo.getAlgorithmReference(), // algorithm
-							// reference
-							(byte) 0x84, fileType.getKeyId(),}); // private key
-			// reference
-
-			if (0x9000 != responseApdu.getSW()) {
-				throw new ResponseAPDUException(
-						"SET (select algorithm and private key) error",
-						responseApdu);
+			boolean keySelectionSkipped = false;
+			if (this.securityState.isKeySelected(
+					digestAlgo.getAlgorithmReference(), fileType.getKeyId())) {
+				this.logger.debug("key already selected");
+				keySelectionSkipped = true;
+			} else {
+				selectKey(digestAlgo, fileType);
 			}
 
 			if (FileType.NonRepudiationCertificate.getKeyId() == fileType
@@ -570,6 +773,11 @@ public class BeIDCard {
 				this.logger
 						.debug("non-repudiation key detected, immediate PIN verify");
 				verifyPin(PINPurpose.NonRepudiationSignature, applicationName);
+			} else if (CardSecurityState.PINState.NOT_VERIFIED == this.securityState
+					.getPINState()) {
+				this.logger
+						.debug("card not authenticated, immediate PIN verify");
+				verifyPin(PINPurpose.fromFileType(fileType), applicationName);
 			}
 
 			final ByteArrayOutputStream digestInfo = new ByteArrayOutputStream();
@@ -577,9 +785,24 @@ public class BeIDCard {
 			digestInfo.write(digestValue);
 
 			this.logger.debug("computing digital signature...");
-			responseApdu = transmitCommand(
+			ResponseAPDU responseApdu = transmitCommand(
 					BeIDCommandAPDU.COMPUTE_DIGITAL_SIGNATURE,
 					digestInfo.toByteArray());
+			if (keySelectionSkipped && 0x9000 != responseApdu.getSW()
+					&& 0x6982 != responseApdu.getSW()) {
+				/*
+				 * The security environment is not what we thought it was.
+				 * Select the key after all, and try again.
+				 */
+				this.logger.debug("SW: "
+						+ Integer.toHexString(responseApdu.getSW())
+						+ ", selecting key again");
+				this.securityState.forgetSelectedKey();
+				selectKey(digestAlgo, fileType);
+				responseApdu = transmitCommand(
+						BeIDCommandAPDU.COMPUTE_DIGITAL_SIGNATURE,
+						digestInfo.toByteArray());
+			}
 			if (0x9000 == responseApdu.getSW()) {
 				/*
 				 * OK, we could use the card PIN caching feature.
@@ -587,6 +810,8 @@ public class BeIDCard {
 				 * Notice that the card PIN caching also works when first doing
 				 * an authentication after a non-repudiation signature.
 				 */
+				this.securityState.pinVerified();
+				completed = true;
 				return responseApdu.getData();
 			}
 			if (0x6982 != responseApdu.getSW()) {
@@ -599,6 +824,7 @@ public class BeIDCard {
 			 * 0x6982 = Security status not satisfied, so we do a PIN
 			 * verification before retrying.
 			 */
+			this.securityState.pinNotVerified();
 			this.logger.debug("PIN verification required...");
 			verifyPin(PINPurpose.fromFileType(fileType), applicationName);
 
@@ -612,11 +838,42 @@ public class BeIDCard {
 						"compute digital signature error", responseApdu);
 			}
 
+			completed = true;
 			return responseApdu.getData();
 		} finally {
-			this.endExclusive();
-			notifySigningEnd(fileType);
+			if (!completed) {
+				// we can no longer be sure about the state of the card
+				this.securityState.reset();
+			}
+		}
+	}
+
+	/*
+	 * MSE SET: select the algorithm and the private key to be used by the next
+	 * COMPUTE DIGITAL SIGNATURE.
+	 */
+	private void selectKey(final BeIDDigest digestAlgo, final FileType fileType)
+			throws CardException {
+		this.logger.debug("selecting key...");
+
+		final ResponseAPDU responseApdu = transmitCommand(
+				BeIDCommandAPDU.SELECT_ALGORITHM_AND_PRIVATE_KEY,
+				new byte[]{(byte) 0x04, // length
+						// of
+						// following
+						// data
+						(byte) 0x80, digestAlgo.getAlgorithmReference(), // algorithm
+						// reference
+						(byte) 0x84, fileType.getKeyId(),}); // private key
+		// reference
+
+		if (0x9000 != responseApdu.getSW()) {
+			throw new ResponseAPDUException(
+					"SET (select algorithm and private key) error",
+					responseApdu);
 		}
+		this.securityState.keySelected(digestAlgo.getAlgorithmReference(),
+				fileType.getKeyId());
 	}
 
 	/**
@@ -728,6 +985,7 @@ public class BeIDCard {
 			throw new SecurityException("not a secure reader");
 		}
 
+		this.securityState.reset();
 		int retriesLeft = -1;
 		ResponseAPDU responseApdu;
 		do {
@@ -856,9 +1114,21 @@ public class BeIDCard {
 	public BeIDCard logoff() throws Exception {
 		final CommandAPDU logoffApdu = new CommandAPDU(0x80, 0xE6, 0x00, 0x00);
 		this.logger.debug("logoff...");
-		final ResponseAPDU responseApdu = transmit(logoffApdu);
-		if (0x9000 != responseApdu.getSW()) {
-			throw new RuntimeException("logoff failed");
+		beginExclusive();
+		try {
+			final ResponseAPDU responseApdu;
+			try {
+				responseApdu = transmit(logoffApdu);
+			} finally {
+				this.securityState.reset();
+			}
+			if (0x9000 != responseApdu.getSW()) {
+				throw new RuntimeException("logoff failed");
+			}
+			// only known for as long as we hold the card
+			this.securityState.pinNotVerified();
+		} finally {
+			endExclusive();
 		}
 		return this;
 	}
@@ -877,6 +1147,7 @@ public class BeIDCard {
 			throw new SecurityException("not a secure reader");
 		}
 
+		this.securityState.reset();
 		ResponseAPDU responseApdu;
 		int retriesLeft = -1;
 		do {
@@ -957,52 +1228,85 @@ public class BeIDCard {
 	/**
 	 * Select the BELPIC applet on the chip. Since the BELPIC applet is supposed
 	 * to be all alone on the chip, shouldn't be necessary.
+	 * <p>
+	 * The way the applet was selected is remembered per ATR, so that the
+	 * SELECT that works is issued first. Nothing is sent at all if the applet
+	 * is known to be active already: once selected on this card while holding
+	 * it exclusively, or, right after connecting, if it is active after reset
+	 * on cards with this ATR.
 	 * 
 	 * @return this BeIDCard instance, to allow method chaining
 	 * @throws CardException
 	 */
 	public BeIDCard selectApplet() throws CardException {
-		ResponseAPDU responseApdu;
+		final ATR atr = getATR();
+		final Selection knownSelection = AppletSelections.getSelection(atr);
+		if (this.appletActive
+				|| (Selection.ACTIVE_AFTER_RESET == knownSelection
+						&& !this.appletSelectionAttempted
+						&& !this.releasedSinceConnect)) {
+			this.logger.debug("BELPIC JavaCard applet already active");
+			return this;
+		}
+		this.appletSelectionAttempted = true;
+		this.securityState.reset();
 
-		responseApdu = transmitCommand(BeIDCommandAPDU.SELECT_APPLET_0,
-				BELPIC_AID);
-		if (0x9000 != responseApdu.getSW()) {
-			this.logger.error("error selecting BELPIC");
-			this.logger.debug("status word: "
-					+ Integer.toHexString(responseApdu.getSW()));
-			/*
-			 * Try to select the Applet.
-			 */
-			try {
-				responseApdu = transmitCommand(BeIDCommandAPDU.SELECT_APPLET_1,
-						APPLET_AID);
-			} catch (final CardException e) {
-				this.logger.error("error selecting Applet");
+		final boolean appletAIDFirst = Selection.APPLET_AID == knownSelection;
+		if (appletAIDFirst ? selectApplet(Selection.APPLET_AID)
+				: selectApplet(Selection.BELPIC_AID)) {
+			return this;
+		}
+		/*
+		 * Try the other one.
+		 */
+		try {
+			if (appletAIDFirst ? selectApplet(Selection.BELPIC_AID)
+					: selectApplet(Selection.APPLET_AID)) {
 				return this;
 			}
-			if (0x9000 != responseApdu.getSW()) {
-				this.logger.error("could not select applet");
-			} else {
-				this.logger
-						.debug("BELPIC JavaCard applet selected by APPLET_AID");
-			}
-		} else {
-			this.logger.debug("BELPIC JavaCard applet selected by BELPIC_AID");
+		} catch (final CardTimeoutException ctex) {
+			throw ctex;
+		} catch (final CardException e) {
+			this.logger.error("error selecting Applet");
+			return this;
 		}
 
+		this.logger.error("could not select applet");
 		return this;
 	}
 
+	private boolean selectApplet(final Selection selection)
+			throws CardException {
+		final ResponseAPDU responseApdu;
+		if (Selection.APPLET_AID == selection) {
+			responseApdu = transmitCommand(BeIDCommandAPDU.SELECT_APPLET_1,
+					APPLET_AID);
+		} else {
+			responseApdu = transmitCommand(BeIDCommandAPDU.SELECT_APPLET_0,
+					BELPIC_AID);
+		}
+		if (0x9000 != responseApdu.getSW()) {
+			this.logger.debug("selecting applet by " + selection
+					+ ", status word: "
+					+ Integer.toHexString(responseApdu.getSW()));
+			return false;
+		}
+
+		this.logger.debug("BELPIC JavaCard applet selected by " + selection);
+		AppletSelections.setSelection(getATR(), selection);
+		this.appletActive = true;
+		return true;
+	}
+
 	// --------------------------------------------------------------------------------------------------------------------------------
 
 	/**
 	 * Begin an exclusive transaction with the card. Once this returns, only the
 	 * calling thread will be able to access the card, until it calls
-	 * endExclusive(). Other threads will receive a CardException. Use this when
-	 * you need to make several calls to the card that depend on each other. for
-	 * example, SELECT FILE and READ BINARY, or SELECT ALGORITHM and COMPUTE
-	 * SIGNATURE, to avoid other threads/processes from interleaving commands
-	 * that would break your transactional logic.
+	 * endExclusive(). Use this when you need to make several calls to the card
+	 * that depend on each other. for example, SELECT FILE and READ BINARY, or
+	 * SELECT ALGORITHM and COMPUTE SIGNATURE, to avoid other threads/processes
+	 * from interleaving commands that would break your transactional logic.
 	 * 
 	 * Called automatically by the higher-level methods in this class. If you
 	 * end up calling this directly, this is either something wrong with your
@@ -1011,38 +1315,273 @@ public class BeIDCard {
 	 * (transmitCommand, etc..) *never* in combination with the high-level
 	 * methods.
 	 * 
+	 * A thread that already holds the card exclusively may call this again;
+	 * the card is then released by the matching outermost endExclusive().
+	 * Other threads wait until it is released.
+	 * 
 	 * @return this BeIDCard Instance, to allow method chaining.
 	 * @throws CardException
 	 */
 	public BeIDCard beginExclusive() throws CardException {
+		final Thread currentThread = Thread.currentThread();
+		boolean resume = false;
+		synchronized (this.exclusiveLock) {
+			if (currentThread == this.exclusiveOwner) {
+				// already held by this thread, e.g. sign() within signBatch()
+				this.exclusiveDepth++;
+				if (!this.yielded) {
+					return this;
+				}
+				resume = true;
+			}
+		}
+		if (resume) {
+			// let go of in between the operations of a session
+			resumeExclusive();
+			return this;
+		}
+		synchronized (this.exclusiveLock) {
+			while (null != this.exclusiveOwner) {
+				final Deadline currentDeadline = this.deadline.get();
+				long wait = 0;
+				if (null != currentDeadline) {
+					currentDeadline.check();
+					// wake up now and then to notice a cancellation
+					wait = Math.min(currentDeadline.getRemainingMillis(),
+							EXCLUSIVE_WAIT_SLICE);
+					if (0 == wait) {
+						currentDeadline.check();
+					}
+				}
+				try {
+					this.exclusiveLock.wait(wait);
+				} catch (final InterruptedException iex) {
+					Thread.currentThread().interrupt();
+					throw new CardException(
+							"interrupted while waiting for the card", iex);
+				}
+			}
+			this.exclusiveOwner = currentThread;
+			this.exclusiveDepth = 1;
+		}
 		this.logger.debug("---begin exclusive---");
-		this.card.beginExclusive();
+		try {
+			this.card.beginExclusive();
+		} catch (final CardException cex) {
+			releaseExclusiveOwner();
+			throw cex;
+		} catch (final RuntimeException rex) {
+			releaseExclusiveOwner();
+			throw rex;
+		}
+		synchronized (this.exclusiveLock) {
+			this.exclusiveSince = System.nanoTime();
+		}
 		return this;
 	}
 
 	/**
 	 * Release an exclusive transaction with the card, started by
-	 * beginExclusive().
+	 * beginExclusive(). Nested transactions of the same thread are only
+	 * released by the outermost endExclusive(). Within a CardSession with a
+	 * maximum hold time, the card may be released here, to be acquired again
+	 * by the next beginExclusive() after a short pause.
 	 * 
 	 * @return this BeIDCard Instance, to allow method chaining.
 	 * @throws CardException
 	 */
 	public BeIDCard endExclusive() throws CardException {
+		final boolean held;
+		synchronized (this.exclusiveLock) {
+			if (Thread.currentThread() != this.exclusiveOwner) {
+				// e.g. after failing to acquire the card again in a session
+				this.logger.debug("card not held by this thread");
+				return this;
+			}
+			if (--this.exclusiveDepth > 0) {
+				if (!this.yielded && isHoldTimeExceeded()) {
+					yieldExclusive();
+				}
+				return this;
+			}
+			this.session = null;
+			held = !this.yielded;
+		}
 		this.logger.debug("---end exclusive---");
+		// other processes may change the security environment from now on
+		this.securityState.released();
+		forgetAppletState();
                 try {
-                        this.card.endExclusive();
+                        if (held) {
+                                this.card.endExclusive();
+                        }
                 } catch (CardException e) {
                         this.logger.error("end exclusive failed: " + e.getMessage());
+                } finally {
+                        releaseExclusiveOwner();
                 }
+		flushFileStore();
 		return this;
 	}
 
+	/*
+	 * Other processes may select another applet, or reset the card, once we
+	 * release it.
+	 */
+	private void forgetAppletState() {
+		this.appletActive = false;
+		this.releasedSinceConnect = true;
+	}
+
+	/*
+	 * Let the next thread waiting in beginExclusive() have the card.
+	 */
+	private void releaseExclusiveOwner() {
+		synchronized (this.exclusiveLock) {
+			if (Thread.currentThread() == this.exclusiveOwner) {
+				this.exclusiveOwner = null;
+				this.exclusiveDepth = 0;
+				this.yielded = false;
+				this.session = null;
+				this.exclusiveLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Open a session holding this card exclusively until the session is
+	 * closed. All operations performed meanwhile by the calling thread share
+	 * the session's transaction with the card, rather than each beginning
+	 * and ending their own. Sessions may be nested: only the outermost one
+	 * releases the card.
+	 * 
+	 * @return the session, to be closed by the calling thread
+	 * @throws CardException
+	 */
+	public CardSession openSession() throws CardException {
+		return openSession(0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Open a session holding this card exclusively until the session is
+	 * closed, as openSession(), but releasing the card briefly in between
+	 * operations once it was held for longer than the given time, so that
+	 * other processes get a chance to use it. Only the hold time of the
+	 * outermost session applies.
+	 * 
+	 * @param maximumHoldTime
+	 *            the time after which to let other processes in, or 0 to
+	 *            hold the card until the session is closed
+	 * @param unit
+	 *            the unit of maximumHoldTime
+	 * @return the session, to be closed by the calling thread
+	 * @throws CardException
+	 */
+	public CardSession openSession(final long maximumHoldTime,
+			final TimeUnit unit) throws CardException {
+		this.beginExclusive();
+		synchronized (this.exclusiveLock) {
+			final CardSession cardSession = new CardSession(this,
+					this.exclusiveDepth, unit.toNanos(maximumHoldTime));
+			if (null == this.session) {
+				this.session = cardSession;
+			}
+			return cardSession;
+		}
+	}
+
+	void closeSession(final CardSession cardSession) {
+		synchronized (this.exclusiveLock) {
+			if (this.session == cardSession) {
+				this.session = null;
+			}
+		}
+		try {
+			this.endExclusive();
+		} catch (final CardException cex) {
+			this.logger.error("closing session failed: " + cex.getMessage());
+		}
+	}
+
+	/*
+	 * Whether the operation that just ended leaves the card held by the
+	 * outermost session only, for longer than its maximum hold time.
+	 */
+	private boolean isHoldTimeExceeded() {
+		final CardSession cardSession = this.session;
+		return null != cardSession
+				&& cardSession.getDepth() == this.exclusiveDepth
+				&& cardSession.getMaximumHoldTime() > 0
+				&& System.nanoTime() - this.exclusiveSince > cardSession
+						.getMaximumHoldTime();
+	}
+
+	/*
+	 * Let other processes have the card in between the operations of a
+	 * session. The card is only acquired again by the next operation, in
+	 * resumeExclusive(), so that a failure to do so is reported by that
+	 * operation rather than by the one ending here.
+	 */
+	private void yieldExclusive() {
+		this.logger.debug("---yield exclusive---");
+		// other processes may change the security environment meanwhile
+		this.securityState.released();
+		forgetAppletState();
+		try {
+			this.card.endExclusive();
+		} catch (final CardException cex) {
+			this.logger.error("end exclusive failed: " + cex.getMessage());
+		}
+		this.yielded = true;
+		this.yieldedSince = System.nanoTime();
+	}
+
+	private void resumeExclusive() throws CardException {
+		final long pause;
+		synchronized (this.exclusiveLock) {
+			// give another process that was waiting a chance to get the card
+			final long elapsed = TimeUnit.NANOSECONDS.toMillis(System
+					.nanoTime() - this.yieldedSince);
+			pause = Math.max(MINIMUM_YIELD_PAUSE, this.pacingPolicy
+					.getSelectFileDelay(getATR(), getTerminalName()))
+					- elapsed;
+		}
+		this.logger.debug("---resume exclusive---");
+		try {
+			if (pause > 0) {
+				sleep(pause);
+			}
+			this.card.beginExclusive();
+		} catch (final InterruptedException iex) {
+			releaseExclusiveOwner();
+			Thread.currentThread().interrupt();
+			throw new CardException("interrupted while waiting for the card",
+					iex);
+		} catch (final CardException cex) {
+			releaseExclusiveOwner();
+			throw cex;
+		} catch (final RuntimeException rex) {
+			releaseExclusiveOwner();
+			throw rex;
+		}
+		synchronized (this.exclusiveLock) {
+			this.yielded = false;
+			this.exclusiveSince = System.nanoTime();
+		}
+	}
+
 	// --------------------------------------------------------------------------------------------------------------------------------
 
 	/**
 	 * Read bytes from a previously selected "File" on the card. should be
 	 * preceded by a call to selectFile so the card knows what you want to read.
 	 * Consider using one of the higher-level methods, or readFile().
+	 * <p>
+	 * The first time a card is read in a given card reader, an extended length
+	 * READ BINARY is attempted. If the card reader and the card accept it, the
+	 * largest working block size is remembered for that ATR and card reader, so
+	 * that subsequent reads take far fewer exchanges. Otherwise, the regular
+	 * short READ BINARY blocks are used from then on.
 	 * 
 	 * @param fileType
 	 *            the file to read (to allow for notification)
@@ -1056,30 +1595,101 @@ public class BeIDCard {
 	 */
 	public byte[] readBinary(final FileType fileType, final int estimatedMaxSize)
 			throws CardException, IOException, InterruptedException {
+		final ByteBuffer buffer = this.readBinary(fileType, estimatedMaxSize,
+				ByteBuffer.allocate(estimatedMaxSize), null, true);
+		return toByteArray(buffer);
+	}
+
+	/**
+	 * Read bytes from a previously selected "File" on the card, straight into
+	 * the given buffer, starting at its current position. Same as
+	 * readBinary(FileType, int) but without the intermediate copies.
+	 * 
+	 * @param fileType
+	 *            the file to read (to allow for notification)
+	 * @param estimatedMaxSize
+	 *            the estimated total size of the file to read (to allow for
+	 *            notification)
+	 * @param buffer
+	 *            the buffer to read into. On return, its position is just
+	 *            beyond the data read.
+	 * @return the number of bytes read
+	 * @throws BufferOverflowException
+	 *             if the file does not fit in the remaining space of the buffer
+	 * @throws CardException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public int readBinary(final FileType fileType, final int estimatedMaxSize,
+			final ByteBuffer buffer) throws CardException, IOException,
+			InterruptedException {
+		final int startPosition = buffer.position();
+		this.readBinary(fileType, estimatedMaxSize, buffer, null, false);
+		return buffer.position() - startPosition;
+	}
+
+	private ByteBuffer readBinary(final FileType fileType,
+			final int estimatedMaxSize, final ByteBuffer initialBuffer,
+			final ByteBufferPool pool, final boolean growable)
+			throws CardException, IOException, InterruptedException {
 		int offset = 0;
 		this.logger.debug("read binary");
-		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		byte[] data;
-		do {
+		ByteBuffer buffer = initialBuffer;
+		final Integer learnedBlockSize = ReadBinaryBlockSizes.getBlockSize(
+				getATR(), this.cardTerminal);
+		boolean probing = null == learnedBlockSize;
+		int blockSize = probing ? EXTENDED_BLOCK_SIZE : learnedBlockSize;
+		int firstShortRead = -1;
+		while (true) {
 			if (Thread.currentThread().isInterrupted()) {
 				this.logger.debug("interrupted in readBinary");
 				throw new InterruptedException();
 			}
 
 			notifyReadProgress(fileType, offset, estimatedMaxSize);
-			final ResponseAPDU responseApdu = transmitCommand(
-					BeIDCommandAPDU.READ_BINARY, offset >> 8, offset & 0xFF,
-					BLOCK_SIZE);
+			final ResponseAPDU responseApdu;
+			try {
+				responseApdu = transmitCommand(BeIDCommandAPDU.READ_BINARY,
+						offset >> 8, offset & 0xFF, blockSize);
+			} catch (final CardException cex) {
+				if (!probing || cex instanceof CardTimeoutException) {
+					throw cex;
+				}
+				this.logger.debug("extended length READ BINARY failed: "
+						+ cex.getMessage());
+				blockSize = learnBlockSize(BLOCK_SIZE);
+				probing = false;
+				continue;
+			}
 			final int sw = responseApdu.getSW();
 			if (0x6B00 == sw) {
 				/*
 				 * Wrong parameters (offset outside the EF) End of file reached.
-				 * Can happen in case the file size is a multiple of 0xff bytes.
+				 * Can happen in case the file size is a multiple of the block
+				 * size.
 				 */
+				if (probing && firstShortRead > BLOCK_SIZE) {
+					/*
+					 * The short probe read was the end of the file. Only
+					 * trust it if it exceeded what a short Le could return,
+					 * otherwise keep probing on the next file.
+					 */
+					learnBlockSize(blockSize);
+				}
 				break;
 			}
 
-			if (0x9000 != sw) {
+			if (probing && 0x6700 == sw) {
+				// wrong length: the card does not accept the extended Le
+				this.logger.debug("extended length READ BINARY refused");
+				blockSize = learnBlockSize(BLOCK_SIZE);
+				probing = false;
+				continue;
+			}
+
+			// end of file reached before reading Le bytes
+			final boolean endOfFile = 0x6282 == sw;
+			if (0x9000 != sw && !endOfFile) {
 				final IOException ioEx = new IOException(
 						"BeIDCommandAPDU response error: "
 								+ responseApdu.getSW(),
@@ -1087,12 +1697,70 @@ public class BeIDCard {
 				throw ioEx;
 			}
 
-			data = responseApdu.getData();
-			baos.write(data);
+			final byte[] data = responseApdu.getData();
+			if (data.length > buffer.remaining()) {
+				if (!growable) {
+					throw new BufferOverflowException();
+				}
+				buffer = growBuffer(buffer, data.length, pool);
+			}
+			buffer.put(data);
 			offset += data.length;
-		} while (BLOCK_SIZE == data.length);
+
+			if (probing) {
+				if (data.length == blockSize || endOfFile) {
+					learnBlockSize(blockSize);
+					probing = false;
+				} else if (-1 == firstShortRead) {
+					/*
+					 * Either the end of the file, or the card (or reader)
+					 * imposes a smaller maximum. The next read tells us which
+					 * one it is.
+					 */
+					firstShortRead = data.length;
+					continue;
+				} else if (0 == data.length) {
+					// the end of the file, as above
+					if (firstShortRead > BLOCK_SIZE) {
+						learnBlockSize(blockSize);
+					}
+					break;
+				} else {
+					blockSize = learnBlockSize(Math.max(firstShortRead,
+							BLOCK_SIZE));
+					probing = false;
+				}
+			}
+
+			if (endOfFile || data.length < blockSize) {
+				break;
+			}
+		}
 		notifyReadProgress(fileType, offset, offset);
-		return baos.toByteArray();
+		return buffer;
+	}
+
+	private static ByteBuffer growBuffer(final ByteBuffer buffer,
+			final int required, final ByteBufferPool pool) {
+		final int capacity = Math.max(buffer.capacity() * 2, buffer.position()
+				+ required);
+		final ByteBuffer grownBuffer = null == pool ? ByteBuffer
+				.allocate(capacity) : pool.acquire(capacity);
+		buffer.flip();
+		grownBuffer.put(buffer);
+		if (null != pool) {
+			pool.release(buffer);
+		}
+		return grownBuffer;
+	}
+
+	private static byte[] toByteArray(final ByteBuffer buffer) {
+		final byte[] array = buffer.array();
+		if (buffer.position() == array.length) {
+			// estimated size was exact, no need to copy
+			return array;
+		}
+		return Arrays.copyOf(array, buffer.position());
 	}
 
 	/**
@@ -1106,6 +1774,11 @@ public class BeIDCard {
 	 */
 	public BeIDCard selectFile(final byte[] fileId) throws CardException,
 			FileNotFoundException {
+		return selectFile(fileId, true);
+	}
+
+	private BeIDCard selectFile(final byte[] fileId, final boolean pause)
+			throws CardException, FileNotFoundException {
 		this.logger.debug("selecting file");
 		final ResponseAPDU responseApdu = transmitCommand(
 				BeIDCommandAPDU.SELECT_FILE, fileId);
@@ -1117,11 +1790,31 @@ public class BeIDCard {
 			throw fnfEx;
 		}
 
-		try {
+		if (!this.appletActive) {
+			// selecting a BELPIC file proves that the applet is active
+			this.appletActive = true;
+			// and, before anyone else had the card, that it is after reset
+			if (!this.appletSelectionAttempted && !this.releasedSinceConnect
+					&& null == AppletSelections.getSelection(getATR())) {
+				AppletSelections.setSelection(getATR(),
+						Selection.ACTIVE_AFTER_RESET);
+			}
+		}
+
+		final String terminalName = getTerminalName();
+		this.pacingPolicy.selectFileSucceeded(getATR(), terminalName);
+		if (pause) {
 			// SCARD_E_SHARING_VIOLATION fix
-			Thread.sleep(20);
-		} catch (final InterruptedException e) {
-			throw new RuntimeException("sleep error: " + e.getMessage());
+			final long delay = this.pacingPolicy.getSelectFileDelay(getATR(),
+					terminalName);
+			if (delay > 0) {
+				try {
+					sleep(delay);
+				} catch (final InterruptedException iex) {
+					// cut the pause short, leaving the interrupt to the caller
+					Thread.currentThread().interrupt();
+				}
+			}
 		}
 
 		return this;
@@ -1139,21 +1832,327 @@ public class BeIDCard {
 	 */
 	public byte[] readFile(final FileType fileType) throws CardException,
 			IOException, InterruptedException {
+		final byte[] cachedFile = getCachedFile(fileType);
+		if (null != cachedFile) {
+			return cachedFile;
+		}
+
+		final byte[] file;
 		this.beginExclusive();
 
 		try {
+			// another thread may have read the file while we were waiting
+			final BeIDFileCache cache = this.fileCache;
+			if (null != cache && cache.contains(fileType)) {
+				return cache.get(fileType);
+			}
 			this.selectFile(fileType.getFileId());
-			return this.readBinary(fileType, fileType.getEstimatedMaxSize());
+			file = this.readBinary(fileType, fileType.getEstimatedMaxSize());
+			cacheFile(fileType, file);
 		} finally {
 			this.endExclusive();
 		}
+
+		return file;
 	}
 
 	/**
-	 * test for CCID Features in the card reader this BeIDCard is inserted into
+	 * Reads a file from the card, straight into a caller-supplied buffer,
+	 * starting at its current position. This avoids the allocation and copying
+	 * of intermediate byte arrays when reading many cards.
 	 * 
-	 * @param feature
-	 *            the feature to test for (CCID.FEATURE)
+	 * @param fileType
+	 *            the file to read
+	 * @param buffer
+	 *            the buffer to read into. On return, its position is just
+	 *            beyond the data read.
+	 * @return the number of bytes read
+	 * @throws BufferOverflowException
+	 *             if the file does not fit in the remaining space of the buffer
+	 * @throws CardException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public int readFile(final FileType fileType, final ByteBuffer buffer)
+			throws CardException, IOException, InterruptedException {
+		final byte[] cachedFile = getCachedFile(fileType);
+		if (null != cachedFile) {
+			buffer.put(cachedFile);
+			return cachedFile.length;
+		}
+
+		this.beginExclusive();
+
+		try {
+			this.selectFile(fileType.getFileId());
+			return this.readBinary(fileType, fileType.getEstimatedMaxSize(),
+					buffer);
+		} finally {
+			this.endExclusive();
+		}
+	}
+
+	/**
+	 * Reads a file from the card into a buffer taken from the given pool. The
+	 * returned buffer is flipped, ready to be read from. The caller should
+	 * hand it back to the pool using ByteBufferPool.release() once done.
+	 * 
+	 * @param fileType
+	 *            the file to read
+	 * @param pool
+	 *            the pool to take the buffer from
+	 * @return a buffer holding the data from the file
+	 * @throws CardException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public ByteBuffer readFile(final FileType fileType,
+			final ByteBufferPool pool) throws CardException, IOException,
+			InterruptedException {
+		final byte[] cachedFile = getCachedFile(fileType);
+		if (null != cachedFile) {
+			final ByteBuffer buffer = pool.acquire(cachedFile.length);
+			buffer.put(cachedFile);
+			buffer.flip();
+			return buffer;
+		}
+
+		final ByteBuffer buffer;
+		this.beginExclusive();
+
+		try {
+			this.selectFile(fileType.getFileId());
+			buffer = this.readBinary(fileType, fileType.getEstimatedMaxSize(),
+					pool.acquire(fileType.getEstimatedMaxSize()), pool, true);
+		} finally {
+			this.endExclusive();
+		}
+
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Opens a file on the card as an InputStream. Contrary to readFile(), the
+	 * READ BINARY blocks are only fetched from the card as the stream is read,
+	 * so consumers (image decoders, certificate parsers, digests) can start
+	 * working on the first block while the remainder is still on the card.
+	 * <p>
+	 * The card is held exclusively until the end of the file has been read,
+	 * or until the stream is closed. Always close the stream, even when not
+	 * reading it to the end.
+	 * <p>
+	 * As with beginExclusive(), the card is held for the calling thread: the
+	 * stream has to be read and closed by the thread that opened it. Reading
+	 * or closing it from another thread, before the end of the file was
+	 * reached, fails with an IOException and leaves the card held.
+	 * 
+	 * @param fileType
+	 *            the file to read
+	 * @return a stream over the contents of the file
+	 * @throws CardException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public InputStream openFileStream(final FileType fileType)
+			throws CardException, IOException, InterruptedException {
+		final byte[] cachedFile = getCachedFile(fileType);
+		if (null != cachedFile) {
+			return new ByteArrayInputStream(cachedFile);
+		}
+		return this.openCardFileInputStream(fileType, 0, Integer.MAX_VALUE);
+	}
+
+	private CardFileInputStream openCardFileInputStream(
+			final FileType fileType, final int offset, final int limit)
+			throws CardException, FileNotFoundException {
+		this.beginExclusive();
+
+		try {
+			this.selectFile(fileType.getFileId());
+		} catch (final CardException cex) {
+			this.endExclusive();
+			throw cex;
+		} catch (final FileNotFoundException fnfex) {
+			this.endExclusive();
+			throw fnfex;
+		} catch (final RuntimeException rex) {
+			this.endExclusive();
+			throw rex;
+		}
+
+		return new CardFileInputStream(fileType, offset, limit);
+	}
+
+	/**
+	 * Reads part of a file from the card. Only the READ BINARY blocks covering
+	 * the requested range are fetched.
+	 * 
+	 * @param fileType
+	 *            the file to read
+	 * @param offset
+	 *            the offset within the file to start reading at (at most
+	 *            0x7fff)
+	 * @param length
+	 *            the number of bytes to read
+	 * @return the data from the file. Shorter than length if the end of the
+	 *         file was reached first.
+	 * @throws CardException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public byte[] readFile(final FileType fileType, final int offset,
+			final int length) throws CardException, IOException,
+			InterruptedException {
+		if (offset < 0 || offset > 0x7fff || length < 0) {
+			throw new IllegalArgumentException("invalid range: offset "
+					+ offset + ", length " + length);
+		}
+		final byte[] cachedFile = getCachedFile(fileType);
+		if (null != cachedFile) {
+			final int from = Math.min(offset, cachedFile.length);
+			return Arrays.copyOfRange(cachedFile, from,
+					(int) Math.min((long) from + length, cachedFile.length));
+		}
+
+		final byte[] data = new byte[length];
+		int dataLength = 0;
+		final CardFileInputStream inputStream = this.openCardFileInputStream(
+				fileType, offset, (int) Math.min((long) offset + length,
+						Integer.MAX_VALUE));
+		try {
+			while (dataLength < length) {
+				final int count = inputStream.read(data, dataLength, length
+						- dataLength);
+				if (-1 == count) {
+					break;
+				}
+				dataLength += count;
+			}
+		} catch (final IOException ioex) {
+			inputStream.rethrowFailure();
+			throw ioex;
+		} finally {
+			inputStream.close();
+		}
+
+		if (dataLength == length) {
+			return data;
+		}
+		return Arrays.copyOf(data, dataLength);
+	}
+
+	/**
+	 * Reads the serial number, issuer, subject and validity period of a
+	 * certificate on the card, without reading the entire certificate. Only
+	 * the leading blocks of the certificate file, up to and including the
+	 * subject of the TBSCertificate, are fetched. Useful to find out which
+	 * card or citizen is present, without waiting for the full certificate.
+	 * Applicable FileTypes are AuthentificationCertificate,
+	 * NonRepudiationCertificate, CACertificate, RootCertificate and
+	 * RRNCertificate.
+	 * 
+	 * @param fileType
+	 *            the certificate to peek at
+	 * @return the certificate information
+	 * @throws CertificateException
+	 *             if the file does not start with a DER encoded certificate
+	 * @throws CardException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public CertificateInfo peekCertificate(final FileType fileType)
+			throws CertificateException, CardException, IOException,
+			InterruptedException {
+		if (!fileType.isCertificate()) {
+			throw new IllegalArgumentException("not a certificate: "
+					+ fileType);
+		}
+		final byte[] cachedFile = getCachedFile(fileType);
+		if (null != cachedFile) {
+			return CertificateInfoParser.parse(new ByteArrayInputStream(
+					cachedFile));
+		}
+		return peekCardCertificate(fileType);
+	}
+
+	private CertificateInfo peekCardCertificate(final FileType fileType)
+			throws CertificateException, CardException, IOException,
+			InterruptedException {
+		final CardFileInputStream inputStream = this.openCardFileInputStream(
+				fileType, 0, Integer.MAX_VALUE);
+		try {
+			return CertificateInfoParser.parse(inputStream);
+		} catch (final IOException ioex) {
+			inputStream.rethrowFailure();
+			throw ioex;
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	/**
+	 * Reads several files from the card, within a single exclusive
+	 * transaction. The files are read in the order of their path on the card,
+	 * so that files in the same directory are read one after the other.
+	 * Registered BeIDCardListeners receive the read progress of each file in
+	 * turn.
+	 * 
+	 * @param fileTypes
+	 *            the files to read
+	 * @return the data from the files, by file type
+	 * @throws CardException
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public Map<FileType, byte[]> readFiles(final EnumSet<FileType> fileTypes)
+			throws CardException, IOException, InterruptedException {
+		final List<FileType> orderedFileTypes = new ArrayList<FileType>(
+				fileTypes);
+		Collections.sort(orderedFileTypes, FILE_PATH_ORDER);
+		final Map<FileType, byte[]> files = new EnumMap<FileType, byte[]>(
+				FileType.class);
+		final Iterator<FileType> iterator = orderedFileTypes.iterator();
+		while (iterator.hasNext()) {
+			final FileType fileType = iterator.next();
+			final byte[] cachedFile = getCachedFile(fileType);
+			if (null != cachedFile) {
+				files.put(fileType, cachedFile);
+				iterator.remove();
+			}
+		}
+		if (orderedFileTypes.isEmpty()) {
+			return files;
+		}
+
+		this.beginExclusive();
+
+		try {
+			boolean firstFile = true;
+			for (FileType fileType : orderedFileTypes) {
+				/*
+				 * As we hold the card exclusively in between, the sharing
+				 * violation pause is only required after the first SELECT.
+				 */
+				this.selectFile(fileType.getFileId(), firstFile);
+				final byte[] file = this.readBinary(fileType,
+						fileType.getEstimatedMaxSize());
+				cacheFile(fileType, file);
+				files.put(fileType, file);
+				firstFile = false;
+			}
+		} finally {
+			this.endExclusive();
+		}
+
+		return files;
+	}
+
+	/**
+	 * test for CCID Features in the card reader this BeIDCard is inserted into
+	 * 
+	 * @param feature
+	 *            the feature to test for (CCID.FEATURE)
 	 * @return true if the given feature is available, false if not
 	 */
 	public boolean cardTerminalHasCCIDFeature(CCID.FEATURE feature) {
@@ -1179,7 +2178,7 @@ public class BeIDCard {
 
 	protected byte[] transmitCCIDControl(final boolean usePPDU,
 			final CCID.FEATURE feature) throws CardException {
-
+		checkDeadline();
 		return transmitControlCommand(getCCID().getFeature(feature),
 				new byte[0]);
 	}
@@ -1187,6 +2186,7 @@ public class BeIDCard {
 	protected byte[] transmitCCIDControl(final boolean usePPDU,
 			final CCID.FEATURE feature, final byte[] command)
 			throws CardException {
+		checkDeadline();
 		if (usePPDU) {
 			return transmitPPDUCommand(feature.getTag(), command);
 		} else {
@@ -1245,59 +2245,391 @@ public class BeIDCard {
 				apdu.getP1(), apdu.getP2(), data, dataOffset, dataLength, ne));
 	}
 
+	/*
+	 * Transmit a CommandAPDU, transparently handling the T=0 0x6C (wrong
+	 * length) and 0x61 (more data available) status words. Data from chained
+	 * GET RESPONSE commands is collected in a reusable buffer, and only
+	 * materialised into a ResponseAPDU once the card has returned the final
+	 * status word.
+	 */
 	private ResponseAPDU transmit(final CommandAPDU commandApdu)
 			throws CardException {
-		return transmit(commandApdu, 0);
+		synchronized (this.transmitLock) {
+			CommandAPDU currentApdu = commandApdu;
+			int chainedLength = 0;
+			for (int attempt = 0; attempt < MAX_TRANSMIT_ATTEMPTS; attempt++) {
+				checkDeadline();
+				final ResponseAPDU responseApdu;
+				try {
+					responseApdu = this.cardChannel.transmit(currentApdu);
+				} catch (final CardException cex) {
+					if (!isSharingViolation(cex)
+							|| attempt == MAX_TRANSMIT_ATTEMPTS - 1) {
+						throw cex;
+					}
+					final long delay = this.pacingPolicy.sharingViolation(
+							getATR(), getTerminalName());
+					this.logger.debug("sharing violation, retrying in "
+							+ delay + " ms");
+					try {
+						sleep(delay);
+					} catch (final InterruptedException iex) {
+						Thread.currentThread().interrupt();
+						throw cex;
+					}
+					continue;
+				}
+				final int sw1 = responseApdu.getSW1();
+				if (0x6c == sw1) {
+					/*
+					 * A minimum delay of 10 msec between the answer 6C xx and
+					 * the next BeIDCommandAPDU is mandatory for eID v1.0 and
+					 * v1.1 cards. The pacing policy knows which cards need it.
+					 */
+					final long delay = this.pacingPolicy.getWrongLengthDelay(
+							getATR(), getTerminalName());
+					if (delay > 0) {
+						this.logger.debug("sleeping...");
+						try {
+							sleep(delay);
+						} catch (final InterruptedException iex) {
+							Thread.currentThread().interrupt();
+							throw new CardException("interrupted", iex);
+						}
+					}
+					currentApdu = new CommandAPDU(currentApdu.getCLA(),
+							currentApdu.getINS(), currentApdu.getP1(),
+							currentApdu.getP2(), currentApdu.getData(),
+							responseApdu.getSW2());
+				} else if (0x61 == sw1) {
+					/*
+					 * Keep the data received so far, and issue a GET RESPONSE
+					 * command to retrieve the remaining data.
+					 */
+					final byte[] responseBytes = responseApdu.getBytes();
+					chainedLength = appendToResponseBuffer(chainedLength,
+							responseBytes, responseBytes.length - 2);
+					currentApdu = getResponseCommand(responseApdu.getSW2());
+				} else {
+					if (0 == chainedLength) {
+						return responseApdu;
+					}
+					/*
+					 * Combine the previously received data with the final
+					 * response, including its status word.
+					 */
+					final byte[] responseBytes = responseApdu.getBytes();
+					chainedLength = appendToResponseBuffer(chainedLength,
+							responseBytes, responseBytes.length);
+					final byte[] combined = new byte[chainedLength];
+					System.arraycopy(this.responseBuffer, 0, combined, 0,
+							chainedLength);
+					return new ResponseAPDU(combined);
+				}
+			}
+			throw new CardException("Could not obtain response.");
+		}
 	}
 
-	private ResponseAPDU transmit(final CommandAPDU commandApdu,
-			final int attempt) throws CardException {
-		if (attempt >= 32) {
-			throw new CardException("Could not obtain response.");
+	private static boolean isSharingViolation(final Throwable throwable) {
+		Throwable cause = throwable;
+		while (null != cause) {
+			final String message = cause.getMessage();
+			if (null != message
+					&& message.contains("SCARD_E_SHARING_VIOLATION")) {
+				return true;
+			}
+			cause = cause.getCause();
 		}
+		return false;
+	}
 
-		ResponseAPDU responseApdu = this.cardChannel.transmit(commandApdu);
-		if (0x6c == responseApdu.getSW1()) {
-			/*
-			 * A minimum delay of 10 msec between the answer ?????????6C
-			 * xx????????? and the next BeIDCommandAPDU is mandatory for eID
-			 * v1.0 and v1.1 cards.
-			 */
-			this.logger.debug("sleeping...");
+	private String getTerminalName() {
+		return null == this.cardTerminal ? null : this.cardTerminal.getName();
+	}
+
+	/*
+	 * Append length bytes of data to the response buffer at offset, growing
+	 * the buffer when needed. Returns the new length of the buffered data.
+	 */
+	private int appendToResponseBuffer(final int offset, final byte[] data,
+			final int length) {
+		final int required = offset + length;
+		if (required > this.responseBuffer.length) {
+			int newSize = this.responseBuffer.length * 2;
+			while (newSize < required) {
+				newSize *= 2;
+			}
+			this.responseBuffer = Arrays.copyOf(this.responseBuffer, newSize);
+		}
+		System.arraycopy(data, 0, this.responseBuffer, offset, length);
+		return required;
+	}
+
+	/*
+	 * GET RESPONSE commands only differ by their Le, so each one is built at
+	 * most once for this card.
+	 */
+	private CommandAPDU getResponseCommand(int le) {
+		if (le == 0) {
+			le = 0xff;
+		}
+		CommandAPDU getResponseApdu = this.getResponseApdus[le];
+		if (null == getResponseApdu) {
+			getResponseApdu = new CommandAPDU(0x00, 0xC0, 0x00, 0x00, le);
+			this.getResponseApdus[le] = getResponseApdu;
+		}
+		return getResponseApdu;
+	}
+
+	private void checkDeadline() throws CardTimeoutException {
+		final Deadline currentDeadline = this.deadline.get();
+		if (null != currentDeadline) {
+			currentDeadline.check();
+		}
+	}
+
+	/*
+	 * Pause in between commands, but not past the deadline.
+	 */
+	private void sleep(final long delay) throws CardTimeoutException,
+			InterruptedException {
+		final Deadline currentDeadline = this.deadline.get();
+		if (null == currentDeadline) {
+			Thread.sleep(delay);
+			return;
+		}
+		Thread.sleep(Math.min(delay, currentDeadline.getRemainingMillis()));
+		currentDeadline.check();
+	}
+
+	private byte[] getCachedFile(final FileType fileType)
+			throws CardException, IOException, InterruptedException {
+		final BeIDFileCache cache = this.fileCache;
+		if (null == cache) {
+			return null;
+		}
+		loadFileStore(cache);
+		return cache.get(fileType);
+	}
+
+	private void cacheFile(final FileType fileType, final byte[] file) {
+		final BeIDFileCache cache = this.fileCache;
+		if (null == cache) {
+			return;
+		}
+		cache.put(fileType, file);
+
+		final BeIDFileStore store = this.fileStore;
+		if (null != store && null != this.chipSerialNumber
+				&& store.isStored(fileType)) {
+			// written once the card is released, see endExclusive()
+			this.fileStoreDirty = true;
+		}
+	}
+
+	/*
+	 * Write the files read from the card since the last time to the file
+	 * store, all at once.
+	 */
+	private void flushFileStore() {
+		if (!this.fileStoreDirty) {
+			return;
+		}
+		this.fileStoreDirty = false;
+		final BeIDFileCache cache = this.fileCache;
+		final BeIDFileStore store = this.fileStore;
+		final byte[] serialNumber = this.chipSerialNumber;
+		if (null == cache || null == store || null == serialNumber) {
+			return;
+		}
+		try {
+			store.store(serialNumber, cache.getFiles());
+		} catch (final IOException ioex) {
+			this.logger.error("cannot store card files: " + ioex.getMessage());
+		}
+	}
+
+	/*
+	 * Once per card insertion, recognise the card by its chip serial number,
+	 * and if its identity signature matches, fill the file cache with the
+	 * files stored for it.
+	 */
+	private void loadFileStore(final BeIDFileCache cache)
+			throws CardException, IOException, InterruptedException {
+		final BeIDFileStore store = this.fileStore;
+		if (null == store || this.fileStoreLoaded) {
+			return;
+		}
+
+		this.beginExclusive();
+
+		try {
+			if (this.fileStoreLoaded) {
+				return;
+			}
+			this.fileStoreLoaded = true;
+
+			final byte[] cardData;
 			try {
-				Thread.sleep(10);
-			} catch (final InterruptedException e) {
-				throw new RuntimeException("cannot sleep");
-			}
-			CommandAPDU newCommandApdu = new CommandAPDU(commandApdu.getCLA(),
-					commandApdu.getINS(), commandApdu.getP1(),
-					commandApdu.getP2(), commandApdu.getData(),
-					responseApdu.getSW2());
-			responseApdu = transmit(newCommandApdu, attempt + 1);
-		} else if (0x61 == responseApdu.getSW1()) {
-			/*
-			 * Issue a GET RESPONSE command to retrieve the remaining data.
-			 */
-			int le = responseApdu.getSW2();
-			if (le == 0) {
-				le = 0xff;
+				cardData = getCardData();
+			} catch (final FileNotFoundException fnfex) {
+				this.logger.debug("no card data, not using the file store");
+				return;
+			}
+			if (cardData.length < CHIP_SERIAL_NUMBER_OFFSET
+					+ CHIP_SERIAL_NUMBER_LENGTH) {
+				return;
+			}
+			// as in CardData.getChipSerialNumber()
+			final byte[] serialNumber = Arrays.copyOfRange(cardData,
+					CHIP_SERIAL_NUMBER_OFFSET, CHIP_SERIAL_NUMBER_OFFSET
+							+ CHIP_SERIAL_NUMBER_LENGTH);
+
+			byte[] identitySignature = cache.get(FileType.IdentitySignature);
+			if (null == identitySignature) {
+				this.selectFile(FileType.IdentitySignature.getFileId());
+				identitySignature = this.readBinary(
+						FileType.IdentitySignature,
+						FileType.IdentitySignature.getEstimatedMaxSize());
+				cache.put(FileType.IdentitySignature, identitySignature);
 			}
-			CommandAPDU newCommandApdu = new CommandAPDU(0x00, 0xC0, 0x00,
-					0x00, le);
-			ResponseAPDU newResponseApdu = transmit(newCommandApdu, attempt + 1);
 
-			/*
-			 * Combine the previously received data with the new response.
-			 */
-			byte[] oldData = responseApdu.getData();
-			byte[] newResponse = newResponseApdu.getBytes();
-			byte[] combined = new byte[oldData.length + newResponse.length];
-			System.arraycopy(oldData, 0, combined, 0, oldData.length);
-			System.arraycopy(newResponse, 0, combined, oldData.length,
-					newResponse.length);
-			responseApdu = new ResponseAPDU(combined);
+			Map<FileType, byte[]> storedFiles = null;
+			try {
+				storedFiles = store.load(serialNumber, identitySignature);
+			} catch (final IOException ioex) {
+				this.logger.error("cannot load card files: "
+						+ ioex.getMessage());
+			}
+			if (null != storedFiles) {
+				this.logger.debug("card files loaded from the file store: "
+						+ storedFiles.keySet());
+				for (Map.Entry<FileType, byte[]> entry : storedFiles
+						.entrySet()) {
+					if (!cache.contains(entry.getKey())) {
+						cache.put(entry.getKey(), entry.getValue());
+					}
+				}
+			}
+			this.chipSerialNumber = serialNumber;
+		} finally {
+			this.endExclusive();
+		}
+	}
+
+	private X509Certificate generateCertificate(final FileType fileType)
+			throws CertificateException, CardException, IOException,
+			InterruptedException {
+		final CertificateCache cache = this.certificateCache;
+		final BeIDFileCache cardFileCache = this.fileCache;
+		if (null != cardFileCache) {
+			loadFileStore(cardFileCache);
+		}
+		if (null != cache
+				&& (FileType.CACertificate == fileType
+						|| FileType.RootCertificate == fileType)
+				&& (null == cardFileCache || !cardFileCache.contains(fileType))) {
+			// the same for many cards, recognise it by its first block(s)
+			final X509Certificate cachedCertificate = cache
+					.get(peekCardCertificate(fileType));
+			if (null != cachedCertificate) {
+				this.logger.debug("certificate cache hit: " + fileType);
+				return cachedCertificate;
+			}
+			final X509Certificate certificate = readCertificate(fileType);
+			cache.put(certificate);
+			return certificate;
+		}
+		return readCertificate(fileType);
+	}
+
+	/*
+	 * As generateCertificate(), but reading the certificate in full and
+	 * leaving its decoding to the given decoder.
+	 */
+	private Future<X509Certificate> decodeCertificate(final FileType fileType,
+			final CertificateDecoder decoder) throws CertificateException,
+			CardException, IOException, InterruptedException {
+		final CertificateCache cache = this.certificateCache;
+		final BeIDFileCache cardFileCache = this.fileCache;
+		if (null != cardFileCache) {
+			loadFileStore(cardFileCache);
+		}
+		final boolean shared = null != cache
+				&& (FileType.CACertificate == fileType
+						|| FileType.RootCertificate == fileType)
+				&& (null == cardFileCache || !cardFileCache.contains(fileType));
+		if (shared) {
+			final X509Certificate cachedCertificate = cache
+					.get(peekCardCertificate(fileType));
+			if (null != cachedCertificate) {
+				this.logger.debug("certificate cache hit: " + fileType);
+				final FutureTask<X509Certificate> decodedCertificate = new FutureTask<X509Certificate>(
+						new Callable<X509Certificate>() {
+							@Override
+							public X509Certificate call() {
+								return cachedCertificate;
+							}
+						});
+				decodedCertificate.run();
+				return decodedCertificate;
+			}
+		}
+		return decoder.decode(readFile(fileType), shared ? cache : null);
+	}
+
+	private static X509Certificate getDecodedCertificate(
+			final Future<X509Certificate> certificate)
+			throws CertificateException, InterruptedException {
+		try {
+			return certificate.get();
+		} catch (final ExecutionException eex) {
+			final Throwable cause = eex.getCause();
+			if (cause instanceof CertificateException) {
+				throw (CertificateException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new CertificateException(cause);
 		}
-		return responseApdu;
+	}
+
+	private X509Certificate readCertificate(final FileType fileType)
+			throws CertificateException, CardException, IOException,
+			InterruptedException {
+		if (null != this.fileCache) {
+			return (X509Certificate) this.certificateFactory
+					.generateCertificate(new ByteArrayInputStream(
+							readFile(fileType)));
+		}
+		final CardFileInputStream inputStream = this.openCardFileInputStream(
+				fileType, 0, Integer.MAX_VALUE);
+		try {
+			return (X509Certificate) this.certificateFactory
+					.generateCertificate(inputStream);
+		} catch (final CertificateException cex) {
+			// report card errors as such, rather than as a bad certificate
+			inputStream.rethrowFailure();
+			throw cex;
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	/*
+	 * Remember the READ BINARY block size that works for this card in this
+	 * card reader.
+	 */
+	private int learnBlockSize(final int blockSize) {
+		this.logger.debug("READ BINARY block size: " + blockSize);
+		ReadBinaryBlockSizes.setBlockSize(getATR(), this.cardTerminal,
+				blockSize);
+		return blockSize;
 	}
 
 	// ===========================================================================================================
@@ -1397,6 +2729,7 @@ public class BeIDCard {
 				this.logger.debug("retries left: " + retriesLeft);
 			}
 		} while (0x9000 != responseApdu.getSW());
+		this.securityState.pinVerified();
 	}
 
 	/*
@@ -1751,6 +3084,343 @@ public class BeIDCard {
 		this.cardTerminal = cardTerminal;
 	}
 
+	/**
+	 * Set the deadline by which the operations on this card called from the
+	 * calling thread must have completed. Operations still running once it has
+	 * passed or was cancelled, including waiting for another thread to release
+	 * the card, send no further commands to the card, release it, and fail
+	 * with a CardTimeoutException. A card reader that does not answer a
+	 * command at all can only be given up on once it does.
+	 * <p>
+	 * The deadline only applies to the calling thread, so that operations on
+	 * the same card from other threads, such as the background prefetch
+	 * started on insertion (see PrefetchPolicy), keep their own. An
+	 * AsyncBeIDCard passes on the deadline of the thread submitting an
+	 * operation. The deadline may be cancelled from any thread.
+	 * 
+	 * @param deadline
+	 *            the deadline, or <code>null</code> for none, the default
+	 * @return this BeIDCard Instance, to allow method chaining.
+	 */
+	public BeIDCard setDeadline(final Deadline deadline) {
+		if (null == deadline) {
+			this.deadline.remove();
+		} else {
+			this.deadline.set(deadline);
+		}
+		return this;
+	}
+
+	/**
+	 * @return the deadline set by the calling thread, or <code>null</code>
+	 */
+	public Deadline getDeadline() {
+		return this.deadline.get();
+	}
+
+	/**
+	 * Set the PacingPolicy that decides on the delays in between APDUs. By
+	 * default, the process-wide DefaultPacingPolicy instance is used.
+	 * 
+	 * @param pacingPolicy
+	 *            the pacing policy to use
+	 * @return this BeIDCard Instance, to allow method chaining.
+	 */
+	public BeIDCard setPacingPolicy(final PacingPolicy pacingPolicy) {
+		if (null == pacingPolicy) {
+			throw new IllegalArgumentException("pacing policy expected");
+		}
+		this.pacingPolicy = pacingPolicy;
+		return this;
+	}
+
+	/**
+	 * Enable or disable caching of the files read from this card. While
+	 * enabled, each file is only read from the chip once, and served from
+	 * memory afterwards. As the cache lives for as long as the card remains
+	 * inserted, BeIDCardManager invalidates it when the card is removed.
+	 * Disabled by default.
+	 * 
+	 * @param enabled
+	 *            whether to cache the files read
+	 * @return this BeIDCard Instance, to allow method chaining.
+	 */
+	public BeIDCard setFileCacheEnabled(final boolean enabled) {
+		if (enabled) {
+			if (null == this.fileCache) {
+				this.fileCache = new BeIDFileCache();
+			}
+		} else {
+			this.fileCache = null;
+		}
+		return this;
+	}
+
+	/**
+	 * @return the file cache, holding the hit and miss counts, or
+	 *         <code>null</code> if file caching is disabled.
+	 */
+	public BeIDFileCache getFileCache() {
+		return this.fileCache;
+	}
+
+	/**
+	 * Set the cache of CA and root certificates shared with other cards, for
+	 * instance the process-wide CertificateCache instance. By default, none is
+	 * used. The cache only serves the certificates it trusts, so its root
+	 * certificates have to be added with addTrustedCertificate().
+	 * 
+	 * @param certificateCache
+	 *            the certificate cache to use, or <code>null</code> to always
+	 *            read the CA and root certificates in full, the default.
+	 * @return this BeIDCard Instance, to allow method chaining.
+	 */
+	public BeIDCard setCertificateCache(final CertificateCache certificateCache) {
+		this.certificateCache = certificateCache;
+		return this;
+	}
+
+	/**
+	 * Set the decoder that getCertificateChain() hands each certificate to,
+	 * while it reads the next one from the card. By default, the
+	 * process-wide CertificateDecoder instance is used.
+	 * 
+	 * @param certificateDecoder
+	 *            the certificate decoder to use, or <code>null</code> to read
+	 *            and decode the certificates one after the other.
+	 * @return this BeIDCard Instance, to allow method chaining.
+	 */
+	public BeIDCard setCertificateDecoder(
+			final CertificateDecoder certificateDecoder) {
+		this.certificateDecoder = certificateDecoder;
+		return this;
+	}
+
+	/**
+	 * Set a persistent store for the static files read from this card, so that
+	 * they need not be read again when the same card is presented later on.
+	 * Only used while file caching is enabled: the first file access after
+	 * insertion then reads the card data and the identity signature, and
+	 * fills the file cache with the files stored for the card, if any. Files
+	 * read from the card are added to the store, once the operation that read
+	 * them releases the card.
+	 * 
+	 * @param fileStore
+	 *            the file store to use, or <code>null</code> for none, the
+	 *            default.
+	 * @return this BeIDCard Instance, to allow method chaining.
+	 */
+	public BeIDCard setFileStore(final BeIDFileStore fileStore) {
+		this.fileStore = fileStore;
+		this.fileStoreLoaded = false;
+		return this;
+	}
+
+	/**
+	 * Forget all cached files, for instance because the card was removed.
+	 * 
+	 * @return this BeIDCard Instance, to allow method chaining.
+	 */
+	public BeIDCard invalidateFileCache() {
+		final BeIDFileCache cache = this.fileCache;
+		if (null != cache) {
+			cache.clear();
+		}
+		this.fileStoreLoaded = false;
+		this.chipSerialNumber = null;
+		return this;
+	}
+
+	/*
+	 * CardFileInputStream reads a previously selected file from the card, one
+	 * READ BINARY block at a time, as its contents are being consumed, from
+	 * the given offset up to (excluding) the given limit. It releases the card
+	 * once the end of the file or the limit is reached, or when closed. Only
+	 * the thread that opened it, and holds the card, may read or close it.
+	 */
+	private final class CardFileInputStream extends InputStream {
+		private final FileType fileType;
+		private final int limit;
+		private final int blockSize;
+		private final Thread owner;
+		private byte[] block;
+		private int blockPosition;
+		private int offset;
+		private boolean endOfFile;
+		private boolean exclusive;
+		private Exception failure;
+
+		public CardFileInputStream(final FileType fileType, final int offset,
+				final int limit) {
+			this.fileType = fileType;
+			this.offset = offset;
+			this.limit = limit;
+			final Integer learnedBlockSize = ReadBinaryBlockSizes
+					.getBlockSize(getATR(), BeIDCard.this.cardTerminal);
+			this.blockSize = null == learnedBlockSize
+					? BLOCK_SIZE
+					: learnedBlockSize;
+			this.owner = Thread.currentThread();
+			this.block = new byte[0];
+			this.exclusive = true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!this.hasData()) {
+				return -1;
+			}
+			return this.block[this.blockPosition++] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int bufferOffset,
+				final int length) throws IOException {
+			if (0 == length) {
+				return 0;
+			}
+			if (!this.hasData()) {
+				return -1;
+			}
+			final int count = Math.min(length, this.block.length
+					- this.blockPosition);
+			System.arraycopy(this.block, this.blockPosition, buffer,
+					bufferOffset, count);
+			this.blockPosition += count;
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return this.block.length - this.blockPosition;
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.checkOwner();
+			this.endOfFile = true;
+			this.release();
+		}
+
+		/*
+		 * the card is held for the opening thread, no other thread can use or
+		 * release it
+		 */
+		private void checkOwner() throws IOException {
+			if (this.exclusive && Thread.currentThread() != this.owner) {
+				throw new IOException("card file stream opened by thread "
+						+ this.owner.getName()
+						+ ", it must be read and closed by that thread");
+			}
+		}
+
+		/*
+		 * rethrow the card error that caused the stream to fail, if any
+		 */
+		public void rethrowFailure() throws CardException, IOException,
+				InterruptedException {
+			if (this.failure instanceof CardException) {
+				throw (CardException) this.failure;
+			}
+			if (this.failure instanceof InterruptedException) {
+				throw (InterruptedException) this.failure;
+			}
+			if (this.failure instanceof IOException) {
+				throw (IOException) this.failure;
+			}
+		}
+
+		private boolean hasData() throws IOException {
+			while (this.blockPosition == this.block.length) {
+				if (this.endOfFile) {
+					return false;
+				}
+				this.checkOwner();
+				try {
+					this.readBlock();
+				} catch (final IOException ioex) {
+					this.failure = ioex;
+					this.close();
+					throw ioex;
+				} catch (final CardException cex) {
+					this.failure = cex;
+					this.close();
+					throw new IOException(cex.getMessage(), cex);
+				} catch (final InterruptedException iex) {
+					this.failure = iex;
+					this.close();
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			return true;
+		}
+
+		private void readBlock() throws CardException, IOException,
+				InterruptedException {
+			if (Thread.currentThread().isInterrupted()) {
+				BeIDCard.this.logger.debug("interrupted in openFileStream");
+				throw new InterruptedException();
+			}
+
+			if (this.offset >= this.limit) {
+				this.endOfFile();
+				return;
+			}
+
+			notifyReadProgress(this.fileType, this.offset,
+					this.fileType.getEstimatedMaxSize());
+			final int length = Math.min(this.blockSize, this.limit
+					- this.offset);
+			final ResponseAPDU responseApdu = transmitCommand(
+					BeIDCommandAPDU.READ_BINARY, this.offset >> 8,
+					this.offset & 0xFF, length);
+			final int sw = responseApdu.getSW();
+			if (0x6B00 == sw) {
+				// offset outside the EF: end of file reached
+				this.endOfFile();
+				return;
+			}
+
+			// end of file reached before reading Le bytes
+			final boolean endOfFile = 0x6282 == sw;
+			if (0x9000 != sw && !endOfFile) {
+				throw new IOException("BeIDCommandAPDU response error: "
+						+ responseApdu.getSW(), new ResponseAPDUException(
+						responseApdu));
+			}
+
+			this.block = responseApdu.getData();
+			this.blockPosition = 0;
+			this.offset += this.block.length;
+			if (endOfFile || this.block.length < length
+					|| this.offset >= this.limit) {
+				this.endOfFile();
+			}
+		}
+
+		private void endOfFile() throws CardException {
+			this.endOfFile = true;
+			notifyReadProgress(this.fileType, this.offset, this.offset);
+			this.releaseCard();
+		}
+
+		private void release() throws IOException {
+			try {
+				this.releaseCard();
+			} catch (final CardException cex) {
+				throw new IOException(cex.getMessage(), cex);
+			}
+		}
+
+		private void releaseCard() throws CardException {
+			if (this.exclusive) {
+				this.exclusive = false;
+				endExclusive();
+			}
+		}
+	}
+
 	/*
 	 * BeIDCommandAPDU encapsulates values sent in CommandAPDU's, to make these
 	 * more readable in BeIDCard.
@@ -19,20 +19,25 @@
 
 package be.fedict.commons.eid.client;
 
-import java.util.Arrays;
+import java.io.FileNotFoundException;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import javax.smartcardio.ATR;
 import javax.smartcardio.Card;
 import javax.smartcardio.CardTerminal;
 
 import be.fedict.commons.eid.client.CardAndTerminalManager.PROTOCOL;
 import be.fedict.commons.eid.client.event.BeIDCardEventsListener;
 import be.fedict.commons.eid.client.event.CardEventsListener;
+import be.fedict.commons.eid.client.impl.BeIDATRs;
+import be.fedict.commons.eid.client.impl.BeIDFileStore;
+import be.fedict.commons.eid.client.impl.ListenerRegistry;
 import be.fedict.commons.eid.client.impl.LocaleManager;
 import be.fedict.commons.eid.client.impl.VoidLogger;
 import be.fedict.commons.eid.client.spi.Logger;
@@ -54,18 +59,19 @@ import be.fedict.commons.eid.client.spi.Logger;
 
 public class BeIDCardManager {
 
-	private static final byte[] ATR_PATTERN = new byte[]{0x3b, (byte) 0x98,
-			0x00, 0x40, 0x00, (byte) 0x00, 0x00, 0x00, 0x01, 0x01, (byte) 0xad,
-			0x13, 0x10,};
-	private static final byte[] ATR_MASK = new byte[]{(byte) 0xff, (byte) 0xff,
-			0x00, (byte) 0xff, 0x00, 0x00, 0x00, 0x00, (byte) 0xff,
-			(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xf0,};
+	private static final int PREFETCH_THREADS = 2;
+	private static final int PREFETCH_QUEUE_SIZE = 16;
 
 	private final CardAndTerminalManager cardAndTerminalManager;
 	private boolean terminalManagerIsPrivate;
+	private volatile boolean fileCacheEnabled;
+	private volatile BeIDFileStore fileStore;
+	private volatile PrefetchPolicy prefetchPolicy;
+	private final ThreadPoolExecutor prefetchExecutor;
 	private final Map<CardTerminal, BeIDCard> terminalsAndCards;
-	private final Set<BeIDCardEventsListener> beIdListeners;
-	private final Set<CardEventsListener> otherCardListeners;
+	private final Map<CardTerminal, Prefetch> terminalsAndPrefetches;
+	private final ListenerRegistry<BeIDCardEventsListener> beIdListeners;
+	private final ListenerRegistry<CardEventsListener> otherCardListeners;
 	private final Logger logger;
 
 	/**
@@ -96,7 +102,7 @@ public class BeIDCardManager {
 	 * supplies a CardAndTerminalManager. note: caller is responsible for
 	 * start()in the supplied CardAndTerminalManager, it will not be
 	 * automatically started. The supplied CardAndTerminalManager should allow
-	 * protocol T0 ("T=0") or ANY ("*") for BeIDCards to work.
+	 * protocol T0 ("T=0"), ANY ("*") or AUTO for BeIDCards to work.
 	 * 
 	 * @param cardAndTerminalManager
 	 *            the CardAndTerminalManager to use
@@ -119,9 +125,25 @@ public class BeIDCardManager {
 	public BeIDCardManager(final Logger logger,
 			final CardAndTerminalManager cardAndTerminalManager) {
 		this.logger = logger;
-		this.beIdListeners = new HashSet<BeIDCardEventsListener>();
-		this.otherCardListeners = new HashSet<CardEventsListener>();
+		this.beIdListeners = new ListenerRegistry<BeIDCardEventsListener>(
+				"BeIDCardManager-listener", logger);
+		this.otherCardListeners = new ListenerRegistry<CardEventsListener>(
+				"BeIDCardManager-listener", logger);
 		this.terminalsAndCards = new HashMap<CardTerminal, BeIDCard>();
+		this.terminalsAndPrefetches = new HashMap<CardTerminal, Prefetch>();
+		this.prefetchExecutor = new ThreadPoolExecutor(PREFETCH_THREADS,
+				PREFETCH_THREADS, 30L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(PREFETCH_QUEUE_SIZE),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable,
+								"BeIDCardPrefetch");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.prefetchExecutor.allowCoreThreadTimeOut(true);
 
 		this.cardAndTerminalManager = cardAndTerminalManager;
 		if (this.terminalManagerIsPrivate) {
@@ -132,136 +154,105 @@ public class BeIDCardManager {
 			@Override
 			public void cardInserted(final CardTerminal cardTerminal,
 					final Card card) {
-				if (card != null && matchesEidAtr(card.getATR())) {
+				if (card != null && BeIDATRs.matches(card.getATR())) {
 					final BeIDCard beIDCard = new BeIDCard(card,
 							BeIDCardManager.this.logger);
 					beIDCard.setCardTerminal(cardTerminal);
 					beIDCard.setLocale(LocaleManager.getLocale());
+					final PrefetchPolicy policy = BeIDCardManager.this.prefetchPolicy;
+					beIDCard
+							.setFileCacheEnabled(BeIDCardManager.this.fileCacheEnabled
+									|| null != policy);
+					beIDCard.setFileStore(BeIDCardManager.this.fileStore);
 
 					synchronized (BeIDCardManager.this.terminalsAndCards) {
 						BeIDCardManager.this.terminalsAndCards.put(
 								cardTerminal, beIDCard);
-					}
-
-					Set<BeIDCardEventsListener> copyOfListeners;
-
-					synchronized (BeIDCardManager.this.beIdListeners) {
-						copyOfListeners = new HashSet<BeIDCardEventsListener>(
-								BeIDCardManager.this.beIdListeners);
-					}
-
-					for (BeIDCardEventsListener listener : copyOfListeners) {
-						try {
-							listener.eIDCardInserted(cardTerminal, beIDCard);
-						} catch (final Throwable thrownInListener) {
-							BeIDCardManager.this.logger
-									.error("Exception thrown in BeIDCardEventsListener.eIDCardInserted:"
-											+ thrownInListener.getMessage());
+						if (null != policy) {
+							startPrefetch(cardTerminal, beIDCard, policy);
 						}
 					}
-				} else {
-					Set<CardEventsListener> copyOfListeners;
 
-					synchronized (BeIDCardManager.this.otherCardListeners) {
-						copyOfListeners = new HashSet<CardEventsListener>(
-								BeIDCardManager.this.otherCardListeners);
-					}
-
-					for (CardEventsListener listener : copyOfListeners) {
-						try {
-							listener.cardInserted(cardTerminal, card);
-						} catch (final Throwable thrownInListener) {
-							BeIDCardManager.this.logger
-									.error("Exception thrown in CardEventsListener.cardInserted:"
-											+ thrownInListener.getMessage());
-						}
-					}
+					BeIDCardManager.this.beIdListeners.dispatch(
+							"BeIDCardEventsListener.eIDCardInserted",
+							new ListenerRegistry.Call<BeIDCardEventsListener>() {
+								@Override
+								public void call(
+										final BeIDCardEventsListener listener) {
+									listener.eIDCardInserted(cardTerminal,
+											beIDCard);
+								}
+							});
+				} else {
+					BeIDCardManager.this.otherCardListeners.dispatch(
+							"CardEventsListener.cardInserted",
+							new ListenerRegistry.Call<CardEventsListener>() {
+								@Override
+								public void call(
+										final CardEventsListener listener) {
+									listener.cardInserted(cardTerminal, card);
+								}
+							});
 				}
 			}
 
 			@Override
 			public void cardRemoved(final CardTerminal cardTerminal) {
-				final BeIDCard beIDCard = BeIDCardManager.this.terminalsAndCards
-						.get(cardTerminal);
+				// card events of other terminals are handled concurrently
+				final BeIDCard beIDCard;
+				synchronized (BeIDCardManager.this.terminalsAndCards) {
+					beIDCard = BeIDCardManager.this.terminalsAndCards
+							.remove(cardTerminal);
+					if (beIDCard != null) {
+						cancelPrefetch(cardTerminal);
+					}
+				}
 				if (beIDCard != null) {
 					beIDCard.close();
-					synchronized (BeIDCardManager.this.terminalsAndCards) {
-						BeIDCardManager.this.terminalsAndCards
-								.remove(cardTerminal);
-					}
-
-					Set<BeIDCardEventsListener> copyOfListeners;
-
-					synchronized (BeIDCardManager.this.beIdListeners) {
-						copyOfListeners = new HashSet<BeIDCardEventsListener>(
-								BeIDCardManager.this.beIdListeners);
-					}
 
-					for (BeIDCardEventsListener listener : copyOfListeners) {
-						try {
-							listener.eIDCardRemoved(cardTerminal, beIDCard);
-						} catch (final Throwable thrownInListener) {
-							BeIDCardManager.this.logger
-									.error("Exception thrown in BeIDCardEventsListener.eIDCardRemoved:"
-											+ thrownInListener.getMessage());
-						}
-
-					}
+					BeIDCardManager.this.beIdListeners.dispatch(
+							"BeIDCardEventsListener.eIDCardRemoved",
+							new ListenerRegistry.Call<BeIDCardEventsListener>() {
+								@Override
+								public void call(
+										final BeIDCardEventsListener listener) {
+									listener.eIDCardRemoved(cardTerminal,
+											beIDCard);
+								}
+							});
 				} else {
-					Set<CardEventsListener> copyOfListeners;
-
-					synchronized (BeIDCardManager.this.otherCardListeners) {
-						copyOfListeners = new HashSet<CardEventsListener>(
-								BeIDCardManager.this.otherCardListeners);
-					}
-
-					for (CardEventsListener listener : copyOfListeners) {
-						try {
-							listener.cardRemoved(cardTerminal);
-						} catch (final Throwable thrownInListener) {
-							BeIDCardManager.this.logger
-									.error("Exception thrown in CardEventsListener.cardRemoved:"
-											+ thrownInListener.getMessage());
-						}
-					}
+					BeIDCardManager.this.otherCardListeners.dispatch(
+							"CardEventsListener.cardRemoved",
+							new ListenerRegistry.Call<CardEventsListener>() {
+								@Override
+								public void call(
+										final CardEventsListener listener) {
+									listener.cardRemoved(cardTerminal);
+								}
+							});
 				}
 			}
 
 			@Override
 			public void cardEventsInitialized() {
-				Set<BeIDCardEventsListener> copyOfBeIDCardEventsListeners;
-
-				synchronized (BeIDCardManager.this.beIdListeners) {
-					copyOfBeIDCardEventsListeners = new HashSet<BeIDCardEventsListener>(
-							BeIDCardManager.this.beIdListeners);
-				}
-
-				for (BeIDCardEventsListener listener : copyOfBeIDCardEventsListeners) {
-					try {
-						listener.eIDCardEventsInitialized();
-					} catch (final Throwable thrownInListener) {
-						BeIDCardManager.this.logger
-								.error("Exception thrown in BeIDCardEventsListener.eIDCardInserted:"
-										+ thrownInListener.getMessage());
-					}
-				}
-
-				Set<CardEventsListener> copyOfOtherCardEventsListeners;
-
-				synchronized (BeIDCardManager.this.otherCardListeners) {
-					copyOfOtherCardEventsListeners = new HashSet<CardEventsListener>(
-							BeIDCardManager.this.otherCardListeners);
-				}
-
-				for (CardEventsListener listener : copyOfOtherCardEventsListeners) {
-					try {
-						listener.cardEventsInitialized();
-					} catch (final Throwable thrownInListener) {
-						BeIDCardManager.this.logger
-								.error("Exception thrown in BeIDCardEventsListener.eIDCardInserted:"
-										+ thrownInListener.getMessage());
-					}
-				}
+				BeIDCardManager.this.beIdListeners.dispatch(
+						"BeIDCardEventsListener.eIDCardEventsInitialized",
+						new ListenerRegistry.Call<BeIDCardEventsListener>() {
+							@Override
+							public void call(
+									final BeIDCardEventsListener listener) {
+								listener.eIDCardEventsInitialized();
+							}
+						});
+
+				BeIDCardManager.this.otherCardListeners.dispatch(
+						"CardEventsListener.cardEventsInitialized",
+						new ListenerRegistry.Call<CardEventsListener>() {
+							@Override
+							public void call(final CardEventsListener listener) {
+								listener.cardEventsInitialized();
+							}
+						});
 			}
 		});
 	}
@@ -293,9 +284,7 @@ public class BeIDCardManager {
 	 */
 	public BeIDCardManager addBeIDCardEventListener(
 			final BeIDCardEventsListener listener) {
-		synchronized (this.beIdListeners) {
-			this.beIdListeners.add(listener);
-		}
+		this.beIdListeners.add(listener);
 		return this;
 	}
 
@@ -310,9 +299,7 @@ public class BeIDCardManager {
 	 */
 	public BeIDCardManager removeBeIDCardListener(
 			final BeIDCardEventsListener listener) {
-		synchronized (this.beIdListeners) {
-			this.beIdListeners.remove(listener);
-		}
+		this.beIdListeners.remove(listener);
 		return this;
 	}
 
@@ -336,9 +323,7 @@ public class BeIDCardManager {
 	 */
 	public BeIDCardManager addOtherCardEventListener(
 			final CardEventsListener listener) {
-		synchronized (this.otherCardListeners) {
-			this.otherCardListeners.add(listener);
-		}
+		this.otherCardListeners.add(listener);
 		return this;
 	}
 
@@ -353,17 +338,18 @@ public class BeIDCardManager {
 	 */
 	public BeIDCardManager removeOtherCardEventListener(
 			final CardEventsListener listener) {
-		synchronized (this.otherCardListeners) {
-			this.otherCardListeners.remove(listener);
-		}
+		this.otherCardListeners.remove(listener);
 		return this;
 	}
 
 	/**
 	 * Stops this BeIDCardManager. If no CardAndTerminalManager was given at
 	 * construction, this will stop our private CardAndTerminalManager. After
-	 * this, no registered listeners will receive any more events. If a
-	 * CardAndTerminalManager was given at construction, this has no effect.
+	 * this, no new events are detected, and listeners called directly will
+	 * receive no more events. Listeners with an event queue (see
+	 * {@link #setListenerQueueSize(int)}) may still receive the events already
+	 * queued for them. If a CardAndTerminalManager was given at construction,
+	 * this has no effect.
 	 * 
 	 * @return this BeIDCardManager to allow for method chaining
 	 * @throws InterruptedException
@@ -376,21 +362,84 @@ public class BeIDCardManager {
 	}
 
 	/*
-	 * Private Support methods. Shamelessly copied from eid-applet-core
+	 * Start reading the files of the policy from the card just inserted in the
+	 * background. Called with the terminalsAndCards lock held.
+	 */
+	private void startPrefetch(final CardTerminal cardTerminal,
+			final BeIDCard beIDCard, final PrefetchPolicy policy) {
+		final Prefetch prefetch = new Prefetch(cardTerminal, beIDCard, policy);
+		try {
+			this.prefetchExecutor.execute(prefetch);
+			this.terminalsAndPrefetches.put(cardTerminal, prefetch);
+		} catch (final RejectedExecutionException rex) {
+			this.logger.debug("prefetch queue full, not prefetching from "
+					+ cardTerminal.getName());
+		}
+	}
+
+	/*
+	 * Stop prefetching from a card that was removed. A read in progress is
+	 * allowed to fail on its own. Called with the terminalsAndCards lock held.
 	 */
+	private void cancelPrefetch(final CardTerminal cardTerminal) {
+		final Prefetch prefetch = this.terminalsAndPrefetches
+				.remove(cardTerminal);
+		if (null != prefetch) {
+			prefetch.cancel();
+			this.prefetchExecutor.remove(prefetch);
+		}
+	}
 
-	private boolean matchesEidAtr(final ATR atr) {
-		final byte[] atrBytes = atr.getBytes();
-		if (atrBytes.length != ATR_PATTERN.length) {
-			return false;
+	private final class Prefetch implements Runnable {
+		private final CardTerminal cardTerminal;
+		private final BeIDCard beIDCard;
+		private final PrefetchPolicy policy;
+		private volatile boolean cancelled;
+
+		public Prefetch(final CardTerminal cardTerminal,
+				final BeIDCard beIDCard, final PrefetchPolicy policy) {
+			this.cardTerminal = cardTerminal;
+			this.beIDCard = beIDCard;
+			this.policy = policy;
 		}
-		for (int idx = 0; idx < atrBytes.length; idx++) {
-			atrBytes[idx] &= ATR_MASK[idx];
+
+		public void cancel() {
+			this.cancelled = true;
 		}
-		if (Arrays.equals(atrBytes, ATR_PATTERN)) {
-			return true;
+
+		@Override
+		public void run() {
+			final Thread thread = Thread.currentThread();
+			final int normalPriority = thread.getPriority();
+			thread.setPriority(this.policy.getPriority());
+			try {
+				for (FileType fileType : this.policy.getFileTypes()) {
+					if (this.cancelled) {
+						return;
+					}
+					try {
+						this.beIDCard.readFile(fileType);
+					} catch (final FileNotFoundException fnfex) {
+						BeIDCardManager.this.logger.debug("cannot prefetch "
+								+ fileType + ": not on card");
+					}
+				}
+			} catch (final InterruptedException iex) {
+				thread.interrupt();
+			} catch (final Exception ex) {
+				BeIDCardManager.this.logger.debug("prefetch stopped: "
+						+ ex.getMessage());
+			} finally {
+				thread.setPriority(normalPriority);
+				synchronized (BeIDCardManager.this.terminalsAndCards) {
+					if (this == BeIDCardManager.this.terminalsAndPrefetches
+							.get(this.cardTerminal)) {
+						BeIDCardManager.this.terminalsAndPrefetches
+								.remove(this.cardTerminal);
+					}
+				}
+			}
 		}
-		return false;
 	}
 
 	public BeIDCardManager setLocale(Locale newLocale) {
@@ -401,4 +450,103 @@ public class BeIDCardManager {
 	public Locale getLocale() {
 		return LocaleManager.getLocale();
 	}
+
+	/**
+	 * Enable file caching on the BeIDCards created from now on, so that the
+	 * files of an inserted card are only read once, however many parts of the
+	 * application ask for them. The cache of a card is invalidated when the
+	 * card is removed. See BeIDCard.setFileCacheEnabled().
+	 * 
+	 * @param fileCacheEnabled
+	 *            whether to enable file caching on new BeIDCards
+	 * @return this BeIDCardManager, to allow method chaining
+	 */
+	public BeIDCardManager setFileCacheEnabled(final boolean fileCacheEnabled) {
+		this.fileCacheEnabled = fileCacheEnabled;
+		return this;
+	}
+
+	/**
+	 * Set the card protocol the private CardAndTerminalManager of this
+	 * BeIDCardManager connects to cards inserted from now on with. The default
+	 * is PROTOCOL.T0. PROTOCOL.AUTO picks the fastest protocol per card reader
+	 * model. Has no effect when the caller supplied the
+	 * CardAndTerminalManager: set the protocol on that one instead.
+	 * 
+	 * @param protocol
+	 *            the card protocol
+	 * @return this BeIDCardManager, to allow method chaining
+	 */
+	public BeIDCardManager setProtocol(final PROTOCOL protocol) {
+		if (this.terminalManagerIsPrivate) {
+			this.cardAndTerminalManager.setProtocol(protocol);
+		}
+		return this;
+	}
+
+	/**
+	 * Set the persistent file store to be used by BeIDCards created from now
+	 * on, so that cards presented again need not be read in full. Only used
+	 * when file caching is enabled. See BeIDCard.setFileStore().
+	 * 
+	 * @param fileStore
+	 *            the file store, or <code>null</code> for none, the default
+	 * @return this BeIDCardManager, to allow method chaining
+	 */
+	public BeIDCardManager setFileStore(final BeIDFileStore fileStore) {
+		this.fileStore = fileStore;
+		return this;
+	}
+
+	/**
+	 * Read the files of the given policy in the background from BeID cards
+	 * inserted from now on, into their file cache, so that they can be
+	 * returned straight away once asked for. File caching is enabled on those
+	 * cards regardless of setFileCacheEnabled(). At most two cards are read
+	 * from at a time; prefetching is skipped for further cards when too many
+	 * are waiting.
+	 * 
+	 * @param prefetchPolicy
+	 *            the files to read, or <code>null</code> to read nothing
+	 *            until asked, the default
+	 * @return this BeIDCardManager, to allow method chaining
+	 */
+	public BeIDCardManager setPrefetchPolicy(
+			final PrefetchPolicy prefetchPolicy) {
+		this.prefetchPolicy = prefetchPolicy;
+		return this;
+	}
+
+	/**
+	 * Set the number of events queued for each listener added from now on.
+	 * Each of these listeners then gets its events in order on a thread of its
+	 * own, so that a slow listener, reading from the card it was given, holds
+	 * up neither the detection of other cards nor the other listeners. With 0,
+	 * the default, listeners are called directly, one after the other. See
+	 * CardAndTerminalManager.setListenerQueueSize().
+	 * 
+	 * @param listenerQueueSize
+	 *            the number of events queued per listener
+	 * @return this BeIDCardManager, to allow method chaining
+	 */
+	public BeIDCardManager setListenerQueueSize(final int listenerQueueSize) {
+		this.beIdListeners.setQueueSize(listenerQueueSize);
+		this.otherCardListeners.setQueueSize(listenerQueueSize);
+		return this;
+	}
+
+	/**
+	 * Set what happens to events for listeners added from now on, when their
+	 * queue is full. The default is ListenerOverflowPolicy.DISCARD_NEWEST.
+	 * 
+	 * @param listenerOverflowPolicy
+	 *            the listener overflow policy
+	 * @return this BeIDCardManager, to allow method chaining
+	 */
+	public BeIDCardManager setListenerOverflowPolicy(
+			final ListenerOverflowPolicy listenerOverflowPolicy) {
+		this.beIdListeners.setOverflowPolicy(listenerOverflowPolicy);
+		this.otherCardListeners.setOverflowPolicy(listenerOverflowPolicy);
+		return this;
+	}
 }
@@ -426,6 +426,21 @@ public class BeIDCards {
 		return LocaleManager.getLocale();
 	}
 
+	/**
+	 * Set the card protocol to connect to cards inserted from now on with.
+	 * The default is PROTOCOL.T0, which works with all Belgian eID cards in
+	 * all card readers. PROTOCOL.AUTO picks the fastest protocol per card
+	 * reader model.
+	 * 
+	 * @param protocol
+	 *            the card protocol
+	 * @return this BeIDCards, to allow method chaining
+	 */
+	public BeIDCards setProtocol(final PROTOCOL protocol) {
+		this.cardAndTerminalManager.setProtocol(protocol);
+		return this;
+	}
+
 	/*
 	 * Private, supporting methods
 	 * **********************************************
@@ -28,8 +28,20 @@
  */
 package be.fedict.commons.eid.client;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.smartcardio.Card;
 import javax.smartcardio.CardException;
 import javax.smartcardio.CardTerminal;
@@ -38,7 +50,10 @@ import javax.smartcardio.CardTerminals.State;
 import javax.smartcardio.TerminalFactory;
 import be.fedict.commons.eid.client.event.CardEventsListener;
 import be.fedict.commons.eid.client.event.CardTerminalEventsListener;
+import be.fedict.commons.eid.client.impl.CCIDFeatureCache;
 import be.fedict.commons.eid.client.impl.LibJ2PCSCGNULinuxFix;
+import be.fedict.commons.eid.client.impl.ListenerRegistry;
+import be.fedict.commons.eid.client.impl.ProtocolSelections;
 import be.fedict.commons.eid.client.impl.VoidLogger;
 import be.fedict.commons.eid.client.spi.Logger;
 
@@ -54,19 +69,36 @@ import be.fedict.commons.eid.client.spi.Logger;
  * Note that at the level of CardAndTerminalManager there is no distinction
  * between types of cards or terminals: They are merely reported using the
  * standard javax.smartcardio classes.
+ * <p>
+ * A single worker thread monitors all CardTerminals. Spreading them over more
+ * workers would not help: CardTerminals.waitForChange() always waits on every
+ * card reader of the system, javax.smartcardio offers no way to wait on only
+ * some of them, so each worker would wake up, and list the readers, for every
+ * change.
  * 
  * @author Frank Marien
  * 
  */
 public class CardAndTerminalManager implements Runnable {
 	private static final int DEFAULT_DELAY = 250;
+	private static final int DEFAULT_RECONCILIATION_INTERVAL = 5000;
 	private boolean running, subSystemInitialized, autoconnect;
+	private volatile boolean eventDriven;
+	private boolean changesPrimed;
+	private volatile int reconciliationInterval;
+	private long lastReconciliation;
 	private Thread worker;
-	private Set<CardTerminal> terminalsPresent, terminalsWithCards;
+	private final Map<CardTerminal, TerminalState> terminalStates;
+	private long cycle;
+	private int connectThreads;
+	private ExecutorService eventExecutor;
+	private final Map<CardTerminal, TerminalEventQueue> eventQueues;
+	private final Object pendingEventsLock;
+	private int pendingEvents;
 	private CardTerminals cardTerminals;
 	private final Set<String> terminalsToIgnoreCardEventsFor;
-	private final Set<CardTerminalEventsListener> cardTerminalEventsListeners;
-	private final Set<CardEventsListener> cardEventsListeners;
+	private final ListenerRegistry<CardTerminalEventsListener> cardTerminalEventsListeners;
+	private final ListenerRegistry<CardEventsListener> cardEventsListeners;
 	private int delay;
 	private Logger logger;
 	private PROTOCOL protocol;
@@ -78,7 +110,13 @@ public class CardAndTerminalManager implements Runnable {
 
 		TCL("T=CL"),
 
-		ANY("*");
+		ANY("*"),
+
+		/**
+		 * the fastest of T=1 and T=0, benchmarked once per card reader
+		 * model, see ProtocolSelections
+		 */
+		AUTO("*");
 
 		private final String protocol;
 
@@ -146,10 +184,16 @@ public class CardAndTerminalManager implements Runnable {
 		// libpcsc not to be found.
 		LibJ2PCSCGNULinuxFix.fixNativeLibrary(logger);
 
-		this.cardTerminalEventsListeners = new HashSet<CardTerminalEventsListener>();
-		this.cardEventsListeners = new HashSet<CardEventsListener>();
+		this.cardTerminalEventsListeners = new ListenerRegistry<CardTerminalEventsListener>(
+				"CardAndTerminalManager-listener", logger);
+		this.cardEventsListeners = new ListenerRegistry<CardEventsListener>(
+				"CardAndTerminalManager-listener", logger);
 		this.terminalsToIgnoreCardEventsFor = new HashSet<String>();
+		this.terminalStates = new HashMap<CardTerminal, TerminalState>();
+		this.eventQueues = new HashMap<CardTerminal, TerminalEventQueue>();
+		this.pendingEventsLock = new Object();
 		this.delay = DEFAULT_DELAY;
+		this.reconciliationInterval = DEFAULT_RECONCILIATION_INTERVAL;
 		this.logger = logger;
 		this.running = false;
 		this.subSystemInitialized = false;
@@ -179,9 +223,7 @@ public class CardAndTerminalManager implements Runnable {
 	 */
 	public CardAndTerminalManager addCardTerminalListener(
 			final CardTerminalEventsListener listener) {
-		synchronized (this.cardTerminalEventsListeners) {
-			this.cardTerminalEventsListeners.add(listener);
-		}
+		this.cardTerminalEventsListeners.add(listener);
 		return this;
 	}
 
@@ -196,9 +238,7 @@ public class CardAndTerminalManager implements Runnable {
 	 */
 	public CardAndTerminalManager addCardListener(
 			final CardEventsListener listener) {
-		synchronized (this.cardEventsListeners) {
-			this.cardEventsListeners.add(listener);
-		}
+		this.cardEventsListeners.add(listener);
 		return this;
 	}
 
@@ -219,6 +259,22 @@ public class CardAndTerminalManager implements Runnable {
 		if (null != this.worker) {
 			throw new IllegalStateException("already started");
 		}
+		if (this.connectThreads > 0) {
+			final ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(
+					this.connectThreads, this.connectThreads, 30L,
+					TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(final Runnable runnable) {
+							final Thread thread = new Thread(runnable,
+									"CardAndTerminalManager-connect");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			threadPoolExecutor.allowCoreThreadTimeOut(true);
+			this.eventExecutor = threadPoolExecutor;
+		}
 		this.worker = new Thread(this, "CardAndTerminalManager");
 		this.worker.setDaemon(true);
 		this.worker.start();
@@ -236,9 +292,7 @@ public class CardAndTerminalManager implements Runnable {
 	 */
 	public CardAndTerminalManager removeCardTerminalListener(
 			final CardTerminalEventsListener listener) {
-		synchronized (this.cardTerminalEventsListeners) {
-			this.cardTerminalEventsListeners.remove(listener);
-		}
+		this.cardTerminalEventsListeners.remove(listener);
 		return this;
 	}
 
@@ -251,9 +305,7 @@ public class CardAndTerminalManager implements Runnable {
 	 */
 	public CardAndTerminalManager removeCardListener(
 			final CardEventsListener listener) {
-		synchronized (this.cardEventsListeners) {
-			this.cardEventsListeners.remove(listener);
-		}
+		this.cardEventsListeners.remove(listener);
 		return this;
 	}
 
@@ -296,8 +348,12 @@ public class CardAndTerminalManager implements Runnable {
 
 	/**
 	 * Stop this CardAndTerminalManager. This will may block until the worker
-	 * thread has returned, meaning that after this call returns, no registered
-	 * listeners will receive any more events.
+	 * thread has returned, meaning that after this call returns, no new events
+	 * are detected, and listeners called directly will receive no more
+	 * events. Listeners with an event queue (see
+	 * {@link #setListenerQueueSize(int)}) may still receive the events already
+	 * queued for them, on their own threads, as stop() does not wait for slow
+	 * listeners either.
 	 * 
 	 * @return this CardAndTerminalManager to allow for method chaining.
 	 * @throws InterruptedException
@@ -309,6 +365,11 @@ public class CardAndTerminalManager implements Runnable {
 		this.worker.interrupt();
 		this.worker.join();
 		this.worker = null;
+		if (null != this.eventExecutor) {
+			awaitPendingEvents();
+			this.eventExecutor.shutdown();
+			this.eventExecutor = null;
+		}
 		return this;
 	}
 
@@ -337,6 +398,153 @@ public class CardAndTerminalManager implements Runnable {
 		return this;
 	}
 
+	/**
+	 * Return whether this CardAndTerminalManager waits for the PCSC subsystem
+	 * to report card insertions and removals, rather than polling.
+	 * 
+	 * @return whether event-driven mode is enabled
+	 */
+	public boolean isEventDriven() {
+		return this.eventDriven;
+	}
+
+	/**
+	 * Set whether this CardAndTerminalManager waits for the PCSC subsystem to
+	 * report card insertions and removals, and only looks at the terminals
+	 * reported, rather than polling all terminals every delay. As the PCSC
+	 * subsystem may miss terminal attach and detach events, all terminals are
+	 * still looked at every reconciliation interval, and when the PCSC
+	 * subsystem reports a change other than a card insertion or removal.
+	 * Disabled by default.
+	 * 
+	 * @param eventDriven
+	 *            whether to enable event-driven mode
+	 * @return this CardAndTerminalManager to allow for method chaining.
+	 */
+	public CardAndTerminalManager setEventDriven(final boolean eventDriven) {
+		this.eventDriven = eventDriven;
+		return this;
+	}
+
+	/**
+	 * Returns the interval in between looking at all terminals in event-driven
+	 * mode.
+	 * 
+	 * @return the reconciliation interval, in milliseconds
+	 */
+	public int getReconciliationInterval() {
+		return this.reconciliationInterval;
+	}
+
+	/**
+	 * Set the interval in between looking at all terminals in event-driven
+	 * mode, to catch the terminal attach and detach events the PCSC subsystem
+	 * missed. This is also the longest a stop() may have to wait for in
+	 * event-driven mode. The default is 5 seconds.
+	 * 
+	 * @param reconciliationInterval
+	 *            the reconciliation interval, in milliseconds
+	 * @return this CardAndTerminalManager to allow for method chaining.
+	 */
+	public CardAndTerminalManager setReconciliationInterval(
+			final int reconciliationInterval) {
+		if (reconciliationInterval <= 0) {
+			throw new IllegalArgumentException(
+					"positive reconciliation interval expected");
+		}
+		this.reconciliationInterval = reconciliationInterval;
+		return this;
+	}
+
+	/**
+	 * Returns the number of threads connecting to cards inserted in parallel.
+	 * 
+	 * @return the number of connect threads, 0 if the worker thread connects
+	 */
+	public int getConnectThreads() {
+		return this.connectThreads;
+	}
+
+	/**
+	 * Set the number of threads that connect to cards inserted in different
+	 * terminals in parallel, and deliver the events for the terminals they
+	 * serve. Each listener then sees the events for a given terminal in order,
+	 * but the events for different terminals in any order, and from different
+	 * threads. The initial state is still complete before the initialized
+	 * events, and no events are delivered once stop() returns. With 0, the
+	 * default, the worker thread connects to the cards and delivers all events
+	 * itself, one after the other. Takes effect on start().
+	 * 
+	 * @param connectThreads
+	 *            the number of connect threads
+	 * @return this CardAndTerminalManager to allow for method chaining.
+	 */
+	public CardAndTerminalManager setConnectThreads(final int connectThreads) {
+		if (connectThreads < 0) {
+			throw new IllegalArgumentException(
+					"number of connect threads expected");
+		}
+		this.connectThreads = connectThreads;
+		return this;
+	}
+
+	/**
+	 * Returns the number of events queued for each listener registered.
+	 * 
+	 * @return the listener queue size, 0 if listeners are called directly
+	 */
+	public int getListenerQueueSize() {
+		return this.cardEventsListeners.getQueueSize();
+	}
+
+	/**
+	 * Set the number of events queued for each listener registered afterwards.
+	 * Each of these listeners then gets its events in order on a thread of its
+	 * own, so that a slow listener holds up neither the detection of card and
+	 * terminal events nor the other listeners. When a listener falls behind
+	 * by more than this many events, the overflow policy decides which events
+	 * it misses. With 0, the default, listeners are called directly, one
+	 * after the other.
+	 * 
+	 * @see #setListenerOverflowPolicy(ListenerOverflowPolicy)
+	 * @param listenerQueueSize
+	 *            the number of events queued per listener
+	 * @return this CardAndTerminalManager to allow for method chaining.
+	 */
+	public CardAndTerminalManager setListenerQueueSize(
+			final int listenerQueueSize) {
+		this.cardTerminalEventsListeners.setQueueSize(listenerQueueSize);
+		this.cardEventsListeners.setQueueSize(listenerQueueSize);
+		return this;
+	}
+
+	/**
+	 * Returns what happens to events for a listener whose queue is full.
+	 * 
+	 * @return the listener overflow policy
+	 */
+	public ListenerOverflowPolicy getListenerOverflowPolicy() {
+		return this.cardEventsListeners.getOverflowPolicy();
+	}
+
+	/**
+	 * Set what happens to events for listeners registered afterwards, when
+	 * their queue is full. The default is
+	 * {@link ListenerOverflowPolicy#DISCARD_NEWEST}.
+	 * 
+	 * @see #setListenerQueueSize(int)
+	 * @param listenerOverflowPolicy
+	 *            the listener overflow policy
+	 * @return this CardAndTerminalManager to allow for method chaining.
+	 */
+	public CardAndTerminalManager setListenerOverflowPolicy(
+			final ListenerOverflowPolicy listenerOverflowPolicy) {
+		this.cardTerminalEventsListeners
+				.setOverflowPolicy(listenerOverflowPolicy);
+		this.cardEventsListeners.setOverflowPolicy(listenerOverflowPolicy);
+		return this;
+	}
+
 	/**
 	 * Return whether this CardAndTerminalsManager will automatically connect()
 	 * to any cards inserted.
@@ -375,7 +583,8 @@ public class CardAndTerminalManager implements Runnable {
 	 * Determines which card protocols this CardAndTerminalsManager will attempt
 	 * to connect to cards with. (if autoconnect is true, see
 	 * {@link CardAndTerminalManager#setAutoconnect(boolean)}) the default is
-	 * PROTOCOL.ANY which allows any protocol.
+	 * PROTOCOL.ANY which allows any protocol. PROTOCOL.AUTO picks the fastest
+	 * protocol per card reader model.
 	 * 
 	 * @param newProtocol
 	 *            the card protocol(s) to attempt connection to the cards with
@@ -400,6 +609,7 @@ public class CardAndTerminalManager implements Runnable {
 			// this sends terminal attach and card insert events for this
 			// initial state to any listeners
 			handlePCSCEvents();
+			awaitPendingEvents();
 
 			// advise listeners that initial state was sent, and that any
 			// further events are relative to this
@@ -424,16 +634,10 @@ public class CardAndTerminalManager implements Runnable {
 		if (!this.subSystemInitialized) {
 			this.logger.debug("subsystem not initialized");
 			try {
-				if (this.terminalsPresent == null
-						|| this.terminalsWithCards == null) {
-					this.terminalsPresent = new HashSet<CardTerminal>(
-							this.cardTerminals.list(State.ALL));
-					this.terminalsWithCards = terminalsWithCardsIn(this.terminalsPresent);
-				}
-
-				listenersTerminalsAttachedCardsInserted(this.terminalsPresent,
-						this.terminalsWithCards);
+				// all terminals present are new, as are the cards in them
+				reconcile();
 				this.subSystemInitialized = true;
+				this.lastReconciliation = System.currentTimeMillis();
 
 			} catch (final CardException cex) {
 				logCardException(cex,
@@ -444,6 +648,11 @@ public class CardAndTerminalManager implements Runnable {
 			}
 		}
 
+		if (this.eventDriven) {
+			handlePCSCEventDeltas();
+			return;
+		}
+
 		try {
 			// can't use waitForChange properly, that is in blocking mode,
 			// without delay argument,
@@ -476,41 +685,7 @@ public class CardAndTerminalManager implements Runnable {
 		// get here when event has occured or delay time has passed
 
 		try {
-			// get fresh state
-			final Set<CardTerminal> currentTerminals = new HashSet<CardTerminal>(
-					this.cardTerminals.list(State.ALL));
-			final Set<CardTerminal> currentTerminalsWithCards = terminalsWithCardsIn(currentTerminals);
-
-			// determine terminals that were attached since previous state
-			final Set<CardTerminal> terminalsAttached = new HashSet<CardTerminal>(
-					currentTerminals);
-			terminalsAttached.removeAll(this.terminalsPresent);
-
-			// determine terminals that had cards inserted since previous state
-			final Set<CardTerminal> terminalsWithCardsInserted = new HashSet<CardTerminal>(
-					currentTerminalsWithCards);
-			terminalsWithCardsInserted.removeAll(this.terminalsWithCards);
-
-			// determine terminals that had cards removed since previous state
-			final Set<CardTerminal> terminalsWithCardsRemoved = new HashSet<CardTerminal>(
-					this.terminalsWithCards);
-			terminalsWithCardsRemoved.removeAll(currentTerminalsWithCards);
-
-			// determine terminals detached since previous state
-			final Set<CardTerminal> terminalsDetached = new HashSet<CardTerminal>(
-					this.terminalsPresent);
-			terminalsDetached.removeAll(currentTerminals);
-
-			// keep fresh state to compare to next time (and to return to
-			// synchronous callers)
-			this.terminalsPresent = currentTerminals;
-			this.terminalsWithCards = currentTerminalsWithCards;
-
-			// advise the listeners where appropriate, always in the order
-			// attach, insert, remove, detach
-			listenersUpdateInSequence(terminalsAttached,
-					terminalsWithCardsInserted, terminalsWithCardsRemoved,
-					terminalsDetached);
+			reconcile();
 		} catch (final CardException cex) {
 			// if a CardException occurs, assume we're out of readers (only
 			// CardTerminals.list throws that here)
@@ -523,6 +698,191 @@ public class CardAndTerminalManager implements Runnable {
 		}
 	}
 
+	/*
+	 * Event-driven mode: block until the PCSC subsystem reports a change, and
+	 * only look at the terminals it reports a card insertion or removal for.
+	 * Look at all terminals when it reports anything else, and every
+	 * reconciliation interval.
+	 */
+	private void handlePCSCEventDeltas() throws InterruptedException {
+		final long untilReconciliation = this.lastReconciliation
+				+ this.reconciliationInterval - System.currentTimeMillis();
+		try {
+			if (!this.changesPrimed) {
+				// the first waitForChange only records the state later
+				// changes are reported against: look at all terminals after it
+				this.cardTerminals.waitForChange(1);
+				this.changesPrimed = true;
+				reconcile();
+				this.lastReconciliation = System.currentTimeMillis();
+				return;
+			}
+			if (untilReconciliation > 0
+					&& this.cardTerminals.waitForChange(untilReconciliation)) {
+				final List<CardTerminal> terminalsWithCardsInserted = this.cardTerminals
+						.list(State.CARD_INSERTION);
+				final List<CardTerminal> terminalsWithCardsRemoved = this.cardTerminals
+						.list(State.CARD_REMOVAL);
+				if (!terminalsWithCardsInserted.isEmpty()
+						|| !terminalsWithCardsRemoved.isEmpty()) {
+					applyDeltas(terminalsWithCardsInserted,
+							terminalsWithCardsRemoved);
+					return;
+				}
+			}
+			reconcile();
+			this.lastReconciliation = System.currentTimeMillis();
+		} catch (final CardException cex) {
+			logCardException(cex,
+					"Cannot wait for card terminal events [3] (No Card Readers Connected?)");
+			clear();
+			sleepForDelay();
+		} catch (final IllegalStateException ise) {
+			this.logger
+					.debug("Cannot wait for card terminal changes (no PCSC subsystem?): "
+							+ ise.getLocalizedMessage());
+			clear();
+			sleepForDelay();
+		}
+	}
+
+	/*
+	 * Apply the card insertions and removals reported by the PCSC subsystem.
+	 * A card removed and another one inserted in between is reported as a
+	 * removal, followed by an insertion. Terminals not seen before are
+	 * reported attached first.
+	 */
+	private void applyDeltas(final List<CardTerminal> insertions,
+			final List<CardTerminal> removals) {
+		List<CardTerminal> terminalsAttached = null;
+		List<CardTerminal> terminalsWithCardsRemoved = null;
+		List<CardTerminal> terminalsWithCardsInserted = null;
+
+		for (CardTerminal terminal : removals) {
+			final TerminalState terminalState = this.terminalStates
+					.get(terminal);
+			if (null != terminalState && terminalState.hasCard()) {
+				terminalState.setStatus(TerminalStatus.EMPTY);
+				terminalsWithCardsRemoved = addTo(terminalsWithCardsRemoved,
+						terminal);
+			}
+		}
+
+		for (CardTerminal terminal : insertions) {
+			TerminalState terminalState = this.terminalStates.get(terminal);
+			if (null == terminalState) {
+				terminalState = new TerminalState();
+				this.terminalStates.put(terminal, terminalState);
+				terminalsAttached = addTo(terminalsAttached, terminal);
+			}
+			try {
+				if (!terminalState.hasCard()
+						&& !this.areCardEventsIgnoredFor(terminal)
+						&& terminal.isCardPresent()) {
+					terminalState.setStatus(TerminalStatus.CARD_PRESENT);
+					terminalsWithCardsInserted = addTo(
+							terminalsWithCardsInserted, terminal);
+				}
+			} catch (final CardException cex) {
+				this.logger
+						.error("Problem determining card presence in terminal ["
+								+ terminal.getName() + "]");
+			}
+		}
+
+		listenersTerminalsAttached(orNone(terminalsAttached));
+		listenersTerminalsWithCardsRemoved(orNone(terminalsWithCardsRemoved));
+		listenersTerminalsWithCardsInserted(orNone(terminalsWithCardsInserted));
+	}
+
+	/*
+	 * Look at all terminals, and advise the listeners of the differences with
+	 * the state kept per terminal. Nothing is allocated here, other than by
+	 * the PCSC subsystem, unless something changed.
+	 */
+	private void reconcile() throws CardException {
+		// get fresh state
+		final List<CardTerminal> currentTerminals = this.cardTerminals
+				.list(State.ALL);
+		final long currentCycle = ++this.cycle;
+
+		List<CardTerminal> terminalsAttached = null;
+		List<CardTerminal> terminalsWithCardsInserted = null;
+		List<CardTerminal> terminalsWithCardsRemoved = null;
+		List<CardTerminal> terminalsDetached = null;
+
+		// mark the terminals and cards seen in this cycle
+		for (CardTerminal terminal : currentTerminals) {
+			TerminalState terminalState = this.terminalStates.get(terminal);
+			if (null == terminalState) {
+				terminalState = new TerminalState();
+				this.terminalStates.put(terminal, terminalState);
+				terminalsAttached = addTo(terminalsAttached, terminal);
+			}
+			terminalState.seen = currentCycle;
+		}
+		try {
+			for (CardTerminal terminal : this.cardTerminals
+					.list(State.CARD_PRESENT)) {
+				final TerminalState terminalState = this.terminalStates
+						.get(terminal);
+				if (null != terminalState) {
+					terminalState.cardSeen = currentCycle;
+				}
+			}
+		} catch (final CardException cex) {
+			// one terminal failing, ask each one
+			for (CardTerminal terminal : currentTerminals) {
+				try {
+					if (terminal.isCardPresent()) {
+						this.terminalStates.get(terminal).cardSeen = currentCycle;
+					}
+				} catch (final CardException terminalCex) {
+					this.logger
+							.error("Problem determining card presence in terminal ["
+									+ terminal.getName() + "]");
+				}
+			}
+		}
+
+		// terminals and cards not seen are gone
+		final Iterator<Map.Entry<CardTerminal, TerminalState>> entries = this.terminalStates
+				.entrySet().iterator();
+		while (entries.hasNext()) {
+			final Map.Entry<CardTerminal, TerminalState> entry = entries
+					.next();
+			final CardTerminal terminal = entry.getKey();
+			final TerminalState terminalState = entry.getValue();
+			if (terminalState.seen != currentCycle) {
+				if (terminalState.hasCard()) {
+					terminalsWithCardsRemoved = addTo(
+							terminalsWithCardsRemoved, terminal);
+				}
+				terminalState.setStatus(TerminalStatus.ABSENT);
+				terminalsDetached = addTo(terminalsDetached, terminal);
+				entries.remove();
+				continue;
+			}
+			final boolean cardPresent = terminalState.cardSeen == currentCycle
+					&& !this.areCardEventsIgnoredFor(terminal);
+			if (cardPresent && !terminalState.hasCard()) {
+				terminalState.setStatus(TerminalStatus.CARD_PRESENT);
+				terminalsWithCardsInserted = addTo(terminalsWithCardsInserted,
+						terminal);
+			} else if (!cardPresent && terminalState.hasCard()) {
+				terminalState.setStatus(TerminalStatus.EMPTY);
+				terminalsWithCardsRemoved = addTo(terminalsWithCardsRemoved,
+						terminal);
+			}
+		}
+
+		// advise the listeners where appropriate, always in the order
+		// attach, insert, remove, detach
+		listenersUpdateInSequence(orNone(terminalsAttached),
+				orNone(terminalsWithCardsInserted),
+				orNone(terminalsWithCardsRemoved), orNone(terminalsDetached));
+	}
+
 	// ---------------------------------------------------------------------------------------------------
 
 	private boolean areCardEventsIgnoredFor(final CardTerminal cardTerminal) {
@@ -537,26 +897,114 @@ public class CardAndTerminalManager implements Runnable {
 		return false;
 	}
 
-	private Set<CardTerminal> terminalsWithCardsIn(
-			final Set<CardTerminal> terminals) {
-		final Set<CardTerminal> terminalsWithCards = new HashSet<CardTerminal>();
+	private static List<CardTerminal> addTo(final List<CardTerminal> terminals,
+			final CardTerminal terminal) {
+		final List<CardTerminal> list = null == terminals
+				? new ArrayList<CardTerminal>()
+				: terminals;
+		list.add(terminal);
+		return list;
+	}
 
-		synchronized (this.terminalsToIgnoreCardEventsFor) {
-			for (CardTerminal terminal : terminals) {
-				try {
-					if (terminal.isCardPresent()
-							&& !this.areCardEventsIgnoredFor(terminal)) {
-						terminalsWithCards.add(terminal);
-					}
-				} catch (final CardException cex) {
-					this.logger
-							.error("Problem determining card presence in terminal ["
-									+ terminal.getName() + "]");
+	private static List<CardTerminal> orNone(final List<CardTerminal> terminals) {
+		if (null == terminals) {
+			return Collections.emptyList();
+		}
+		return terminals;
+	}
+
+	private enum TerminalStatus {
+		ABSENT, EMPTY, CARD_PRESENT, CONNECTED
+	}
+
+	/*
+	 * What we know about a terminal, updated as changes are seen, and the
+	 * cycle in which the terminal and a card in it were last seen.
+	 */
+	private static final class TerminalState {
+		private TerminalStatus status;
+		private long seen;
+		private long cardSeen;
+
+		public TerminalState() {
+			this.status = TerminalStatus.EMPTY;
+		}
+
+		public synchronized void setStatus(final TerminalStatus status) {
+			this.status = status;
+		}
+
+		// may come in after the card was removed, when connecting in parallel
+		public synchronized void connected() {
+			if (TerminalStatus.CARD_PRESENT == this.status) {
+				this.status = TerminalStatus.CONNECTED;
+			}
+		}
+
+		public synchronized boolean hasCard() {
+			return TerminalStatus.CARD_PRESENT == this.status
+					|| TerminalStatus.CONNECTED == this.status;
+		}
+	}
+
+	/*
+	 * The events for a single terminal, delivered in order on the event
+	 * executor, one at a time. Once the terminal was detached and that has
+	 * been delivered, the queue removes itself from the eventQueues. Added to
+	 * with the eventQueues lock held.
+	 */
+	private final class TerminalEventQueue implements Runnable {
+		private final CardTerminal terminal;
+		private final LinkedList<Runnable> events;
+		private boolean scheduled;
+		private boolean detached;
+
+		public TerminalEventQueue(final CardTerminal terminal) {
+			this.terminal = terminal;
+			this.events = new LinkedList<Runnable>();
+		}
+
+		public void add(final Runnable event, final boolean detachedEvent) {
+			synchronized (this) {
+				this.events.add(event);
+				this.detached = detachedEvent;
+				if (this.scheduled) {
+					return;
 				}
+				this.scheduled = true;
 			}
+			CardAndTerminalManager.this.eventExecutor.execute(this);
 		}
 
-		return terminalsWithCards;
+		@Override
+		public void run() {
+			final Map<CardTerminal, TerminalEventQueue> eventQueues = CardAndTerminalManager.this.eventQueues;
+			while (true) {
+				final Runnable event;
+				synchronized (eventQueues) {
+					synchronized (this) {
+						event = this.events.poll();
+						if (null == event) {
+							this.scheduled = false;
+							if (this.detached) {
+								eventQueues.remove(this.terminal);
+							}
+							return;
+						}
+					}
+				}
+				try {
+					event.run();
+				} catch (final Throwable thrown) {
+					// keep delivering the events that follow
+					CardAndTerminalManager.this.logger
+							.error("Problem delivering card terminal event: "
+									+ thrown.getMessage());
+				} finally {
+					eventDelivered();
+				}
+			}
+		}
 	}
 
 	// -------------------------------------------------
@@ -569,31 +1017,32 @@ public class CardAndTerminalManager implements Runnable {
 		// events we now pretend to remove and detach all that we know of, for
 		// consistency
 		if (this.subSystemInitialized) {
-			listenersCardsRemovedTerminalsDetached(this.terminalsWithCards,
-					this.terminalsPresent);
+			final List<CardTerminal> terminalsWithCards = new ArrayList<CardTerminal>();
+			for (Map.Entry<CardTerminal, TerminalState> entry : this.terminalStates
+					.entrySet()) {
+				if (entry.getValue().hasCard()) {
+					terminalsWithCards.add(entry.getKey());
+				}
+				entry.getValue().setStatus(TerminalStatus.ABSENT);
+			}
+			listenersCardsRemovedTerminalsDetached(terminalsWithCards,
+					new ArrayList<CardTerminal>(this.terminalStates.keySet()));
 		}
-		this.terminalsPresent = null;
-		this.terminalsWithCards = null;
+		this.terminalStates.clear();
 		this.subSystemInitialized = false;
+		this.changesPrimed = false;
 		this.logger.debug("cleared");
 	}
 
-	private void listenersTerminalsAttachedCardsInserted(
-			final Set<CardTerminal> attached, final Set<CardTerminal> inserted)
-			throws CardException {
-		listenersTerminalsAttached(attached);
-		listenersTerminalsWithCardsInserted(inserted);
-	}
-
 	private void listenersCardsRemovedTerminalsDetached(
-			final Set<CardTerminal> removed, final Set<CardTerminal> detached) {
+			final List<CardTerminal> removed, final List<CardTerminal> detached) {
 		listenersTerminalsWithCardsRemoved(removed);
 		listenersTerminalsDetached(detached);
 	}
 
-	private void listenersUpdateInSequence(final Set<CardTerminal> attached,
-			final Set<CardTerminal> inserted, final Set<CardTerminal> removed,
-			final Set<CardTerminal> detached) throws CardException {
+	private void listenersUpdateInSequence(final List<CardTerminal> attached,
+			final List<CardTerminal> inserted, final List<CardTerminal> removed,
+			final List<CardTerminal> detached) {
 		listenersTerminalsAttached(attached);
 		listenersTerminalsWithCardsInserted(inserted);
 		listenersTerminalsWithCardsRemoved(removed);
@@ -606,113 +1055,90 @@ public class CardAndTerminalManager implements Runnable {
 	}
 
 	private void listenersCardEventsInitialized() {
-		Set<CardEventsListener> copyOfListeners;
-
-		synchronized (this.cardEventsListeners) {
-			copyOfListeners = new HashSet<CardEventsListener>(
-					this.cardEventsListeners);
-		}
-
-		for (CardEventsListener listener : copyOfListeners) {
-			try {
-				listener.cardEventsInitialized();
-			} catch (final Exception thrownInListener) {
-				this.logger
-						.error("Exception thrown in CardEventsListener.cardRemoved:"
-								+ thrownInListener.getMessage());
-			}
-		}
+		this.cardEventsListeners.dispatch(
+				"CardEventsListener.cardEventsInitialized",
+				new ListenerRegistry.Call<CardEventsListener>() {
+					@Override
+					public void call(final CardEventsListener listener) {
+						listener.cardEventsInitialized();
+					}
+				});
 	}
 
 	private void listenersTerminalEventsInitialized() {
-		Set<CardTerminalEventsListener> copyOfListeners;
-
-		synchronized (this.cardTerminalEventsListeners) {
-			copyOfListeners = new HashSet<CardTerminalEventsListener>(
-					this.cardTerminalEventsListeners);
-		}
-
-		for (CardTerminalEventsListener listener : copyOfListeners) {
-			try {
-				listener.terminalEventsInitialized();
-			} catch (final Exception thrownInListener) {
-				this.logger
-						.error("Exception thrown in CardTerminalEventsListener.terminalAttached:"
-								+ thrownInListener.getMessage());
-			}
-		}
+		this.cardTerminalEventsListeners.dispatch(
+				"CardTerminalEventsListener.terminalEventsInitialized",
+				new ListenerRegistry.Call<CardTerminalEventsListener>() {
+					@Override
+					public void call(final CardTerminalEventsListener listener) {
+						listener.terminalEventsInitialized();
+					}
+				});
 	}
 
 	// Tell listeners about attached readers
-	private void listenersTerminalsAttached(final Set<CardTerminal> attached) {
-		if (!attached.isEmpty()) {
-			Set<CardTerminalEventsListener> copyOfListeners;
-
-			synchronized (this.cardTerminalEventsListeners) {
-				copyOfListeners = new HashSet<CardTerminalEventsListener>(
-						this.cardTerminalEventsListeners);
-			}
-
-			for (CardTerminal terminal : attached) {
-				for (CardTerminalEventsListener listener : copyOfListeners) {
-					try {
-						listener.terminalAttached(terminal);
-					} catch (final Exception thrownInListener) {
-						this.logger
-								.error("Exception thrown in CardTerminalEventsListener.terminalAttached:"
-										+ thrownInListener.getMessage());
-					}
+	private void listenersTerminalsAttached(final List<CardTerminal> attached) {
+		for (final CardTerminal terminal : attached) {
+			dispatch(terminal, new Runnable() {
+				@Override
+				public void run() {
+					CardAndTerminalManager.this.cardTerminalEventsListeners
+							.dispatch(
+									"CardTerminalEventsListener.terminalAttached",
+									new ListenerRegistry.Call<CardTerminalEventsListener>() {
+										@Override
+										public void call(
+												final CardTerminalEventsListener listener) {
+											listener.terminalAttached(terminal);
+										}
+									});
 				}
-			}
+			});
 		}
 	}
 
 	// Tell listeners about detached readers
-	private void listenersTerminalsDetached(final Set<CardTerminal> detached) {
-		if (!detached.isEmpty()) {
-			Set<CardTerminalEventsListener> copyOfListeners;
-
-			synchronized (this.cardTerminalEventsListeners) {
-				copyOfListeners = new HashSet<CardTerminalEventsListener>(
-						this.cardTerminalEventsListeners);
-			}
-
-			for (CardTerminal terminal : detached) {
-				for (CardTerminalEventsListener listener : copyOfListeners) {
-					try {
-						listener.terminalDetached(terminal);
-					} catch (final Exception thrownInListener) {
-						this.logger
-								.error("Exception thrown in CardTerminalEventsListener.terminalDetached:"
-										+ thrownInListener.getMessage());
-					}
+	private void listenersTerminalsDetached(final List<CardTerminal> detached) {
+		for (final CardTerminal terminal : detached) {
+			// another reader may be attached under the same name
+			CCIDFeatureCache.invalidate(terminal.getName());
+
+			dispatch(terminal, true, new Runnable() {
+				@Override
+				public void run() {
+					CardAndTerminalManager.this.cardTerminalEventsListeners
+							.dispatch(
+									"CardTerminalEventsListener.terminalDetached",
+									new ListenerRegistry.Call<CardTerminalEventsListener>() {
+										@Override
+										public void call(
+												final CardTerminalEventsListener listener) {
+											listener.terminalDetached(terminal);
+										}
+									});
 				}
-			}
+			});
 		}
 	}
 
 	// Tell listeners about removed cards
 	private void listenersTerminalsWithCardsRemoved(
-			final Set<CardTerminal> removed) {
-		if (!removed.isEmpty()) {
-			Set<CardEventsListener> copyOfListeners;
-
-			synchronized (this.cardEventsListeners) {
-				copyOfListeners = new HashSet<CardEventsListener>(
-						this.cardEventsListeners);
-			}
-
-			for (CardTerminal terminal : removed) {
-				for (CardEventsListener listener : copyOfListeners) {
-					try {
-						listener.cardRemoved(terminal);
-					} catch (final Exception thrownInListener) {
-						this.logger
-								.error("Exception thrown in CardEventsListener.cardRemoved:"
-										+ thrownInListener.getMessage());
-					}
+			final List<CardTerminal> removed) {
+		for (final CardTerminal terminal : removed) {
+			dispatch(terminal, new Runnable() {
+				@Override
+				public void run() {
+					CardAndTerminalManager.this.cardEventsListeners.dispatch(
+							"CardEventsListener.cardRemoved",
+							new ListenerRegistry.Call<CardEventsListener>() {
+								@Override
+								public void call(
+										final CardEventsListener listener) {
+									listener.cardRemoved(terminal);
+								}
+							});
 				}
-			}
+			});
 		}
 	}
 
@@ -721,39 +1147,93 @@ public class CardAndTerminalManager implements Runnable {
 	// if this.autoconnect is enabled (the default), the card argument may be
 	// automatically
 	// filled out, but it may still be null, if the connect failed.
+	// With connect threads, terminals are connected to in parallel.
 	private void listenersTerminalsWithCardsInserted(
-			final Set<CardTerminal> inserted) {
-		if (!inserted.isEmpty()) {
-			Set<CardEventsListener> copyOfListeners;
+			final List<CardTerminal> inserted) {
+		final boolean connect = this.autoconnect;
+		final PROTOCOL connectProtocol = this.protocol;
+
+		for (final CardTerminal terminal : inserted) {
+			final TerminalState terminalState = this.terminalStates
+					.get(terminal);
+			dispatch(terminal, new Runnable() {
+				@Override
+				public void run() {
+					final Card card = connect
+							? connect(terminal, connectProtocol)
+							: null;
+					if (null != card && null != terminalState) {
+						terminalState.connected();
+					}
 
-			synchronized (this.cardEventsListeners) {
-				copyOfListeners = new HashSet<CardEventsListener>(
-						this.cardEventsListeners);
-			}
+					CardAndTerminalManager.this.cardEventsListeners.dispatch(
+							"CardEventsListener.cardInserted",
+							new ListenerRegistry.Call<CardEventsListener>() {
+								@Override
+								public void call(
+										final CardEventsListener listener) {
+									listener.cardInserted(terminal, card);
+								}
+							});
+				}
+			});
+		}
+	}
 
-			for (CardTerminal terminal : inserted) {
-				Card card = null;
+	private Card connect(final CardTerminal terminal,
+			final PROTOCOL connectProtocol) {
+		try {
+			return PROTOCOL.AUTO == connectProtocol ? ProtocolSelections
+					.connect(terminal, this.logger) : terminal
+					.connect(connectProtocol.getProtocol());
+		} catch (final CardException cex) {
+			this.logger.debug("terminal.connect("
+					+ connectProtocol.getProtocol() + ") failed. "
+					+ cex.getMessage());
+			return null;
+		}
+	}
 
-				if (this.autoconnect) {
-					try {
-						card = terminal.connect(this.protocol.getProtocol());
-					} catch (final CardException cex) {
-						this.logger.debug("terminal.connect("
-								+ this.protocol.getProtocol() + ") failed. "
-								+ cex.getMessage());
-					}
-				}
+	/*
+	 * Deliver an event for a terminal: on the worker thread itself, or, with
+	 * connect threads, in order with the other events for the same terminal
+	 * on the event executor.
+	 */
+	private void dispatch(final CardTerminal terminal, final Runnable event) {
+		dispatch(terminal, false, event);
+	}
 
-				for (CardEventsListener listener : copyOfListeners) {
-					try {
-						listener.cardInserted(terminal, card);
-					} catch (final Exception thrownInListener) {
-						this.logger
-								.error("Exception thrown in CardEventsListener.cardInserted:"
-										+ thrownInListener.getMessage());
-					}
+	private void dispatch(final CardTerminal terminal,
+			final boolean detachedEvent, final Runnable event) {
+		if (null == this.eventExecutor) {
+			event.run();
+			return;
+		}
+		synchronized (this.pendingEventsLock) {
+			this.pendingEvents++;
+		}
+		synchronized (this.eventQueues) {
+			TerminalEventQueue eventQueue = this.eventQueues.get(terminal);
+			if (null == eventQueue) {
+				eventQueue = new TerminalEventQueue(terminal);
+				this.eventQueues.put(terminal, eventQueue);
+			}
+			eventQueue.add(event, detachedEvent);
+		}
+	}
 
-				}
+	private void eventDelivered() {
+		synchronized (this.pendingEventsLock) {
+			if (0 == --this.pendingEvents) {
+				this.pendingEventsLock.notifyAll();
+			}
+		}
+	}
+
+	private void awaitPendingEvents() throws InterruptedException {
+		synchronized (this.pendingEventsLock) {
+			while (0 != this.pendingEvents) {
+				this.pendingEventsLock.wait();
 			}
 		}
 	}
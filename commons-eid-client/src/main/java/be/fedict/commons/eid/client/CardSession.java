@@ -0,0 +1,102 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client;
+
+import java.io.Closeable;
+
+/**
+ * Holds a BeIDCard exclusively across many operations, so that they share a
+ * single card transaction instead of each starting and ending their own.
+ * Obtained from BeIDCard.openSession(), and to be closed by the same thread,
+ * preferably in a finally block:
+ * 
+ * <pre>
+ * final CardSession session = beIDCard.openSession();
+ * try {
+ * 	beIDCard.readFile(FileType.Identity);
+ * 	beIDCard.readFile(FileType.Address);
+ * } finally {
+ * 	session.close();
+ * }
+ * </pre>
+ * 
+ * If a maximum hold time was given, the card is briefly released to other
+ * processes in between operations, once that time has passed since it was
+ * acquired.
+ */
+public final class CardSession implements Closeable {
+
+	private final BeIDCard card;
+	private final Thread owner;
+	private final int depth;
+	private final long maximumHoldTime;
+	private boolean closed;
+
+	CardSession(final BeIDCard card, final int depth,
+			final long maximumHoldTime) {
+		this.card = card;
+		this.owner = Thread.currentThread();
+		this.depth = depth;
+		this.maximumHoldTime = maximumHoldTime;
+	}
+
+	/**
+	 * @return the card held by this session
+	 */
+	public BeIDCard getCard() {
+		return this.card;
+	}
+
+	/**
+	 * @return whether this session still holds the card
+	 */
+	public boolean isOpen() {
+		return !this.closed;
+	}
+
+	/**
+	 * Release the card, unless it is held by an enclosing session. Closing a
+	 * session more than once has no effect.
+	 * 
+	 * @throws IllegalStateException
+	 *             if called by another thread than the one that opened the
+	 *             session
+	 */
+	@Override
+	public void close() {
+		if (this.closed) {
+			return;
+		}
+		if (Thread.currentThread() != this.owner) {
+			throw new IllegalStateException(
+					"session must be closed by the thread that opened it");
+		}
+		this.closed = true;
+		this.card.closeSession(this);
+	}
+
+	int getDepth() {
+		return this.depth;
+	}
+
+	long getMaximumHoldTime() {
+		return this.maximumHoldTime;
+	}
+}
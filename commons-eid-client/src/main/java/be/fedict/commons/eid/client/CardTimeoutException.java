@@ -0,0 +1,46 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client;
+
+import javax.smartcardio.CardException;
+
+/**
+ * Thrown by BeIDCard operations that were still running when their Deadline
+ * passed or was cancelled. No further commands were sent to the card, and
+ * the card was released.
+ */
+public class CardTimeoutException extends CardException {
+
+	private static final long serialVersionUID = 1;
+
+	private final boolean cancelled;
+
+	public CardTimeoutException(final String message, final boolean cancelled) {
+		super(message);
+		this.cancelled = cancelled;
+	}
+
+	/**
+	 * @return whether the deadline was cancelled, rather than passed
+	 */
+	public boolean isCancelled() {
+		return this.cancelled;
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client;
+
+import java.math.BigInteger;
+import java.util.Date;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * The identifying fields of a certificate on the card, as read by
+ * BeIDCard.peekCertificate() without reading the entire certificate.
+ */
+public class CertificateInfo {
+
+	private final BigInteger serialNumber;
+	private final X500Principal issuer;
+	private final Date notBefore;
+	private final Date notAfter;
+	private final X500Principal subject;
+
+	public CertificateInfo(final BigInteger serialNumber,
+			final X500Principal issuer, final Date notBefore,
+			final Date notAfter, final X500Principal subject) {
+		this.serialNumber = serialNumber;
+		this.issuer = issuer;
+		this.notBefore = new Date(notBefore.getTime());
+		this.notAfter = new Date(notAfter.getTime());
+		this.subject = subject;
+	}
+
+	public BigInteger getSerialNumber() {
+		return this.serialNumber;
+	}
+
+	public X500Principal getIssuer() {
+		return this.issuer;
+	}
+
+	public Date getNotBefore() {
+		return new Date(this.notBefore.getTime());
+	}
+
+	public Date getNotAfter() {
+		return new Date(this.notAfter.getTime());
+	}
+
+	public X500Principal getSubject() {
+		return this.subject;
+	}
+
+	/**
+	 * @param date
+	 *            the date to check
+	 * @return whether the certificate is valid at the given date
+	 */
+	public boolean isValidAt(final Date date) {
+		return !date.before(this.notBefore) && !date.after(this.notAfter);
+	}
+
+	@Override
+	public String toString() {
+		return "serial number: " + this.serialNumber.toString(16)
+				+ ", subject: " + this.subject + ", issuer: " + this.issuer
+				+ ", valid from " + this.notBefore + " until "
+				+ this.notAfter;
+	}
+}
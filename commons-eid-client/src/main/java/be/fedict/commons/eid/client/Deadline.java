@@ -0,0 +1,115 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time by which BeIDCard operations must have completed, that can
+ * also be cancelled before it is reached. Set on a card for the calling
+ * thread with BeIDCard.setDeadline(), after which the operations of that
+ * thread still running, or started, once it has passed fail with a
+ * CardTimeoutException instead of sending further commands to the card.
+ * 
+ * <pre>
+ * beIDCard.setDeadline(new Deadline(3, TimeUnit.SECONDS));
+ * try {
+ * 	beIDCard.readFile(FileType.Identity);
+ * } finally {
+ * 	beIDCard.setDeadline(null);
+ * }
+ * </pre>
+ */
+public final class Deadline {
+
+	private final long expiry;
+	private final boolean limited;
+	private volatile boolean cancelled;
+
+	/**
+	 * A deadline that is only reached when cancelled.
+	 */
+	public Deadline() {
+		this.expiry = 0;
+		this.limited = false;
+	}
+
+	/**
+	 * @param timeout
+	 *            the time from now on after which the deadline is reached
+	 * @param unit
+	 *            the unit of timeout
+	 */
+	public Deadline(final long timeout, final TimeUnit unit) {
+		this.expiry = System.nanoTime() + unit.toNanos(timeout);
+		this.limited = true;
+	}
+
+	/**
+	 * Reach the deadline now. May be called from any thread.
+	 */
+	public void cancel() {
+		this.cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	/**
+	 * @return whether the deadline was reached, or cancelled
+	 */
+	public boolean isExpired() {
+		return this.cancelled || this.limited
+				&& System.nanoTime() - this.expiry >= 0;
+	}
+
+	/**
+	 * @return the milliseconds left, rounded up, 0 if the deadline was reached
+	 *         or cancelled, or Long.MAX_VALUE if it has no time limit
+	 */
+	public long getRemainingMillis() {
+		if (this.cancelled) {
+			return 0;
+		}
+		if (!this.limited) {
+			return Long.MAX_VALUE;
+		}
+		final long remaining = this.expiry - System.nanoTime();
+		if (remaining <= 0) {
+			return 0;
+		}
+		return (remaining + 999999) / 1000000;
+	}
+
+	/**
+	 * @throws CardTimeoutException
+	 *             if the deadline was reached, or cancelled
+	 */
+	public void check() throws CardTimeoutException {
+		if (this.cancelled) {
+			throw new CardTimeoutException("card operation cancelled", true);
+		}
+		if (isExpired()) {
+			throw new CardTimeoutException("card operation deadline passed",
+					false);
+		}
+	}
+}
@@ -83,6 +83,11 @@ public enum FileType {
 		return this.keyId != -1;
 	}
 
+	public boolean isCertificate() {
+		return this.isCertificateUserCanSignWith() || this == CACertificate
+				|| this == RootCertificate || this == RRNCertificate;
+	}
+
 	public boolean chainIncludesCitizenCA() {
 		return this.isCertificateUserCanSignWith();
 	}
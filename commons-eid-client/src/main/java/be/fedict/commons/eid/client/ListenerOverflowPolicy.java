@@ -0,0 +1,40 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client;
+
+/**
+ * What happens to an event for a listener whose event queue is full, see
+ * CardAndTerminalManager.setListenerQueueSize() and
+ * BeIDCardManager.setListenerQueueSize(). The thread detecting the events
+ * never waits for a listener.
+ */
+public enum ListenerOverflowPolicy {
+
+	/**
+	 * The listener does not get the event that did not fit in its queue.
+	 */
+	DISCARD_NEWEST,
+
+	/**
+	 * The listener does not get the oldest event in its queue, to make room
+	 * for the event that did not fit.
+	 */
+	DISCARD_OLDEST
+}
@@ -0,0 +1,73 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The files BeIDCardManager reads in the background as soon as a BeID card is
+ * inserted, so that they are in the card's file cache by the time the
+ * application asks for them. Reads that are still in progress when the
+ * application asks are joined rather than repeated. See
+ * BeIDCardManager.setPrefetchPolicy().
+ */
+public final class PrefetchPolicy {
+
+	private final Set<FileType> fileTypes;
+	private final int priority;
+
+	/**
+	 * @param priority
+	 *            the thread priority to read the files at, between
+	 *            Thread.MIN_PRIORITY and Thread.MAX_PRIORITY
+	 * @param fileTypes
+	 *            the files to read
+	 */
+	public PrefetchPolicy(final int priority, final FileType... fileTypes) {
+		if (priority < Thread.MIN_PRIORITY || priority > Thread.MAX_PRIORITY) {
+			throw new IllegalArgumentException("invalid thread priority: "
+					+ priority);
+		}
+		this.priority = priority;
+		this.fileTypes = EnumSet.noneOf(FileType.class);
+		this.fileTypes.addAll(Arrays.asList(fileTypes));
+	}
+
+	/**
+	 * @param fileTypes
+	 *            the files to read, at normal thread priority
+	 */
+	public PrefetchPolicy(final FileType... fileTypes) {
+		this(Thread.NORM_PRIORITY, fileTypes);
+	}
+
+	/**
+	 * @return a copy of the files to read
+	 */
+	public Set<FileType> getFileTypes() {
+		return EnumSet.copyOf(this.fileTypes);
+	}
+
+	public int getPriority() {
+		return this.priority;
+	}
+}
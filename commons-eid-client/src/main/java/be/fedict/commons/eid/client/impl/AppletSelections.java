@@ -0,0 +1,82 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.smartcardio.ATR;
+
+/**
+ * Remembers how the BELPIC applet was found to be selected on a given card
+ * (by ATR), so that BeIDCard.selectApplet() issues the right SELECT first, or
+ * none at all for cards that have the applet active right after reset.
+ */
+public final class AppletSelections {
+
+	public enum Selection {
+		/**
+		 * the applet is active after reset, no SELECT needed
+		 */
+		ACTIVE_AFTER_RESET,
+
+		/**
+		 * the applet is selected by the BELPIC AID
+		 */
+		BELPIC_AID,
+
+		/**
+		 * the applet is selected by the applet AID
+		 */
+		APPLET_AID;
+	}
+
+	private static final ConcurrentMap<String, Selection> selections = new ConcurrentHashMap<String, Selection>();
+
+	private AppletSelections() {
+		super();
+	}
+
+	/**
+	 * @param atr
+	 *            the ATR of the card
+	 * @return the selection that worked, or <code>null</code> if not yet known
+	 */
+	public static Selection getSelection(final ATR atr) {
+		return selections.get(HexKeys.getKey(atr));
+	}
+
+	/**
+	 * @param atr
+	 *            the ATR of the card
+	 * @param selection
+	 *            the selection that was found to work
+	 */
+	public static void setSelection(final ATR atr, final Selection selection) {
+		selections.put(HexKeys.getKey(atr), selection);
+	}
+
+	/**
+	 * Forget all learned selections.
+	 */
+	public static void clear() {
+		selections.clear();
+	}
+}
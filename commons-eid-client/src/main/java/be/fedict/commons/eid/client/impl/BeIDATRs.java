@@ -0,0 +1,57 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client.impl;
+
+import java.util.Arrays;
+
+import javax.smartcardio.ATR;
+
+/**
+ * Tells Belgian eID cards from other cards by their ATR.
+ */
+public final class BeIDATRs {
+
+	private static final byte[] ATR_PATTERN = new byte[]{0x3b, (byte) 0x98,
+			0x00, 0x40, 0x00, (byte) 0x00, 0x00, 0x00, 0x01, 0x01, (byte) 0xad,
+			0x13, 0x10,};
+	private static final byte[] ATR_MASK = new byte[]{(byte) 0xff, (byte) 0xff,
+			0x00, (byte) 0xff, 0x00, 0x00, 0x00, 0x00, (byte) 0xff,
+			(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xf0,};
+
+	private BeIDATRs() {
+		super();
+	}
+
+	/**
+	 * @param atr
+	 *            the ATR of the card
+	 * @return whether the card is a Belgian eID card
+	 */
+	public static boolean matches(final ATR atr) {
+		final byte[] atrBytes = atr.getBytes();
+		if (atrBytes.length != ATR_PATTERN.length) {
+			return false;
+		}
+		for (int idx = 0; idx < atrBytes.length; idx++) {
+			atrBytes[idx] &= ATR_MASK[idx];
+		}
+		return Arrays.equals(atrBytes, ATR_PATTERN);
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client.impl;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import be.fedict.commons.eid.client.FileType;
+
+/**
+ * A cache of the files read from a single card insertion, used by BeIDCard
+ * when file caching is enabled. Keeps hit and miss counts. Files are copied
+ * on the way in and out, so callers cannot alter the cached contents.
+ */
+public class BeIDFileCache {
+
+	private final Map<FileType, byte[]> files;
+	private int hits;
+	private int misses;
+
+	public BeIDFileCache() {
+		this.files = new EnumMap<FileType, byte[]>(FileType.class);
+	}
+
+	/**
+	 * @param fileType
+	 *            the file to look up
+	 * @return a copy of the cached file, or <code>null</code> on a miss
+	 */
+	public synchronized byte[] get(final FileType fileType) {
+		final byte[] file = this.files.get(fileType);
+		if (null == file) {
+			this.misses++;
+			return null;
+		}
+		this.hits++;
+		return file.clone();
+	}
+
+	/**
+	 * @param fileType
+	 *            the file to look up
+	 * @return whether the file is cached, without affecting the counts
+	 */
+	public synchronized boolean contains(final FileType fileType) {
+		return this.files.containsKey(fileType);
+	}
+
+	public synchronized void put(final FileType fileType, final byte[] file) {
+		this.files.put(fileType, file.clone());
+	}
+
+	/**
+	 * @return a copy of all cached files, without affecting the counts
+	 */
+	public synchronized Map<FileType, byte[]> getFiles() {
+		final Map<FileType, byte[]> copy = new EnumMap<FileType, byte[]>(
+				FileType.class);
+		for (Map.Entry<FileType, byte[]> entry : this.files.entrySet()) {
+			copy.put(entry.getKey(), entry.getValue().clone());
+		}
+		return copy;
+	}
+
+	/**
+	 * Forget all cached files. The hit and miss counts are kept.
+	 */
+	public synchronized void clear() {
+		this.files.clear();
+	}
+
+	public synchronized int getHits() {
+		return this.hits;
+	}
+
+	public synchronized int getMisses() {
+		return this.misses;
+	}
+}
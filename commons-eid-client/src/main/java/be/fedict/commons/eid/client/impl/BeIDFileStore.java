@@ -0,0 +1,340 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+
+import be.fedict.commons.eid.client.FileType;
+
+/**
+ * A persistent store of the static files read from eID cards, keyed by chip
+ * serial number, so that cards that are presented again do not have to be
+ * read in full. Only files that never change during the lifetime of a card
+ * can be stored: the certificates, by default, and optionally the identity
+ * file and the photo. The identity signature is always stored, the stored
+ * files are only returned if the one read from the card matches it.
+ * <p>
+ * Each card is kept in a file of its own in the given directory, readable by
+ * the owner only where the file system supports it. When the store is first
+ * used, and each time a card is stored, cards that were not seen for longer
+ * than the maximum age are evicted, as are the least recently seen cards once
+ * the total size exceeds the maximum size.
+ */
+public class BeIDFileStore {
+
+	private static final int MAGIC = 0x42654944;
+
+	private static final String SUFFIX = ".beid";
+
+	/*
+	 * the largest file READ BINARY can address, with its 15 bit offset
+	 */
+	private static final int MAXIMUM_FILE_SIZE = 0x8000;
+
+	private static final EnumSet<FileType> PERSISTENT_FILE_TYPES = EnumSet.of(
+			FileType.Identity, FileType.IdentitySignature, FileType.Photo,
+			FileType.AuthentificationCertificate,
+			FileType.NonRepudiationCertificate, FileType.CACertificate,
+			FileType.RootCertificate, FileType.RRNCertificate);
+
+	private static final EnumSet<FileType> DEFAULT_FILE_TYPES = EnumSet.of(
+			FileType.AuthentificationCertificate,
+			FileType.NonRepudiationCertificate, FileType.CACertificate,
+			FileType.RootCertificate, FileType.RRNCertificate);
+
+	private final File directory;
+	private final long maximumSize;
+	private final long maximumAge;
+	private final EnumSet<FileType> fileTypes;
+	private boolean opened;
+
+	/**
+	 * @param directory
+	 *            the directory to keep the files in, created if needed
+	 * @param maximumSize
+	 *            the maximum total size of the store, in bytes
+	 * @param maximumAge
+	 *            the maximum time a card is remembered after it was last
+	 *            seen, in milliseconds
+	 */
+	public BeIDFileStore(final File directory, final long maximumSize,
+			final long maximumAge) {
+		this(directory, maximumSize, maximumAge, DEFAULT_FILE_TYPES);
+	}
+
+	/**
+	 * @param directory
+	 *            the directory to keep the files in, created if needed
+	 * @param maximumSize
+	 *            the maximum total size of the store, in bytes
+	 * @param maximumAge
+	 *            the maximum time a card is remembered after it was last
+	 *            seen, in milliseconds
+	 * @param fileTypes
+	 *            the types of files to store. Types of files that may change
+	 *            during the lifetime of a card, such as the address, are
+	 *            ignored.
+	 */
+	public BeIDFileStore(final File directory, final long maximumSize,
+			final long maximumAge, final EnumSet<FileType> fileTypes) {
+		this.directory = directory;
+		this.maximumSize = maximumSize;
+		this.maximumAge = maximumAge;
+		this.fileTypes = EnumSet.of(FileType.IdentitySignature);
+		for (FileType fileType : fileTypes) {
+			if (PERSISTENT_FILE_TYPES.contains(fileType)) {
+				this.fileTypes.add(fileType);
+			}
+		}
+	}
+
+	/**
+	 * @param fileType
+	 *            the file type
+	 * @return whether files of the given type are kept in the store
+	 */
+	public boolean isStored(final FileType fileType) {
+		return this.fileTypes.contains(fileType);
+	}
+
+	/**
+	 * Load the files stored for a card.
+	 * 
+	 * @param chipSerialNumber
+	 *            the chip serial number, as found in the card data
+	 * @param identitySignature
+	 *            the identity signature file, as read from the card
+	 * @return the stored files, or <code>null</code> if none are stored for
+	 *         the card, or if the stored identity signature does not match
+	 * @throws IOException
+	 */
+	public synchronized Map<FileType, byte[]> load(
+			final byte[] chipSerialNumber, final byte[] identitySignature)
+			throws IOException {
+		open();
+		final File file = getFile(chipSerialNumber);
+		if (file.lastModified() < System.currentTimeMillis()
+				- this.maximumAge) {
+			// not seen for too long, or not there at all
+			file.delete();
+			return null;
+		}
+		final Map<FileType, byte[]> files;
+		try {
+			files = readFiles(file);
+		} catch (final FileNotFoundException fnfex) {
+			return null;
+		} catch (final IOException ioex) {
+			file.delete();
+			throw ioex;
+		}
+		if (!Arrays.equals(identitySignature,
+				files.get(FileType.IdentitySignature))) {
+			// a reissued or altered card, don't trust any of it
+			file.delete();
+			return null;
+		}
+		file.setLastModified(System.currentTimeMillis());
+		return files;
+	}
+
+	/**
+	 * Store the files read from a card, replacing any previously stored files
+	 * for the card. Files of types that are not to be stored are ignored.
+	 * Nothing is stored unless the identity signature is among the files.
+	 * 
+	 * @param chipSerialNumber
+	 *            the chip serial number, as found in the card data
+	 * @param files
+	 *            the files read from the card
+	 * @throws IOException
+	 */
+	public synchronized void store(final byte[] chipSerialNumber,
+			final Map<FileType, byte[]> files) throws IOException {
+		if (!files.containsKey(FileType.IdentitySignature)) {
+			return;
+		}
+		open();
+		if (!this.directory.isDirectory()) {
+			if (!this.directory.mkdirs()) {
+				throw new IOException("cannot create directory: "
+						+ this.directory);
+			}
+			restrictToOwner(this.directory);
+		}
+
+		final File file = getFile(chipSerialNumber);
+		final File temporaryFile = new File(this.directory, file.getName()
+				+ ".tmp");
+		// restrict access before anything is written to it
+		new FileOutputStream(temporaryFile).close();
+		restrictToOwner(temporaryFile);
+		final DataOutputStream outputStream = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+		try {
+			outputStream.writeInt(MAGIC);
+			for (Map.Entry<FileType, byte[]> entry : files.entrySet()) {
+				if (!isStored(entry.getKey())) {
+					continue;
+				}
+				outputStream.writeUTF(entry.getKey().name());
+				outputStream.writeInt(entry.getValue().length);
+				outputStream.write(entry.getValue());
+			}
+		} finally {
+			outputStream.close();
+		}
+		if (!temporaryFile.renameTo(file)) {
+			file.delete();
+			if (!temporaryFile.renameTo(file)) {
+				temporaryFile.delete();
+				throw new IOException("cannot rename to: " + file);
+			}
+		}
+		evict();
+	}
+
+	/**
+	 * Forget all stored cards.
+	 */
+	public synchronized void clear() {
+		for (File file : listFiles()) {
+			file.delete();
+		}
+	}
+
+	/*
+	 * Evict old cards when the store is first used, as it may only be read
+	 * from for a long time.
+	 */
+	private void open() {
+		if (this.opened) {
+			return;
+		}
+		this.opened = true;
+		evict();
+	}
+
+	private static void restrictToOwner(final File file) {
+		file.setReadable(false, false);
+		file.setReadable(true, true);
+		file.setWritable(false, false);
+		file.setWritable(true, true);
+		if (file.isDirectory()) {
+			file.setExecutable(false, false);
+			file.setExecutable(true, true);
+		}
+	}
+
+	private void evict() {
+		final File[] files = listFiles();
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(final File file1, final File file2) {
+				final long lastModified1 = file1.lastModified();
+				final long lastModified2 = file2.lastModified();
+				return lastModified1 < lastModified2 ? 1
+						: (lastModified1 == lastModified2 ? 0 : -1);
+			}
+		});
+
+		// most recently seen first
+		final long oldest = System.currentTimeMillis() - this.maximumAge;
+		long size = 0;
+		for (File file : files) {
+			if (file.lastModified() < oldest) {
+				file.delete();
+				continue;
+			}
+			final long length = file.length();
+			if (size + length > this.maximumSize) {
+				file.delete();
+				continue;
+			}
+			size += length;
+		}
+	}
+
+	private File[] listFiles() {
+		final File[] files = this.directory.listFiles();
+		if (null == files) {
+			return new File[0];
+		}
+		int count = 0;
+		for (File file : files) {
+			if (file.getName().endsWith(SUFFIX)) {
+				files[count++] = file;
+			}
+		}
+		return Arrays.copyOf(files, count);
+	}
+
+	private File getFile(final byte[] chipSerialNumber) {
+		return new File(this.directory, HexKeys.toHex(chipSerialNumber)
+				+ SUFFIX);
+	}
+
+	private static Map<FileType, byte[]> readFiles(final File file)
+			throws IOException {
+		final DataInputStream inputStream = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (MAGIC != inputStream.readInt()) {
+				throw new IOException("not a card file store: " + file);
+			}
+			final Map<FileType, byte[]> files = new EnumMap<FileType, byte[]>(
+					FileType.class);
+			long remaining = file.length() - 4;
+			while (inputStream.available() > 0) {
+				final String name = inputStream.readUTF();
+				final FileType fileType = FileType.valueOf(name);
+				final int length = inputStream.readInt();
+				// the names are plain ASCII, one byte per character
+				remaining -= 2 + name.length() + 4;
+				if (length < 0 || length > MAXIMUM_FILE_SIZE
+						|| length > remaining) {
+					throw new IOException("corrupt card file store: " + file);
+				}
+				final byte[] data = new byte[length];
+				inputStream.readFully(data);
+				remaining -= length;
+				files.put(fileType, data);
+			}
+			return files;
+		} catch (final IllegalArgumentException iaex) {
+			throw new IOException("corrupt card file store: " + file);
+		} finally {
+			inputStream.close();
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A simple pool of ByteBuffers, to be used with
+ * BeIDCard.readFile(FileType, ByteBufferPool). Applications that read many
+ * cards can reuse the same (heap or direct) buffers for every file they read,
+ * instead of allocating new arrays for each of them.
+ */
+public class ByteBufferPool {
+
+	private static final int DEFAULT_MAX_POOLED_BUFFERS = 16;
+
+	private final boolean direct;
+	private final int maxPooledBuffers;
+	private final LinkedList<ByteBuffer> buffers;
+
+	/**
+	 * Instantiate a pool of heap ByteBuffers.
+	 */
+	public ByteBufferPool() {
+		this(false, DEFAULT_MAX_POOLED_BUFFERS);
+	}
+
+	/**
+	 * Instantiate a pool of ByteBuffers.
+	 * 
+	 * @param direct
+	 *            <code>true</code> to allocate direct ByteBuffers.
+	 * @param maxPooledBuffers
+	 *            the maximum number of released buffers kept for reuse.
+	 */
+	public ByteBufferPool(final boolean direct, final int maxPooledBuffers) {
+		this.direct = direct;
+		this.maxPooledBuffers = maxPooledBuffers;
+		this.buffers = new LinkedList<ByteBuffer>();
+	}
+
+	/**
+	 * Take a cleared buffer from the pool, or allocate a new one if no pooled
+	 * buffer is large enough.
+	 * 
+	 * @param minimumCapacity
+	 *            the minimum capacity of the buffer
+	 * @return a buffer with at least minimumCapacity bytes remaining
+	 */
+	public ByteBuffer acquire(final int minimumCapacity) {
+		synchronized (this.buffers) {
+			ByteBuffer bestFit = null;
+			for (ByteBuffer buffer : this.buffers) {
+				if (buffer.capacity() >= minimumCapacity
+						&& (null == bestFit || buffer.capacity() < bestFit
+								.capacity())) {
+					bestFit = buffer;
+				}
+			}
+			if (null != bestFit) {
+				final Iterator<ByteBuffer> iterator = this.buffers.iterator();
+				while (iterator.hasNext()) {
+					if (iterator.next() == bestFit) {
+						iterator.remove();
+						break;
+					}
+				}
+				bestFit.clear();
+				return bestFit;
+			}
+		}
+
+		if (this.direct) {
+			return ByteBuffer.allocateDirect(minimumCapacity);
+		}
+		return ByteBuffer.allocate(minimumCapacity);
+	}
+
+	/**
+	 * Return a buffer to the pool. The buffer should no longer be used by the
+	 * caller afterwards.
+	 * 
+	 * @param buffer
+	 *            the buffer to return
+	 */
+	public void release(final ByteBuffer buffer) {
+		if (null == buffer || buffer.isDirect() != this.direct) {
+			return;
+		}
+		buffer.clear();
+		synchronized (this.buffers) {
+			if (this.buffers.size() < this.maxPooledBuffers) {
+				this.buffers.addFirst(buffer);
+			}
+		}
+	}
+
+	/**
+	 * @return whether this pool allocates direct ByteBuffers
+	 */
+	public boolean isDirect() {
+		return this.direct;
+	}
+}
@@ -139,6 +139,16 @@ public class CCID {
 		this.features = new EnumMap<FEATURE, Integer>(FEATURE.class);
 		this.usesPPDU = false;
 
+		final CCIDFeatureCache.Features cachedFeatures = null == cardTerminal
+				? null
+				: CCIDFeatureCache.get(cardTerminal.getName());
+		if (null != cachedFeatures) {
+			this.logger.debug("CCID FEATURES known for this card terminal");
+			this.features.putAll(cachedFeatures.getFeatures());
+			this.usesPPDU = cachedFeatures.usesPPDU();
+			return;
+		}
+
 		final boolean onMSWindows = (System.getProperty("os.name") != null && System
 				.getProperty("os.name").startsWith("Windows"));
 
@@ -151,6 +161,11 @@ public class CCID {
 				// Windows 10 work-around
 				getFeaturesUsingPPDU(card);
 			}
+			// only remember features that were determined without errors
+			if (null != cardTerminal) {
+				CCIDFeatureCache.put(cardTerminal.getName(), this.features,
+						this.usesPPDU);
+			}
 		} catch (final CardException cexInNormal) {
 			this.logger
 					.debug("GET_FEATURES over standard control command failed: "
@@ -160,6 +175,10 @@ public class CCID {
 						.debug("Attempting To get CCID FEATURES using Pseudo-APDU Fallback Strategy");
 				try {
 					getFeaturesUsingPPDU(card);
+					if (this.usesPPDU) {
+						CCIDFeatureCache.put(cardTerminal.getName(),
+								this.features, this.usesPPDU);
+					}
 				} catch (CardException cexInPseudo) {
 					this.logger
 							.error("Pseudo-APDU Fallback strategy failed as well: "
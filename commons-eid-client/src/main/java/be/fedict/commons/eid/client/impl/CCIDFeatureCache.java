@@ -0,0 +1,89 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client.impl;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import be.fedict.commons.eid.client.impl.CCID.FEATURE;
+
+/**
+ * Remembers the CCID features found for a given card reader (by name), so
+ * that the GET_FEATURES control commands (and the PPDU probe) only have to be
+ * issued for the first card inserted into a reader, rather than for every
+ * card. CardAndTerminalManager invalidates a reader's features when it is
+ * detached.
+ */
+public final class CCIDFeatureCache {
+
+	private static final ConcurrentMap<String, Features> features = new ConcurrentHashMap<String, Features>();
+
+	private CCIDFeatureCache() {
+		super();
+	}
+
+	/**
+	 * Forget the features found for a card reader.
+	 * 
+	 * @param cardTerminalName
+	 *            the name of the card reader
+	 */
+	public static void invalidate(final String cardTerminalName) {
+		features.remove(cardTerminalName);
+	}
+
+	/**
+	 * Forget the features found for all card readers.
+	 */
+	public static void clear() {
+		features.clear();
+	}
+
+	static Features get(final String cardTerminalName) {
+		return features.get(cardTerminalName);
+	}
+
+	static void put(final String cardTerminalName,
+			final EnumMap<FEATURE, Integer> readerFeatures,
+			final boolean usesPPDU) {
+		features.put(cardTerminalName, new Features(readerFeatures, usesPPDU));
+	}
+
+	static final class Features {
+		private final Map<FEATURE, Integer> features;
+		private final boolean usesPPDU;
+
+		private Features(final EnumMap<FEATURE, Integer> features,
+				final boolean usesPPDU) {
+			this.features = new EnumMap<FEATURE, Integer>(features);
+			this.usesPPDU = usesPPDU;
+		}
+
+		Map<FEATURE, Integer> getFeatures() {
+			return this.features;
+		}
+
+		boolean usesPPDU() {
+			return this.usesPPDU;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client.impl;
+
+/**
+ * Keeps track of the security state of an eID card, as far as it is known to
+ * the BeIDCard instance talking to it: the key and algorithm selected in the
+ * security environment, and whether the PIN has been verified.
+ * <p>
+ * The selected key, and the PIN not being verified, are only known for as
+ * long as the card is held exclusively, as other processes may select other
+ * keys or verify the PIN in between. Both are forgotten on released(). A
+ * verified PIN may survive, as the card is then still asked for the signature
+ * first, and a PIN verification only follows if the card refuses. Everything
+ * is forgotten on reset().
+ */
+public class CardSecurityState {
+
+	public enum PINState {
+		UNKNOWN, VERIFIED, NOT_VERIFIED
+	}
+
+	private static final int NONE = -1;
+
+	private int algorithmReference;
+	private int keyId;
+	private PINState pinState;
+
+	public CardSecurityState() {
+		this.reset();
+	}
+
+	/**
+	 * @param algorithmReference
+	 *            the algorithm reference
+	 * @param keyId
+	 *            the private key reference
+	 * @return whether the given algorithm and key are known to be selected
+	 */
+	public synchronized boolean isKeySelected(final byte algorithmReference,
+			final byte keyId) {
+		return (algorithmReference & 0xff) == this.algorithmReference
+				&& (keyId & 0xff) == this.keyId;
+	}
+
+	/**
+	 * Record a successful MSE SET of the given algorithm and key.
+	 */
+	public synchronized void keySelected(final byte algorithmReference,
+			final byte keyId) {
+		this.algorithmReference = algorithmReference & 0xff;
+		this.keyId = keyId & 0xff;
+	}
+
+	/**
+	 * Forget the selected key, for instance because the card is no longer held
+	 * exclusively.
+	 */
+	public synchronized void forgetSelectedKey() {
+		this.algorithmReference = NONE;
+		this.keyId = NONE;
+	}
+
+	public synchronized PINState getPINState() {
+		return this.pinState;
+	}
+
+	public synchronized void pinVerified() {
+		this.pinState = PINState.VERIFIED;
+	}
+
+	public synchronized void pinNotVerified() {
+		this.pinState = PINState.NOT_VERIFIED;
+	}
+
+	/**
+	 * Forget what is only known while the card is held exclusively, as the
+	 * card is released to other processes.
+	 */
+	public synchronized void released() {
+		this.forgetSelectedKey();
+		if (PINState.NOT_VERIFIED == this.pinState) {
+			this.pinState = PINState.UNKNOWN;
+		}
+	}
+
+	/**
+	 * Forget everything known about the security state of the card.
+	 */
+	public synchronized void reset() {
+		this.forgetSelectedKey();
+		this.pinState = PINState.UNKNOWN;
+	}
+}
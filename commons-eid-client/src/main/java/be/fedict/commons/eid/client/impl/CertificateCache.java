@@ -0,0 +1,196 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client.impl;
+
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
+
+import be.fedict.commons.eid.client.CertificateInfo;
+
+/**
+ * A cache of the CA and root certificates found on eID cards. These are the
+ * same for millions of cards, so BeIDCard only peeks at the start of a card's
+ * copy to recognise it by its issuer and serial number, and only reads it in
+ * full when it is not cached yet. The least recently used certificates are
+ * evicted once the maximum size is reached.
+ * <p>
+ * As a card is recognised by what it claims about its certificate, only
+ * certificates that can be trusted are cached: the ones added with
+ * addTrustedCertificate(), typically the eID root certificates, and the ones
+ * whose signature verifies with the key of a trusted or cached certificate
+ * authority. A card presenting a forged certificate then gets the genuine
+ * one. Nothing is cached until trusted certificates have been added.
+ */
+public class CertificateCache {
+
+	private static final int DEFAULT_MAXIMUM_SIZE = 64;
+
+	private static final CertificateCache INSTANCE = new CertificateCache(
+			DEFAULT_MAXIMUM_SIZE);
+
+	private final Map<String, X509Certificate> trustedCertificates;
+	private final Map<String, X509Certificate> certificates;
+	private int hits;
+	private int misses;
+
+	/**
+	 * @param maximumSize
+	 *            the maximum number of certificates to keep
+	 */
+	public CertificateCache(final int maximumSize) {
+		this.trustedCertificates = new HashMap<String, X509Certificate>();
+		this.certificates = new LinkedHashMap<String, X509Certificate>(16,
+				0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<String, X509Certificate> eldest) {
+				return size() > maximumSize;
+			}
+		};
+	}
+
+	/**
+	 * @return the process-wide instance, for BeIDCards configured with
+	 *         setCertificateCache() to share it
+	 */
+	public static CertificateCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param certificateInfo
+	 *            the information peeked from the card's copy of the
+	 *            certificate
+	 * @return the cached certificate, or <code>null</code> on a miss
+	 */
+	public synchronized X509Certificate get(
+			final CertificateInfo certificateInfo) {
+		final String key = getKey(certificateInfo.getIssuer(),
+				certificateInfo.getSerialNumber().toString(16));
+		X509Certificate certificate = this.trustedCertificates.get(key);
+		if (null == certificate) {
+			certificate = this.certificates.get(key);
+		}
+		if (null == certificate
+				|| !certificate.getSubjectX500Principal().equals(
+						certificateInfo.getSubject())
+				|| !certificate.getNotBefore().equals(
+						certificateInfo.getNotBefore())
+				|| !certificate.getNotAfter().equals(
+						certificateInfo.getNotAfter())) {
+			this.misses++;
+			return null;
+		}
+		this.hits++;
+		return certificate;
+	}
+
+	/**
+	 * Trust a certificate, so that it is cached, and that the certificates it
+	 * issued can be cached. It is kept until the cache is cleared.
+	 * 
+	 * @param certificate
+	 *            the certificate, obtained from a trusted source rather than
+	 *            from a card
+	 */
+	public synchronized void addTrustedCertificate(
+			final X509Certificate certificate) {
+		this.trustedCertificates.put(getKey(certificate), certificate);
+	}
+
+	/**
+	 * Cache a certificate read from a card, if it is trusted, or if it was
+	 * issued by a trusted or cached certificate authority.
+	 * 
+	 * @param certificate
+	 *            the certificate
+	 * @return whether the certificate is cached
+	 */
+	public synchronized boolean put(final X509Certificate certificate) {
+		final String key = getKey(certificate);
+		final X509Certificate trustedCertificate = this.trustedCertificates
+				.get(key);
+		if (null != trustedCertificate) {
+			return trustedCertificate.equals(certificate);
+		}
+		if (!isIssuedByKnownAuthority(certificate)) {
+			return false;
+		}
+		this.certificates.put(key, certificate);
+		return true;
+	}
+
+	public synchronized void clear() {
+		this.trustedCertificates.clear();
+		this.certificates.clear();
+	}
+
+	public synchronized int size() {
+		return this.trustedCertificates.size() + this.certificates.size();
+	}
+
+	public synchronized int getHits() {
+		return this.hits;
+	}
+
+	public synchronized int getMisses() {
+		return this.misses;
+	}
+
+	private boolean isIssuedByKnownAuthority(final X509Certificate certificate) {
+		return isIssuedByOneOf(certificate, this.trustedCertificates)
+				|| isIssuedByOneOf(certificate, this.certificates);
+	}
+
+	private static boolean isIssuedByOneOf(final X509Certificate certificate,
+			final Map<String, X509Certificate> authorities) {
+		final X500Principal issuer = certificate.getIssuerX500Principal();
+		for (X509Certificate authority : authorities.values()) {
+			if (-1 == authority.getBasicConstraints()
+					|| !issuer.equals(authority.getSubjectX500Principal())) {
+				continue;
+			}
+			try {
+				certificate.verify(authority.getPublicKey());
+				return true;
+			} catch (final GeneralSecurityException gsex) {
+				// not issued by this one
+			}
+		}
+		return false;
+	}
+
+	private static String getKey(final X509Certificate certificate) {
+		return getKey(certificate.getIssuerX500Principal(), certificate
+				.getSerialNumber().toString(16));
+	}
+
+	private static String getKey(final X500Principal issuer,
+			final String serialNumber) {
+		return issuer.getName(X500Principal.CANONICAL) + "|" + serialNumber;
+	}
+}
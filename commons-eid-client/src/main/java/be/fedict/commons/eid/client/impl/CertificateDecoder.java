@@ -0,0 +1,123 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client.impl;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes certificates on a small pool of daemon threads, so that BeIDCard can
+ * read the next certificate from the card while the previous one is being
+ * decoded. Each thread has a CertificateFactory of its own.
+ */
+public final class CertificateDecoder {
+
+	private static final CertificateDecoder INSTANCE = new CertificateDecoder(
+			Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+	private final ExecutorService executor;
+
+	private final ThreadLocal<CertificateFactory> certificateFactories;
+
+	/**
+	 * @param threads
+	 *            the maximum number of decoding threads
+	 */
+	public CertificateDecoder(final int threads) {
+		final ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(
+				threads, threads, 30L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable,
+								"CertificateDecoder");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		threadPoolExecutor.allowCoreThreadTimeOut(true);
+		this.executor = threadPoolExecutor;
+		this.certificateFactories = new ThreadLocal<CertificateFactory>();
+	}
+
+	/**
+	 * @return the process-wide instance used by BeIDCard unless configured
+	 *         otherwise
+	 */
+	public static CertificateDecoder getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Decode a DER encoded certificate in the background. Trailing bytes, like
+	 * the padding of the certificate files on the card, are ignored.
+	 * 
+	 * @param encodedCertificate
+	 *            the encoded certificate
+	 * @param certificateCache
+	 *            the cache to add the decoded certificate to, or
+	 *            <code>null</code>
+	 * @return the future decoded certificate. Its get() throws an
+	 *         ExecutionException caused by a CertificateException if the
+	 *         certificate could not be decoded.
+	 */
+	public Future<X509Certificate> decode(final byte[] encodedCertificate,
+			final CertificateCache certificateCache) {
+		return this.executor.submit(new Callable<X509Certificate>() {
+			@Override
+			public X509Certificate call() throws CertificateException {
+				final X509Certificate certificate = (X509Certificate) getCertificateFactory()
+						.generateCertificate(
+								new ByteArrayInputStream(encodedCertificate));
+				if (null != certificateCache) {
+					certificateCache.put(certificate);
+				}
+				return certificate;
+			}
+		});
+	}
+
+	/**
+	 * Stop the decoding threads. Only needed for instances other than the
+	 * process-wide one.
+	 */
+	public void shutdown() {
+		this.executor.shutdown();
+	}
+
+	private CertificateFactory getCertificateFactory()
+			throws CertificateException {
+		CertificateFactory certificateFactory = this.certificateFactories.get();
+		if (null == certificateFactory) {
+			certificateFactory = CertificateFactory.getInstance("X.509");
+			this.certificateFactories.set(certificateFactory);
+		}
+		return certificateFactory;
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.cert.CertificateException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import javax.security.auth.x500.X500Principal;
+
+import be.fedict.commons.eid.client.CertificateInfo;
+
+/**
+ * Parses the leading fields of a DER encoded X.509 certificate, up to and
+ * including the subject of the TBSCertificate, consuming no more of the input
+ * stream than required to do so.
+ */
+public final class CertificateInfoParser {
+
+	private static final int SEQUENCE = 0x30;
+	private static final int INTEGER = 0x02;
+	private static final int UTC_TIME = 0x17;
+	private static final int GENERALIZED_TIME = 0x18;
+	private static final int EXPLICIT_VERSION = 0xA0;
+
+	private CertificateInfoParser() {
+		super();
+	}
+
+	/**
+	 * @param inputStream
+	 *            the stream, positioned at the start of the certificate
+	 * @return the serial number, issuer, validity and subject of the
+	 *         certificate
+	 * @throws CertificateException
+	 *             if the data does not look like a certificate
+	 * @throws IOException
+	 *             if the stream could not be read
+	 */
+	public static CertificateInfo parse(final InputStream inputStream)
+			throws CertificateException, IOException {
+		// Certificate and TBSCertificate
+		readHeader(inputStream, SEQUENCE);
+		readHeader(inputStream, SEQUENCE);
+
+		int tag = readByte(inputStream);
+		if (EXPLICIT_VERSION == tag) {
+			readContent(inputStream, readLength(inputStream));
+			tag = readByte(inputStream);
+		}
+		checkTag(INTEGER, tag);
+		final BigInteger serialNumber = new BigInteger(readContent(
+				inputStream, readLength(inputStream)));
+
+		// signature algorithm
+		readElement(inputStream, SEQUENCE);
+
+		final X500Principal issuer = readName(inputStream);
+
+		readHeader(inputStream, SEQUENCE);
+		final Date notBefore = readTime(inputStream);
+		final Date notAfter = readTime(inputStream);
+
+		final X500Principal subject = readName(inputStream);
+
+		return new CertificateInfo(serialNumber, issuer, notBefore, notAfter,
+				subject);
+	}
+
+	private static X500Principal readName(final InputStream inputStream)
+			throws CertificateException, IOException {
+		final byte[] name = readElement(inputStream, SEQUENCE);
+		try {
+			return new X500Principal(name);
+		} catch (final IllegalArgumentException iaex) {
+			throw new CertificateException("invalid name: "
+					+ iaex.getMessage(), iaex);
+		}
+	}
+
+	private static Date readTime(final InputStream inputStream)
+			throws CertificateException, IOException {
+		final int tag = readByte(inputStream);
+		final String time = new String(readContent(inputStream,
+				readLength(inputStream)), "US-ASCII");
+		final SimpleDateFormat dateFormat;
+		if (UTC_TIME == tag) {
+			dateFormat = new SimpleDateFormat("yyMMddHHmmss'Z'");
+			// RFC 5280: two-digit years from 50 onwards are 19xx
+			final GregorianCalendar centuryStart = new GregorianCalendar(
+					TimeZone.getTimeZone("UTC"));
+			centuryStart.clear();
+			centuryStart.set(1950, 0, 1);
+			dateFormat.set2DigitYearStart(centuryStart.getTime());
+		} else if (GENERALIZED_TIME == tag) {
+			dateFormat = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+		} else {
+			throw new CertificateException("expected a time, got tag 0x"
+					+ Integer.toHexString(tag));
+		}
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		dateFormat.setLenient(false);
+		try {
+			return dateFormat.parse(time);
+		} catch (final ParseException pex) {
+			throw new CertificateException("invalid time: " + time);
+		}
+	}
+
+	/*
+	 * read a complete element, and return its full encoding
+	 */
+	private static byte[] readElement(final InputStream inputStream,
+			final int expectedTag) throws CertificateException, IOException {
+		checkTag(expectedTag, readByte(inputStream));
+		final int length = readLength(inputStream);
+		final byte[] content = readContent(inputStream, length);
+		final byte[] encodedLength = encodeLength(length);
+		final byte[] encoded = new byte[1 + encodedLength.length + length];
+		encoded[0] = (byte) expectedTag;
+		System.arraycopy(encodedLength, 0, encoded, 1, encodedLength.length);
+		System.arraycopy(content, 0, encoded, 1 + encodedLength.length,
+				length);
+		return encoded;
+	}
+
+	private static void readHeader(final InputStream inputStream,
+			final int expectedTag) throws CertificateException, IOException {
+		checkTag(expectedTag, readByte(inputStream));
+		readLength(inputStream);
+	}
+
+	private static void checkTag(final int expectedTag, final int tag)
+			throws CertificateException {
+		if (expectedTag != tag) {
+			throw new CertificateException("expected tag 0x"
+					+ Integer.toHexString(expectedTag) + ", got tag 0x"
+					+ Integer.toHexString(tag));
+		}
+	}
+
+	private static int readByte(final InputStream inputStream)
+			throws IOException {
+		final int tag = inputStream.read();
+		if (-1 == tag) {
+			throw new EOFException();
+		}
+		return tag;
+	}
+
+	private static int readLength(final InputStream inputStream)
+			throws CertificateException, IOException {
+		final int firstByte = readByte(inputStream);
+		if (0 == (firstByte & 0x80)) {
+			return firstByte;
+		}
+		final int lengthBytes = firstByte & 0x7f;
+		if (0 == lengthBytes || lengthBytes > 3) {
+			throw new CertificateException("unsupported DER length");
+		}
+		int length = 0;
+		for (int idx = 0; idx < lengthBytes; idx++) {
+			length = (length << 8) | readByte(inputStream);
+		}
+		return length;
+	}
+
+	private static byte[] encodeLength(final int length) {
+		if (length < 0x80) {
+			return new byte[]{(byte) length};
+		}
+		if (length < 0x100) {
+			return new byte[]{(byte) 0x81, (byte) length};
+		}
+		if (length < 0x10000) {
+			return new byte[]{(byte) 0x82, (byte) (length >> 8),
+					(byte) length};
+		}
+		return new byte[]{(byte) 0x83, (byte) (length >> 16),
+				(byte) (length >> 8), (byte) length};
+	}
+
+	private static byte[] readContent(final InputStream inputStream,
+			final int length) throws IOException {
+		final byte[] content = new byte[length];
+		int offset = 0;
+		while (offset < length) {
+			final int count = inputStream.read(content, offset, length
+					- offset);
+			if (-1 == count) {
+				throw new EOFException();
+			}
+			offset += count;
+		}
+		return content;
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client.impl;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.smartcardio.ATR;
+
+import be.fedict.commons.eid.client.spi.PacingPolicy;
+
+/**
+ * The default PacingPolicy. Fixed delays are only applied to the card
+ * generations and card readers for which a rule has been registered. The
+ * eID v1.0 and v1.1 cards, that require a pause of 10 ms after a 0x6C status
+ * word, are registered by default.
+ * <p>
+ * Additionally, the policy backs off whenever a SCARD_E_SHARING_VIOLATION is
+ * actually observed for a card in a given card reader: the delay after SELECT
+ * FILE (and before resending the failed command) starts at 20 ms and doubles
+ * with each further sharing violation, up to 320 ms. It is halved again after
+ * every 16 successful SELECT FILE commands, so readers that only occasionally
+ * need it do not stay slow forever.
+ */
+public class DefaultPacingPolicy implements PacingPolicy {
+
+	private static final long INITIAL_BACKOFF = 20;
+	private static final long MAXIMUM_BACKOFF = 320;
+	private static final int SUCCESSES_BEFORE_DECAY = 16;
+
+	/*
+	 * 3B 98 xx 40 0A A5 03 01 01 01 AD 13 10 (v1.0) and ... AD 13 11 (v1.1):
+	 * the ATRs of the first generation eID cards. Later cards with the same
+	 * historical bytes have FF instead of 0A.
+	 */
+	private static final byte[] V1_ATR_PATTERN = new byte[]{0x3b,
+			(byte) 0x98, 0x13, 0x40, 0x0a, (byte) 0xa5, 0x03, 0x01, 0x01,
+			0x01, (byte) 0xad, 0x13, 0x10};
+	private static final byte[] V1_ATR_MASK = new byte[]{(byte) 0xff,
+			(byte) 0xff, 0x00, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+			(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+			(byte) 0xff, (byte) 0xfe};
+
+	private static final DefaultPacingPolicy INSTANCE = new DefaultPacingPolicy();
+
+	private final List<Rule> rules;
+	private final ConcurrentMap<String, Backoff> backoffs;
+
+	public DefaultPacingPolicy() {
+		this.rules = new CopyOnWriteArrayList<Rule>();
+		this.backoffs = new ConcurrentHashMap<String, Backoff>();
+		this.addRule(V1_ATR_PATTERN, V1_ATR_MASK, null, 0, 10);
+	}
+
+	/**
+	 * @return the process-wide instance used by BeIDCard unless configured
+	 *         otherwise
+	 */
+	public static DefaultPacingPolicy getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Register fixed delays for a card generation and/or card reader. When
+	 * several rules match, the longest delays apply.
+	 * 
+	 * @param atrPattern
+	 *            the ATR to match, or <code>null</code> to match any card
+	 * @param atrMask
+	 *            the bits of the ATR to compare, or <code>null</code> to
+	 *            compare all of them
+	 * @param terminalNameFragment
+	 *            part of the card reader name to match, or <code>null</code>
+	 *            to match any card reader
+	 * @param selectFileDelay
+	 *            the delay after SELECT FILE, in milliseconds
+	 * @param wrongLengthDelay
+	 *            the delay after a 0x6C status word, in milliseconds
+	 */
+	public void addRule(final byte[] atrPattern, final byte[] atrMask,
+			final String terminalNameFragment, final long selectFileDelay,
+			final long wrongLengthDelay) {
+		this.rules.add(new Rule(atrPattern, atrMask, terminalNameFragment,
+				selectFileDelay, wrongLengthDelay));
+	}
+
+	/**
+	 * Forget all registered rules, including the default ones, and all
+	 * observed sharing violations.
+	 */
+	public void clear() {
+		this.rules.clear();
+		this.backoffs.clear();
+	}
+
+	@Override
+	public long getSelectFileDelay(final ATR atr, final String terminalName) {
+		long delay = 0;
+		for (Rule rule : this.rules) {
+			if (rule.matches(atr, terminalName)) {
+				delay = Math.max(delay, rule.selectFileDelay);
+			}
+		}
+		if (!this.backoffs.isEmpty()) {
+			final Backoff backoff = this.backoffs.get(HexKeys.getKey(atr,
+					terminalName));
+			if (null != backoff) {
+				delay = Math.max(delay, backoff.getDelay());
+			}
+		}
+		return delay;
+	}
+
+	@Override
+	public long getWrongLengthDelay(final ATR atr, final String terminalName) {
+		long delay = 0;
+		for (Rule rule : this.rules) {
+			if (rule.matches(atr, terminalName)) {
+				delay = Math.max(delay, rule.wrongLengthDelay);
+			}
+		}
+		return delay;
+	}
+
+	@Override
+	public long sharingViolation(final ATR atr, final String terminalName) {
+		final String key = HexKeys.getKey(atr, terminalName);
+		Backoff backoff = this.backoffs.get(key);
+		if (null == backoff) {
+			final Backoff newBackoff = new Backoff();
+			backoff = this.backoffs.putIfAbsent(key, newBackoff);
+			if (null == backoff) {
+				backoff = newBackoff;
+			}
+		}
+		return backoff.increase();
+	}
+
+	@Override
+	public void selectFileSucceeded(final ATR atr, final String terminalName) {
+		if (this.backoffs.isEmpty()) {
+			return;
+		}
+		final String key = HexKeys.getKey(atr, terminalName);
+		final Backoff backoff = this.backoffs.get(key);
+		if (null != backoff && backoff.decay()) {
+			this.backoffs.remove(key, backoff);
+		}
+	}
+
+	private static final class Rule {
+		private final byte[] atrPattern;
+		private final byte[] atrMask;
+		private final String terminalNameFragment;
+		private final long selectFileDelay;
+		private final long wrongLengthDelay;
+
+		public Rule(final byte[] atrPattern, final byte[] atrMask,
+				final String terminalNameFragment, final long selectFileDelay,
+				final long wrongLengthDelay) {
+			this.atrPattern = atrPattern;
+			this.atrMask = atrMask;
+			this.terminalNameFragment = terminalNameFragment;
+			this.selectFileDelay = selectFileDelay;
+			this.wrongLengthDelay = wrongLengthDelay;
+		}
+
+		public boolean matches(final ATR atr, final String terminalName) {
+			if (null != this.terminalNameFragment
+					&& (null == terminalName || !terminalName
+							.contains(this.terminalNameFragment))) {
+				return false;
+			}
+			if (null == this.atrPattern) {
+				return true;
+			}
+			final byte[] atrBytes = atr.getBytes();
+			if (atrBytes.length != this.atrPattern.length) {
+				return false;
+			}
+			for (int idx = 0; idx < atrBytes.length; idx++) {
+				final int mask = null == this.atrMask ? 0xff
+						: this.atrMask[idx] & 0xff;
+				if ((atrBytes[idx] & mask) != (this.atrPattern[idx] & mask)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static final class Backoff {
+		private long delay;
+		private int successes;
+
+		public synchronized long getDelay() {
+			return this.delay;
+		}
+
+		public synchronized long increase() {
+			this.delay = Math.min(Math.max(this.delay * 2, INITIAL_BACKOFF),
+					MAXIMUM_BACKOFF);
+			this.successes = 0;
+			return this.delay;
+		}
+
+		/*
+		 * returns true when the backoff has decayed completely
+		 */
+		public synchronized boolean decay() {
+			if (++this.successes < SUCCESSES_BEFORE_DECAY) {
+				return false;
+			}
+			this.successes = 0;
+			this.delay /= 2;
+			if (this.delay < INITIAL_BACKOFF / 2) {
+				this.delay = 0;
+			}
+			return 0 == this.delay;
+		}
+	}
+}
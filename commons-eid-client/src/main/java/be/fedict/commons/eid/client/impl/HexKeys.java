@@ -0,0 +1,78 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client.impl;
+
+import javax.smartcardio.ATR;
+
+/**
+ * Builds the string keys under which what was learned about a card (by ATR)
+ * and card reader (by name) is remembered.
+ */
+public final class HexKeys {
+
+	private HexKeys() {
+		super();
+	}
+
+	/**
+	 * @param bytes
+	 *            the bytes to encode
+	 * @return the bytes as lowercase hexadecimal digits, two per byte
+	 */
+	public static String toHex(final byte[] bytes) {
+		final StringBuilder hex = new StringBuilder(bytes.length * 2);
+		appendHex(hex, bytes);
+		return hex.toString();
+	}
+
+	/**
+	 * @param atr
+	 *            the ATR of the card
+	 * @return the key for the card
+	 */
+	public static String getKey(final ATR atr) {
+		return toHex(atr.getBytes());
+	}
+
+	/**
+	 * @param atr
+	 *            the ATR of the card
+	 * @param terminalName
+	 *            the name of the card reader, may be <code>null</code>
+	 * @return the key for the card in the card reader
+	 */
+	public static String getKey(final ATR atr, final String terminalName) {
+		final StringBuilder key = new StringBuilder();
+		appendHex(key, atr.getBytes());
+		key.append('|');
+		if (null != terminalName) {
+			key.append(terminalName);
+		}
+		return key.toString();
+	}
+
+	private static void appendHex(final StringBuilder builder,
+			final byte[] bytes) {
+		for (byte value : bytes) {
+			builder.append(Integer.toHexString((value & 0xff) | 0x100)
+					.substring(1));
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import be.fedict.commons.eid.client.ListenerOverflowPolicy;
+import be.fedict.commons.eid.client.spi.Logger;
+
+/**
+ * The listeners registered for one kind of events. Adding and removing a
+ * listener copies the registry, delivering an event to the listeners does not
+ * need a lock. A listener added while a queue size is set gets its own
+ * bounded event queue and thread, so that it holds up neither the thread
+ * delivering the events nor the other listeners. Other listeners are called
+ * on the thread delivering the events.
+ * 
+ * @param <L>
+ *            the listener type
+ */
+public final class ListenerRegistry<L> {
+
+	private static final long KEEP_ALIVE_SECONDS = 30L;
+
+	private final String threadName;
+	private final Logger logger;
+	private final CopyOnWriteArrayList<Registration<L>> registrations;
+	private volatile int queueSize;
+	private volatile ListenerOverflowPolicy overflowPolicy;
+
+	/**
+	 * A call to one of the methods of a listener.
+	 * 
+	 * @param <L>
+	 *            the listener type
+	 */
+	public interface Call<L> {
+		void call(L listener) throws Exception;
+	}
+
+	/**
+	 * @param threadName
+	 *            the name of the threads delivering queued events
+	 * @param logger
+	 *            the logger to report failing listeners and discarded events
+	 *            to
+	 */
+	public ListenerRegistry(final String threadName, final Logger logger) {
+		this.threadName = threadName;
+		this.logger = logger;
+		this.registrations = new CopyOnWriteArrayList<Registration<L>>();
+		this.overflowPolicy = ListenerOverflowPolicy.DISCARD_NEWEST;
+	}
+
+	/**
+	 * @param queueSize
+	 *            the number of events queued for each listener added
+	 *            afterwards, 0 to call these on the delivering thread
+	 */
+	public void setQueueSize(final int queueSize) {
+		if (queueSize < 0) {
+			throw new IllegalArgumentException("queue size expected");
+		}
+		this.queueSize = queueSize;
+	}
+
+	public int getQueueSize() {
+		return this.queueSize;
+	}
+
+	/**
+	 * @param overflowPolicy
+	 *            what to do with events for listeners added afterwards when
+	 *            their queue is full
+	 */
+	public void setOverflowPolicy(final ListenerOverflowPolicy overflowPolicy) {
+		if (null == overflowPolicy) {
+			throw new IllegalArgumentException("overflow policy expected");
+		}
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public ListenerOverflowPolicy getOverflowPolicy() {
+		return this.overflowPolicy;
+	}
+
+	/**
+	 * Add a listener, unless it was added before.
+	 * 
+	 * @param listener
+	 *            the listener to add
+	 */
+	public synchronized void add(final L listener) {
+		if (null != find(listener)) {
+			return;
+		}
+		final int listenerQueueSize = this.queueSize;
+		this.registrations.add(new Registration<L>(listener,
+				0 == listenerQueueSize ? null : createExecutor(
+						listenerQueueSize, this.overflowPolicy)));
+	}
+
+	/**
+	 * Remove a listener. Events already queued for it are still delivered.
+	 * 
+	 * @param listener
+	 *            the listener to remove
+	 */
+	public synchronized void remove(final L listener) {
+		final Registration<L> registration = find(listener);
+		if (null == registration) {
+			return;
+		}
+		this.registrations.remove(registration);
+		if (null != registration.executor) {
+			registration.executor.shutdown();
+		}
+	}
+
+	/**
+	 * Deliver an event to all listeners, in the order they were added. Never
+	 * waits for a listener with an event queue.
+	 * 
+	 * @param method
+	 *            the listener method called, for logging
+	 * @param call
+	 *            the call to make on each listener
+	 */
+	public void dispatch(final String method, final Call<L> call) {
+		for (final Registration<L> registration : this.registrations) {
+			if (null == registration.executor) {
+				deliver(method, call, registration.listener);
+				continue;
+			}
+			registration.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					deliver(method, call, registration.listener);
+				}
+			});
+		}
+	}
+
+	private void deliver(final String method, final Call<L> call,
+			final L listener) {
+		try {
+			call.call(listener);
+		} catch (final Throwable thrownInListener) {
+			this.logger.error("Exception thrown in " + method + ":"
+					+ thrownInListener.getMessage());
+		}
+	}
+
+	private Registration<L> find(final L listener) {
+		for (Registration<L> registration : this.registrations) {
+			if (registration.listener.equals(listener)) {
+				return registration;
+			}
+		}
+		return null;
+	}
+
+	private ThreadPoolExecutor createExecutor(final int listenerQueueSize,
+			final ListenerOverflowPolicy listenerOverflowPolicy) {
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+				KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(listenerQueueSize),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable,
+								ListenerRegistry.this.threadName);
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new Overflow(listenerOverflowPolicy));
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	private static final class Registration<L> {
+		private final L listener;
+		private final ThreadPoolExecutor executor;
+
+		public Registration(final L listener, final ThreadPoolExecutor executor) {
+			this.listener = listener;
+			this.executor = executor;
+		}
+	}
+
+	private final class Overflow implements RejectedExecutionHandler {
+		private final ListenerOverflowPolicy policy;
+		private final RejectedExecutionHandler handler;
+
+		public Overflow(final ListenerOverflowPolicy policy) {
+			this.policy = policy;
+			this.handler = ListenerOverflowPolicy.DISCARD_OLDEST == policy
+					? new ThreadPoolExecutor.DiscardOldestPolicy()
+					: new ThreadPoolExecutor.DiscardPolicy();
+		}
+
+		@Override
+		public void rejectedExecution(final Runnable runnable,
+				final ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				// the listener was removed
+				return;
+			}
+			ListenerRegistry.this.logger.error("event queue of listener full: "
+					+ this.policy);
+			this.handler.rejectedExecution(runnable, executor);
+		}
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+
+import be.fedict.commons.eid.client.spi.Logger;
+
+/**
+ * Chooses the fastest transmission protocol for a card reader model. The
+ * first eID card inserted into a reader of a given model is connected to with
+ * each of T=1 and T=0 in turn, timing a few SELECT FILE and READ BINARY
+ * exchanges. The winner is remembered for the model, and used for all cards
+ * connected to afterwards. With T=0, every response-carrying exchange takes an
+ * extra GET RESPONSE round trip, so T=1 usually wins where the card and reader
+ * support it.
+ * <p>
+ * Nothing is learned from other cards, nor from a benchmark in which any
+ * exchange failed, so that the next eID card is benchmarked instead.
+ */
+public final class ProtocolSelections {
+
+	private static final String[] CANDIDATE_PROTOCOLS = {"T=1", "T=0"};
+
+	private static final String FALLBACK_PROTOCOL = "*";
+
+	private static final int BENCHMARK_ROUNDS = 4;
+
+	private static final CommandAPDU BENCHMARK_SELECT = new CommandAPDU(0x00,
+			0xA4, 0x08, 0x0C, new byte[]{0x3F, 0x00, (byte) 0xDF, 0x01, 0x40,
+					0x31});
+
+	private static final CommandAPDU BENCHMARK_READ = new CommandAPDU(0x00,
+			0xB0, 0x00, 0x00, 0x80);
+
+	private static final ConcurrentMap<String, String> protocols = new ConcurrentHashMap<String, String>();
+
+	private ProtocolSelections() {
+		super();
+	}
+
+	/**
+	 * @param cardTerminal
+	 *            the card reader
+	 * @return the protocol found to be the fastest for readers of this model,
+	 *         or <code>null</code> if not yet known
+	 */
+	public static String getProtocol(final CardTerminal cardTerminal) {
+		return protocols.get(getReaderModel(cardTerminal.getName()));
+	}
+
+	/**
+	 * @param cardTerminal
+	 *            the card reader
+	 * @param protocol
+	 *            the protocol to use for readers of this model
+	 */
+	public static void setProtocol(final CardTerminal cardTerminal,
+			final String protocol) {
+		protocols.put(getReaderModel(cardTerminal.getName()), protocol);
+	}
+
+	/**
+	 * Forget all learned protocols.
+	 */
+	public static void clear() {
+		protocols.clear();
+	}
+
+	/**
+	 * Connect to the card in the given card reader, using the protocol
+	 * learned for its model, after benchmarking the candidate protocols if
+	 * none was learned yet. Cards are connected to with any protocol while
+	 * nothing is learned.
+	 * 
+	 * @param cardTerminal
+	 *            the card reader
+	 * @param logger
+	 *            the logger
+	 * @return the connected card
+	 * @throws CardException
+	 */
+	public static Card connect(final CardTerminal cardTerminal,
+			final Logger logger) throws CardException {
+		String protocol = getProtocol(cardTerminal);
+		if (null == protocol) {
+			protocol = benchmark(cardTerminal, logger);
+			if (null == protocol) {
+				return cardTerminal.connect(FALLBACK_PROTOCOL);
+			}
+			setProtocol(cardTerminal, protocol);
+		}
+
+		try {
+			return cardTerminal.connect(protocol);
+		} catch (final CardException cex) {
+			// a card that does not support the protocol of choice
+			logger.debug("terminal.connect(" + protocol + ") failed: "
+					+ cex.getMessage());
+			return cardTerminal.connect(FALLBACK_PROTOCOL);
+		}
+	}
+
+	/*
+	 * Returns the fastest protocol, or null if nothing is to be learned from
+	 * the card in the reader.
+	 */
+	private static String benchmark(final CardTerminal cardTerminal,
+			final Logger logger) {
+		String fastestProtocol = null;
+		long fastestTime = Long.MAX_VALUE;
+		for (String protocol : CANDIDATE_PROTOCOLS) {
+			final Card card;
+			try {
+				card = cardTerminal.connect(protocol);
+			} catch (final CardException cex) {
+				logger.debug("protocol " + protocol + " not supported by "
+						+ cardTerminal.getName() + ": " + cex.getMessage());
+				continue;
+			}
+
+			try {
+				if (!BeIDATRs.matches(card.getATR())) {
+					logger.debug("not an eID card in "
+							+ cardTerminal.getName() + ", not benchmarking");
+					return null;
+				}
+				final CardChannel channel = card.getBasicChannel();
+				final long startTime = System.nanoTime();
+				for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+					if (0x9000 != channel.transmit(BENCHMARK_SELECT).getSW()
+							|| 0x9000 != channel.transmit(BENCHMARK_READ)
+									.getSW()) {
+						logger.debug("protocol " + protocol
+								+ " benchmark refused by the card in "
+								+ cardTerminal.getName());
+						return null;
+					}
+				}
+				final long time = System.nanoTime() - startTime;
+				logger.debug("protocol " + protocol + " on "
+						+ cardTerminal.getName() + ": " + time / 1000 + " us");
+				if (time < fastestTime) {
+					fastestTime = time;
+					fastestProtocol = protocol;
+				}
+			} catch (final CardException cex) {
+				logger.debug("protocol " + protocol + " failed on "
+						+ cardTerminal.getName() + ": " + cex.getMessage());
+				return null;
+			} finally {
+				try {
+					// reset, so the next protocol can be negotiated
+					card.disconnect(true);
+				} catch (final CardException cex) {
+					logger.debug("disconnect failed: " + cex.getMessage());
+				}
+			}
+		}
+		return fastestProtocol;
+	}
+
+	/*
+	 * PC/SC appends instance numbers to the reader name, as in
+	 * "ACS ACR38U 00 00".
+	 */
+	private static String getReaderModel(final String cardTerminalName) {
+		return cardTerminalName.replaceAll("(\\s+\\d+)+$", "");
+	}
+}
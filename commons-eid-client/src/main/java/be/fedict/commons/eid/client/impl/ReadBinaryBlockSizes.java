@@ -0,0 +1,76 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+package be.fedict.commons.eid.client.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.CardTerminal;
+
+/**
+ * Remembers the largest READ BINARY block size that was found to work for a
+ * given card (by ATR) in a given card reader (by name), so that the probing
+ * for extended length support only has to happen once per combination.
+ */
+public final class ReadBinaryBlockSizes {
+
+	private static final ConcurrentMap<String, Integer> blockSizes = new ConcurrentHashMap<String, Integer>();
+
+	private ReadBinaryBlockSizes() {
+		super();
+	}
+
+	/**
+	 * @param atr
+	 *            the ATR of the card
+	 * @param cardTerminal
+	 *            the card reader holding the card, may be <code>null</code>
+	 * @return the learned block size, or <code>null</code> if not yet known
+	 */
+	public static Integer getBlockSize(final ATR atr,
+			final CardTerminal cardTerminal) {
+		return blockSizes.get(getKey(atr, cardTerminal));
+	}
+
+	/**
+	 * @param atr
+	 *            the ATR of the card
+	 * @param cardTerminal
+	 *            the card reader holding the card, may be <code>null</code>
+	 * @param blockSize
+	 *            the block size that was found to work
+	 */
+	public static void setBlockSize(final ATR atr,
+			final CardTerminal cardTerminal, final int blockSize) {
+		blockSizes.put(getKey(atr, cardTerminal), blockSize);
+	}
+
+	/**
+	 * Forget all learned block sizes.
+	 */
+	public static void clear() {
+		blockSizes.clear();
+	}
+
+	private static String getKey(final ATR atr, final CardTerminal cardTerminal) {
+		return HexKeys.getKey(atr,
+				null == cardTerminal ? null : cardTerminal.getName());
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package be.fedict.commons.eid.client.spi;
+
+import javax.smartcardio.ATR;
+
+/**
+ * Decides on the delays BeIDCard inserts in between APDUs. Some card
+ * generations and card readers need a pause at certain points of the
+ * communication, while others are merely slowed down by it. Implementations
+ * should be thread safe, as a single policy is typically shared by all cards.
+ * 
+ * The terminal name passed to the methods is <code>null</code> when the card
+ * reader is not known.
+ */
+public interface PacingPolicy {
+
+	/**
+	 * @param atr
+	 *            the ATR of the card
+	 * @param terminalName
+	 *            the name of the card reader holding the card
+	 * @return the delay (in milliseconds) after a SELECT FILE command
+	 */
+	long getSelectFileDelay(ATR atr, String terminalName);
+
+	/**
+	 * @param atr
+	 *            the ATR of the card
+	 * @param terminalName
+	 *            the name of the card reader holding the card
+	 * @return the delay (in milliseconds) before resending a command with the
+	 *         length returned by a 0x6C (wrong length) status word
+	 */
+	long getWrongLengthDelay(ATR atr, String terminalName);
+
+	/**
+	 * Called when the transmission of a command failed with a
+	 * SCARD_E_SHARING_VIOLATION. The command will be resent after the
+	 * returned delay.
+	 * 
+	 * @param atr
+	 *            the ATR of the card
+	 * @param terminalName
+	 *            the name of the card reader holding the card
+	 * @return the delay (in milliseconds) before resending the command
+	 */
+	long sharingViolation(ATR atr, String terminalName);
+
+	/**
+	 * Called when a SELECT FILE command succeeded.
+	 * 
+	 * @param atr
+	 *            the ATR of the card
+	 * @param terminalName
+	 *            the name of the card reader holding the card
+	 */
+	void selectFileSucceeded(ATR atr, String terminalName);
+}
@@ -31,7 +31,7 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.text.DateFormat;
 import java.util.Collection;
@@ -545,10 +545,14 @@ public class BeIDSelector {
 					}
 				});
 
-				final byte[] photoFile = this.listData.getCard().readFile(
-						FileType.Photo);
-				final BufferedImage photoImage = ImageIO
-						.read(new ByteArrayInputStream(photoFile));
+				final BufferedImage photoImage;
+				final InputStream photoInputStream = this.listData.getCard()
+						.openFileStream(FileType.Photo);
+				try {
+					photoImage = ImageIO.read(photoInputStream);
+				} finally {
+					photoInputStream.close();
+				}
 				this.listData.setPhoto(new ImageIcon(photoImage));
 				this.selectionDialog.updateListData(this, this.listData);
 				setWorkerName(identity, "All Done");
@@ -0,0 +1,126 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package test.integ.be.fedict.commons.eid.client;
+
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardTerminal;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+
+import test.integ.be.fedict.commons.eid.client.simulation.SimulatedBeIDCard;
+import test.integ.be.fedict.commons.eid.client.simulation.SimulatedCardTerminal;
+import test.integ.be.fedict.commons.eid.client.simulation.SimulatedCardTerminals;
+import be.fedict.commons.eid.client.CardAndTerminalManager;
+import be.fedict.commons.eid.client.event.CardEventsAdapter;
+import be.fedict.commons.eid.client.impl.VoidLogger;
+
+/**
+ * Benchmarks how long CardAndTerminalManager takes to detect a card inserted
+ * into one of many simulated card readers. Not part of the regular tests, run
+ * with -Dtest=CardAndTerminalManagerBenchmark.
+ */
+public class CardAndTerminalManagerBenchmark {
+
+	private static final Log LOG = LogFactory
+			.getLog(CardAndTerminalManagerBenchmark.class);
+
+	private static final int[] TERMINAL_COUNTS = {10, 50, 100};
+	private static final int ROUNDS = 200;
+	private static final long TIMEOUT = 5000;
+
+	@Test
+	public void testDetectionLatency() throws Exception {
+		for (int terminalCount : TERMINAL_COUNTS) {
+			final long[] latencies = measureDetectionLatencies(terminalCount);
+			long total = 0;
+			long max = 0;
+			for (long latency : latencies) {
+				total += latency;
+				max = Math.max(max, latency);
+			}
+			LOG.info(String.format(
+					"%3d terminals: mean %5d us, max %6d us", terminalCount,
+					total / latencies.length / 1000, max / 1000));
+		}
+	}
+
+	private long[] measureDetectionLatencies(final int terminalCount)
+			throws Exception {
+		final SimulatedCardTerminals simulatedCardTerminals = new SimulatedCardTerminals();
+		final List<SimulatedCardTerminal> cardTerminals = new ArrayList<SimulatedCardTerminal>();
+		for (int idx = 0; idx < terminalCount; idx++) {
+			final SimulatedCardTerminal cardTerminal = new SimulatedCardTerminal(
+					"Fedix SCR " + idx);
+			simulatedCardTerminals.attachCardTerminal(cardTerminal);
+			cardTerminals.add(cardTerminal);
+		}
+
+		final BlockingQueue<Long> insertions = new LinkedBlockingQueue<Long>();
+		final BlockingQueue<Long> removals = new LinkedBlockingQueue<Long>();
+		final CardAndTerminalManager cardAndTerminalManager = new CardAndTerminalManager(
+				new VoidLogger(), simulatedCardTerminals);
+		cardAndTerminalManager.setEventDriven(true)
+				.setReconciliationInterval(1000).setAutoconnect(false);
+		cardAndTerminalManager.addCardListener(new CardEventsAdapter() {
+			@Override
+			public void cardInserted(final CardTerminal cardTerminal,
+					final Card card) {
+				insertions.add(System.nanoTime());
+			}
+
+			@Override
+			public void cardRemoved(final CardTerminal cardTerminal) {
+				removals.add(System.nanoTime());
+			}
+		});
+		cardAndTerminalManager.start();
+
+		final Random random = new Random(0);
+		final long[] latencies = new long[ROUNDS];
+		try {
+			for (int round = 0; round < ROUNDS; round++) {
+				final SimulatedCardTerminal cardTerminal = cardTerminals
+						.get(random.nextInt(terminalCount));
+				final long begin = System.nanoTime();
+				cardTerminal.insertCard(new SimulatedBeIDCard("Alice"));
+				final Long inserted = insertions.poll(TIMEOUT,
+						TimeUnit.MILLISECONDS);
+				assertNotNull(inserted);
+				latencies[round] = inserted - begin;
+				cardTerminal.removeCard();
+				assertNotNull(removals.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+			}
+		} finally {
+			cardAndTerminalManager.stop();
+		}
+		return latencies;
+	}
+}
@@ -0,0 +1,696 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package test.integ.be.fedict.commons.eid.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.integ.be.fedict.commons.eid.client.simulation.SimulatedBeIDCard;
+import test.integ.be.fedict.commons.eid.client.simulation.SimulatedCard;
+import test.integ.be.fedict.commons.eid.client.simulation.SimulatedCardTerminal;
+import test.integ.be.fedict.commons.eid.client.simulation.SimulatedCardTerminals;
+import be.fedict.commons.eid.client.BeIDCard;
+import be.fedict.commons.eid.client.BeIDCardManager;
+import be.fedict.commons.eid.client.CardAndTerminalManager;
+import be.fedict.commons.eid.client.CardAndTerminalManager.PROTOCOL;
+import be.fedict.commons.eid.client.FileType;
+import be.fedict.commons.eid.client.ListenerOverflowPolicy;
+import be.fedict.commons.eid.client.PrefetchPolicy;
+import be.fedict.commons.eid.client.event.BeIDCardEventsAdapter;
+import be.fedict.commons.eid.client.event.BeIDCardEventsListener;
+import be.fedict.commons.eid.client.event.CardEventsAdapter;
+import be.fedict.commons.eid.client.event.CardEventsListener;
+import be.fedict.commons.eid.client.event.CardTerminalEventsListener;
+import be.fedict.commons.eid.client.impl.BeIDFileCache;
+import be.fedict.commons.eid.client.impl.CCID;
+import be.fedict.commons.eid.client.impl.CCIDFeatureCache;
+import be.fedict.commons.eid.client.impl.CertificateCache;
+import be.fedict.commons.eid.client.impl.ProtocolSelections;
+
+/**
+ * Exercises BeIDCardManager against simulated card readers and cards.
+ */
+public class SimulatedBeIDCardManagerTest {
+
+	private static final String PROFILE = "Alice";
+	private static final long TIMEOUT = 5000;
+
+	private SimulatedCardTerminals simulatedCardTerminals;
+	private SimulatedCardTerminal simulatedCardTerminal;
+	private CardAndTerminalManager cardAndTerminalManager;
+	private BeIDCardManager beIDCardManager;
+	private RecordingBeIDCardEventsListener listener;
+
+	@Before
+	public void setUp() {
+		CertificateCache.getInstance().clear();
+		CCIDFeatureCache.clear();
+		ProtocolSelections.clear();
+		this.simulatedCardTerminals = new SimulatedCardTerminals();
+		this.simulatedCardTerminal = new SimulatedCardTerminal("Fedix SCR 0");
+		this.cardAndTerminalManager = new CardAndTerminalManager(
+				new TestLogger(), this.simulatedCardTerminals);
+		this.beIDCardManager = new BeIDCardManager(new TestLogger(),
+				this.cardAndTerminalManager);
+		this.listener = new RecordingBeIDCardEventsListener();
+		this.beIDCardManager.addBeIDCardEventListener(this.listener);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.cardAndTerminalManager.stop();
+	}
+
+	@Test
+	public void testFileCacheInvalidatedOnRemoval() throws Exception {
+		this.beIDCardManager.setFileCacheEnabled(true);
+		this.cardAndTerminalManager.start();
+		this.simulatedCardTerminals
+				.attachCardTerminal(this.simulatedCardTerminal);
+		this.simulatedCardTerminal.insertCard(new SimulatedBeIDCard(PROFILE));
+
+		final BeIDCard beIDCard = this.listener.awaitInserted();
+		final BeIDFileCache fileCache = beIDCard.getFileCache();
+		assertNotNull(fileCache);
+		final byte[] identity = beIDCard.readFile(FileType.Identity);
+		assertArrayEquals(identity, beIDCard.readFile(FileType.Identity));
+		assertEquals(3, beIDCard.getCertificateChain(
+				FileType.AuthentificationCertificate).size());
+		assertEquals(2,
+				beIDCard.getCertificateChain(FileType.RRNCertificate).size());
+		// Identity, Authentication, CA, Root, RRN
+		assertEquals(5, fileCache.getMisses());
+		// Identity, Root
+		assertEquals(2, fileCache.getHits());
+		assertTrue(fileCache.contains(FileType.RootCertificate));
+
+		this.simulatedCardTerminal.removeCard();
+		assertTrue(beIDCard == this.listener.awaitRemoved());
+		assertFalse(fileCache.contains(FileType.Identity));
+		assertFalse(fileCache.contains(FileType.RootCertificate));
+	}
+
+	@Test
+	public void testCCIDFeaturesCachedPerTerminal() throws Exception {
+		final BlockingQueue<CardTerminal> detached = new LinkedBlockingQueue<CardTerminal>();
+		this.cardAndTerminalManager
+				.addCardTerminalListener(new CardTerminalEventsListener() {
+					@Override
+					public void terminalEventsInitialized() {
+					}
+
+					@Override
+					public void terminalAttached(final CardTerminal cardTerminal) {
+					}
+
+					@Override
+					public void terminalDetached(final CardTerminal cardTerminal) {
+						detached.add(cardTerminal);
+					}
+				});
+		this.cardAndTerminalManager.start();
+		this.simulatedCardTerminals
+				.attachCardTerminal(this.simulatedCardTerminal);
+
+		final PINPadBeIDCard firstCard = new PINPadBeIDCard();
+		this.simulatedCardTerminal.insertCard(firstCard);
+		assertTrue(this.listener.awaitInserted().cardTerminalHasCCIDFeature(
+				CCID.FEATURE.VERIFY_PIN_DIRECT));
+		assertEquals(1, firstCard.getControlCommandCount());
+		this.simulatedCardTerminal.removeCard();
+		this.listener.awaitRemoved();
+
+		// same reader: the features are known already
+		final PINPadBeIDCard secondCard = new PINPadBeIDCard();
+		this.simulatedCardTerminal.insertCard(secondCard);
+		assertTrue(this.listener.awaitInserted().cardTerminalHasCCIDFeature(
+				CCID.FEATURE.VERIFY_PIN_DIRECT));
+		assertEquals(0, secondCard.getControlCommandCount());
+		this.simulatedCardTerminal.removeCard();
+		this.listener.awaitRemoved();
+
+		// once detached, a reader by the same name may be another one
+		this.simulatedCardTerminals
+				.detachCardTerminal(this.simulatedCardTerminal);
+		assertNotNull(detached.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+		this.simulatedCardTerminals
+				.attachCardTerminal(this.simulatedCardTerminal);
+		final PINPadBeIDCard thirdCard = new PINPadBeIDCard();
+		this.simulatedCardTerminal.insertCard(thirdCard);
+		assertTrue(this.listener.awaitInserted().cardTerminalHasCCIDFeature(
+				CCID.FEATURE.VERIFY_PIN_DIRECT));
+		assertEquals(1, thirdCard.getControlCommandCount());
+	}
+
+	@Test
+	public void testAutomaticProtocolSelection() throws Exception {
+		final ProtocolCardTerminal cardTerminal = new ProtocolCardTerminal(
+				"Fedix SCR 1", "T=0", "T=1");
+		this.cardAndTerminalManager.setProtocol(PROTOCOL.AUTO);
+		this.cardAndTerminalManager.start();
+		this.simulatedCardTerminals.attachCardTerminal(cardTerminal);
+
+		cardTerminal.insertCard(new ProtocolBeIDCard());
+		this.listener.awaitInserted();
+		// benchmarked both, then connected with the winner
+		assertEquals("T=1", ProtocolSelections.getProtocol(cardTerminal));
+		assertEquals(Arrays.asList("T=1", "T=0", "T=1"),
+				cardTerminal.getConnects());
+		cardTerminal.removeCard();
+		this.listener.awaitRemoved();
+
+		// another reader of the same model
+		final ProtocolCardTerminal otherCardTerminal = new ProtocolCardTerminal(
+				"Fedix SCR 2", "T=0", "T=1");
+		this.simulatedCardTerminals.attachCardTerminal(otherCardTerminal);
+		otherCardTerminal.insertCard(new ProtocolBeIDCard());
+		this.listener.awaitInserted();
+		assertEquals(Arrays.asList("T=1"), otherCardTerminal.getConnects());
+	}
+
+	@Test
+	public void testAutomaticProtocolSelectionWithoutT1() throws Exception {
+		final ProtocolCardTerminal cardTerminal = new ProtocolCardTerminal(
+				"Fedix SCR 1", "T=0");
+		this.cardAndTerminalManager.setProtocol(PROTOCOL.AUTO);
+		this.cardAndTerminalManager.start();
+		this.simulatedCardTerminals.attachCardTerminal(cardTerminal);
+
+		cardTerminal.insertCard(new ProtocolBeIDCard());
+		final BeIDCard beIDCard = this.listener.awaitInserted();
+		assertEquals("T=0", ProtocolSelections.getProtocol(cardTerminal));
+		assertArrayEquals(expectedIdentity(),
+				beIDCard.readFile(FileType.Identity));
+	}
+
+	@Test
+	public void testAutomaticProtocolSelectionLearnsFromEIDCardsOnly()
+			throws Exception {
+		final BlockingQueue<Card> otherCards = new LinkedBlockingQueue<Card>();
+		final CountDownLatch otherCardRemoved = new CountDownLatch(1);
+		this.beIDCardManager.addOtherCardEventListener(new CardEventsAdapter() {
+			@Override
+			public void cardInserted(final CardTerminal cardTerminal,
+					final Card card) {
+				otherCards.add(card);
+			}
+
+			@Override
+			public void cardRemoved(final CardTerminal cardTerminal) {
+				otherCardRemoved.countDown();
+			}
+		});
+		final ProtocolCardTerminal cardTerminal = new ProtocolCardTerminal(
+				"Fedix SCR 1", "T=0", "T=1");
+		this.cardAndTerminalManager.setProtocol(PROTOCOL.AUTO);
+		this.cardAndTerminalManager.start();
+		this.simulatedCardTerminals.attachCardTerminal(cardTerminal);
+
+		// another card, such as a bank card
+		final ProtocolBeIDCard otherCard = new ProtocolBeIDCard();
+		otherCard.setATR(new ATR(new byte[]{0x3b, (byte) 0x8e, (byte) 0x80,
+				0x01, (byte) 0x80, 0x31, (byte) 0x80, 0x66, (byte) 0xb1,
+				(byte) 0x84, 0x0c, 0x01, 0x6e, 0x01, (byte) 0x83, 0x00,
+				(byte) 0x90, 0x00, 0x1c}));
+		cardTerminal.insertCard(otherCard);
+		assertNotNull(otherCards.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertNull(ProtocolSelections.getProtocol(cardTerminal));
+		assertEquals(Arrays.asList("T=1", "*"), cardTerminal.getConnects());
+		cardTerminal.removeCard();
+		assertTrue(otherCardRemoved.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+		// an eID card refusing the benchmark
+		final SimulatedBeIDCard refusingCard = new SimulatedBeIDCard(PROFILE) {
+			@Override
+			protected ResponseAPDU transmit(final CommandAPDU apdu)
+					throws CardException {
+				if (0xB0 == apdu.getINS()) {
+					return new ResponseAPDU(new byte[]{0x6a, (byte) 0x82});
+				}
+				return super.transmit(apdu);
+			}
+		};
+		cardTerminal.insertCard(refusingCard);
+		this.listener.awaitInserted();
+		assertNull(ProtocolSelections.getProtocol(cardTerminal));
+		cardTerminal.removeCard();
+		this.listener.awaitRemoved();
+
+		// the next eID card is benchmarked after all
+		cardTerminal.insertCard(new ProtocolBeIDCard());
+		this.listener.awaitInserted();
+		assertEquals("T=1", ProtocolSelections.getProtocol(cardTerminal));
+	}
+
+	@Test
+	public void testPrefetchOnInsertion() throws Exception {
+		this.beIDCardManager.setPrefetchPolicy(new PrefetchPolicy(
+				Thread.MIN_PRIORITY, FileType.Identity, FileType.Address,
+				FileType.Photo));
+		this.cardAndTerminalManager.start();
+		this.simulatedCardTerminals
+				.attachCardTerminal(this.simulatedCardTerminal);
+		final SelectCountingBeIDCard simulatedCard = new SelectCountingBeIDCard();
+		this.simulatedCardTerminal.insertCard(simulatedCard);
+
+		// joins the prefetch if still in progress, never reads twice
+		final BeIDCard beIDCard = this.listener.awaitInserted();
+		assertNotNull(beIDCard.getFileCache());
+		assertArrayEquals(expectedIdentity(),
+				beIDCard.readFile(FileType.Identity));
+		beIDCard.readFile(FileType.Address);
+		beIDCard.readFile(FileType.Photo);
+		assertEquals(3, simulatedCard.getSelectFileCount());
+	}
+
+	@Test
+	public void testTerminalStates() throws Exception {
+		final BlockingQueue<CardTerminal> detached = new LinkedBlockingQueue<CardTerminal>();
+		this.cardAndTerminalManager
+				.addCardTerminalListener(new CardTerminalEventsListener() {
+					@Override
+					public void terminalEventsInitialized() {
+					}
+
+					@Override
+					public void terminalAttached(final CardTerminal cardTerminal) {
+					}
+
+					@Override
+					public void terminalDetached(final CardTerminal cardTerminal) {
+						detached.add(cardTerminal);
+					}
+				});
+		this.cardAndTerminalManager.setDelay(20).start();
+		this.simulatedCardTerminals
+				.attachCardTerminal(this.simulatedCardTerminal);
+		this.simulatedCardTerminal.insertCard(new SimulatedBeIDCard(PROFILE));
+		this.listener.awaitInserted();
+
+		// an ignored terminal is as good as empty
+		this.cardAndTerminalManager.ignoreCardEventsFor("Fedix");
+		this.listener.awaitRemoved();
+		this.cardAndTerminalManager.acceptCardEventsFor("Fedix");
+		this.listener.awaitInserted();
+
+		// detached with the card still in it
+		this.simulatedCardTerminals
+				.detachCardTerminal(this.simulatedCardTerminal);
+		this.listener.awaitRemoved();
+		assertTrue(this.simulatedCardTerminal == detached.poll(TIMEOUT,
+				TimeUnit.MILLISECONDS));
+		assertTrue(this.listener.inserted.isEmpty());
+	}
+
+	@Test
+	public void testEventDrivenMonitoring() throws Exception {
+		// polling would take a minute to notice anything
+		this.cardAndTerminalManager.setDelay(60000).setEventDriven(true)
+				.setReconciliationInterval(60000);
+		this.simulatedCardTerminals
+				.attachCardTerminal(this.simulatedCardTerminal);
+		this.cardAndTerminalManager.start();
+
+		this.simulatedCardTerminal.insertCard(new SimulatedBeIDCard(PROFILE));
+		final BeIDCard firstCard = this.listener.awaitInserted();
+		this.simulatedCardTerminal.removeCard();
+		assertTrue(firstCard == this.listener.awaitRemoved());
+
+		// idle: blocks in waitForChange rather than polling
+		final int waitForChangeCount = this.simulatedCardTerminals
+				.getWaitForChangeCount();
+		Thread.sleep(200);
+		assertTrue(this.simulatedCardTerminals.getWaitForChangeCount()
+				- waitForChangeCount <= 1);
+
+		// a reader attached with a card in it, reported by PCSC as neither
+		final SimulatedCardTerminal otherCardTerminal = new SimulatedCardTerminal(
+				"Fedix SCR 1");
+		otherCardTerminal.insertCard(new SimulatedBeIDCard(PROFILE));
+		this.simulatedCardTerminals.attachCardTerminal(otherCardTerminal);
+		this.listener.awaitInserted();
+	}
+
+	@Test
+	public void testEventDrivenReconciliation() throws Exception {
+		this.cardAndTerminalManager.setEventDriven(true)
+				.setReconciliationInterval(100);
+		this.cardAndTerminalManager.start();
+		this.simulatedCardTerminals
+				.attachCardTerminal(this.simulatedCardTerminal);
+		this.simulatedCardTerminal.insertCard(new SimulatedBeIDCard(PROFILE));
+		this.listener.awaitInserted();
+
+		// PCSC fails to report the reader going away
+		this.simulatedCardTerminals.setTerminalChangesReported(false)
+				.detachCardTerminal(this.simulatedCardTerminal);
+		this.listener.awaitRemoved();
+	}
+
+	@Test
+	public void testParallelAutoconnect() throws Exception {
+		final int terminalCount = 8;
+		final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+		this.cardAndTerminalManager.addCardListener(new CardEventsListener() {
+			@Override
+			public void cardInserted(final CardTerminal cardTerminal,
+					final Card card) {
+				events.add("inserted " + cardTerminal.getName());
+			}
+
+			@Override
+			public void cardRemoved(final CardTerminal cardTerminal) {
+				events.add("removed " + cardTerminal.getName());
+			}
+
+			@Override
+			public void cardEventsInitialized() {
+			}
+		});
+		this.cardAndTerminalManager.setConnectThreads(terminalCount)
+				.setEventDriven(true);
+		this.cardAndTerminalManager.start();
+		final List<SlowConnectCardTerminal> cardTerminals = new ArrayList<SlowConnectCardTerminal>();
+		for (int idx = 0; idx < terminalCount; idx++) {
+			final SlowConnectCardTerminal cardTerminal = new SlowConnectCardTerminal(
+					"Fedix SCR " + idx);
+			this.simulatedCardTerminals.attachCardTerminal(cardTerminal);
+			cardTerminals.add(cardTerminal);
+		}
+
+		final long begin = System.currentTimeMillis();
+		for (SlowConnectCardTerminal cardTerminal : cardTerminals) {
+			cardTerminal.insertCard(new SimulatedBeIDCard(PROFILE));
+		}
+		for (int idx = 0; idx < terminalCount; idx++) {
+			this.listener.awaitInserted();
+		}
+		// connecting one after the other would take 8 connect delays
+		assertTrue(System.currentTimeMillis() - begin < 4 * SlowConnectCardTerminal.CONNECT_DELAY);
+
+		for (int idx = 0; idx < terminalCount; idx++) {
+			assertNotNull(events.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+		}
+
+		// the removal waits for the insertion still being connected
+		final SlowConnectCardTerminal cardTerminal = cardTerminals.get(0);
+		cardTerminal.awaitConnecting();
+		cardTerminal.removeCard();
+		assertEquals("removed Fedix SCR 0",
+				events.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+		cardTerminal.insertCard(new SimulatedBeIDCard(PROFILE));
+		cardTerminal.awaitConnecting();
+		cardTerminal.removeCard();
+		final List<String> terminalEvents = new ArrayList<String>();
+		while (terminalEvents.size() < 2) {
+			final String event = events.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+			assertNotNull(event);
+			terminalEvents.add(event);
+		}
+		assertEquals(Arrays.asList("inserted Fedix SCR 0",
+				"removed Fedix SCR 0"), terminalEvents);
+	}
+
+	@Test
+	public void testListenerQueue() throws Exception {
+		final CountDownLatch initialized = new CountDownLatch(1);
+		final CountDownLatch delivering = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+		this.beIDCardManager.setListenerQueueSize(1).setListenerOverflowPolicy(
+				ListenerOverflowPolicy.DISCARD_NEWEST);
+		this.beIDCardManager
+				.addBeIDCardEventListener(new BeIDCardEventsAdapter() {
+					@Override
+					public void eIDCardEventsInitialized() {
+						initialized.countDown();
+					}
+
+					@Override
+					public void eIDCardInserted(
+							final CardTerminal cardTerminal,
+							final BeIDCard card) {
+						delivering.countDown();
+						try {
+							release.await();
+						} catch (final InterruptedException iex) {
+							Thread.currentThread().interrupt();
+						}
+						events.add("inserted " + cardTerminal.getName());
+					}
+				});
+		this.cardAndTerminalManager.start();
+		assertTrue(initialized.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+		final int terminalCount = 3;
+		for (int idx = 0; idx < terminalCount; idx++) {
+			final SimulatedCardTerminal cardTerminal = new SimulatedCardTerminal(
+					"Fedix SCR " + idx);
+			this.simulatedCardTerminals.attachCardTerminal(cardTerminal);
+			cardTerminal.insertCard(new SimulatedBeIDCard(PROFILE));
+			// the stuck listener holds up neither detection nor other
+			// listeners
+			this.listener.awaitInserted();
+			assertTrue(delivering.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		}
+		assertNull(events.poll());
+
+		// one event was being delivered, one queued, the last one discarded
+		release.countDown();
+		assertNotNull(events.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertNotNull(events.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertNull(events.poll(500, TimeUnit.MILLISECONDS));
+	}
+
+	private static byte[] expectedIdentity() throws Exception {
+		final InputStream inputStream = SimulatedBeIDCardManagerTest.class
+				.getResourceAsStream("/" + PROFILE + "_Identity.tlv");
+		try {
+			return IOUtils.toByteArray(inputStream);
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	/*
+	 * A simulated card reader that takes a while to connect to cards.
+	 */
+	private static final class SlowConnectCardTerminal extends
+			SimulatedCardTerminal {
+		public static final long CONNECT_DELAY = 300;
+
+		private final BlockingQueue<String> connecting;
+
+		public SlowConnectCardTerminal(final String name) {
+			super(name);
+			this.connecting = new LinkedBlockingQueue<String>();
+		}
+
+		public void awaitConnecting() throws InterruptedException {
+			assertNotNull(this.connecting.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+		}
+
+		@Override
+		public Card connect(final String protocol) throws CardException {
+			this.connecting.add(protocol);
+			try {
+				Thread.sleep(CONNECT_DELAY);
+			} catch (final InterruptedException iex) {
+				throw new CardException(iex);
+			}
+			return super.connect(protocol);
+		}
+	}
+
+	/*
+	 * A simulated card reader supporting only the given protocols, recording
+	 * the protocols connected with.
+	 */
+	private static final class ProtocolCardTerminal extends
+			SimulatedCardTerminal {
+		private final List<String> protocols;
+		private final List<String> connects;
+
+		public ProtocolCardTerminal(final String name,
+				final String... protocols) {
+			super(name);
+			this.protocols = Arrays.asList(protocols);
+			this.connects = new ArrayList<String>();
+		}
+
+		public synchronized List<String> getConnects() {
+			return new ArrayList<String>(this.connects);
+		}
+
+		@Override
+		public synchronized Card connect(final String protocol)
+				throws CardException {
+			final String connectedProtocol = "*".equals(protocol)
+					? this.protocols.get(0)
+					: protocol;
+			if (!this.protocols.contains(connectedProtocol)) {
+				throw new CardException("protocol not supported: " + protocol);
+			}
+			final SimulatedCard card = (SimulatedCard) super.connect(protocol);
+			card.setProtocol(connectedProtocol);
+			this.connects.add(protocol);
+			return card;
+		}
+	}
+
+	/*
+	 * A simulated card on which T=0 takes an extra round trip per exchange.
+	 */
+	private static final class ProtocolBeIDCard extends SimulatedBeIDCard {
+		public ProtocolBeIDCard() {
+			super(PROFILE);
+		}
+
+		@Override
+		protected ResponseAPDU transmit(final CommandAPDU apdu)
+				throws CardException {
+			if ("T=0".equals(getProtocol())) {
+				try {
+					Thread.sleep(2);
+				} catch (final InterruptedException iex) {
+					throw new CardException(iex);
+				}
+			}
+			return super.transmit(apdu);
+		}
+	}
+
+	/*
+	 * A simulated card counting the files selected.
+	 */
+	private static final class SelectCountingBeIDCard extends
+			SimulatedBeIDCard {
+		private int selectFileCount;
+
+		public SelectCountingBeIDCard() {
+			super(PROFILE);
+		}
+
+		public synchronized int getSelectFileCount() {
+			return this.selectFileCount;
+		}
+
+		@Override
+		protected ResponseAPDU transmit(final CommandAPDU apdu)
+				throws CardException {
+			if (0xA4 == apdu.getINS() && 0x08 == apdu.getP1()) {
+				synchronized (this) {
+					this.selectFileCount++;
+				}
+			}
+			return super.transmit(apdu);
+		}
+	}
+
+	/*
+	 * A simulated card in a reader reporting the VERIFY_PIN_DIRECT feature,
+	 * counting the control commands sent to the reader.
+	 */
+	private static final class PINPadBeIDCard extends SimulatedBeIDCard {
+		private int controlCommandCount;
+
+		public PINPadBeIDCard() {
+			super(PROFILE);
+		}
+
+		public int getControlCommandCount() {
+			return this.controlCommandCount;
+		}
+
+		@Override
+		public byte[] transmitControlCommand(final int controlCode,
+				final byte[] command) throws CardException {
+			this.controlCommandCount++;
+			return new byte[]{CCID.FEATURE.VERIFY_PIN_DIRECT.getTag(), 0x04,
+					0x42, 0x33, 0x00, 0x06};
+		}
+	}
+
+	private static final class RecordingBeIDCardEventsListener implements
+			BeIDCardEventsListener {
+		private final BlockingQueue<BeIDCard> inserted;
+		private final BlockingQueue<BeIDCard> removed;
+
+		public RecordingBeIDCardEventsListener() {
+			this.inserted = new LinkedBlockingQueue<BeIDCard>();
+			this.removed = new LinkedBlockingQueue<BeIDCard>();
+		}
+
+		public BeIDCard awaitInserted() throws InterruptedException {
+			final BeIDCard beIDCard = this.inserted.poll(TIMEOUT,
+					TimeUnit.MILLISECONDS);
+			assertNotNull("no card inserted", beIDCard);
+			return beIDCard;
+		}
+
+		public BeIDCard awaitRemoved() throws InterruptedException {
+			final BeIDCard beIDCard = this.removed.poll(TIMEOUT,
+					TimeUnit.MILLISECONDS);
+			assertNotNull("no card removed", beIDCard);
+			return beIDCard;
+		}
+
+		@Override
+		public void eIDCardEventsInitialized() {
+		}
+
+		@Override
+		public void eIDCardInserted(final CardTerminal cardTerminal,
+				final BeIDCard card) {
+			this.inserted.add(card);
+		}
+
+		@Override
+		public void eIDCardRemoved(final CardTerminal cardTerminal,
+				final BeIDCard card) {
+			this.removed.add(card);
+		}
+	}
+}
@@ -0,0 +1,1507 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+package test.integ.be.fedict.commons.eid.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import test.integ.be.fedict.commons.eid.client.simulation.SimulatedBeIDCard;
+import test.integ.be.fedict.commons.eid.client.simulation.SimulatedSigningBeIDCard;
+import be.fedict.commons.eid.client.AsyncBeIDCard;
+import be.fedict.commons.eid.client.BatchSignatureException;
+import be.fedict.commons.eid.client.BeIDCard;
+import be.fedict.commons.eid.client.CardSession;
+import be.fedict.commons.eid.client.CardTimeoutException;
+import be.fedict.commons.eid.client.Deadline;
+import be.fedict.commons.eid.client.CertificateInfo;
+import be.fedict.commons.eid.client.FileType;
+import be.fedict.commons.eid.client.PINPurpose;
+import be.fedict.commons.eid.client.ResponseAPDUException;
+import be.fedict.commons.eid.client.impl.AppletSelections;
+import be.fedict.commons.eid.client.impl.AppletSelections.Selection;
+import be.fedict.commons.eid.client.impl.BeIDDigest;
+import be.fedict.commons.eid.client.impl.BeIDFileStore;
+import be.fedict.commons.eid.client.impl.ByteBufferPool;
+import be.fedict.commons.eid.client.impl.CertificateCache;
+import be.fedict.commons.eid.client.impl.CertificateDecoder;
+import be.fedict.commons.eid.client.impl.CertificateInfoParser;
+import be.fedict.commons.eid.client.impl.DefaultPacingPolicy;
+import be.fedict.commons.eid.client.impl.ReadBinaryBlockSizes;
+import be.fedict.commons.eid.client.spi.BeIDCardUIAdapter;
+import be.fedict.commons.eid.client.spi.UserCancelledException;
+
+/**
+ * Exercises BeIDCard against simulated cards, without requiring a card
+ * reader.
+ */
+public class SimulatedBeIDCardTest {
+
+	private static final long TIMEOUT = 5000;
+	private static final String PROFILE = "Alice";
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Before
+	public void setUp() {
+		ReadBinaryBlockSizes.clear();
+		AppletSelections.clear();
+	}
+
+	@Test
+	public void testReadFile() throws Exception {
+		final BeIDCard beIDCard = new BeIDCard(
+				new SimulatedBeIDCard(PROFILE), new TestLogger());
+
+		assertArrayEquals(expectedFile(FileType.Photo),
+				beIDCard.readFile(FileType.Photo));
+		assertArrayEquals(expectedFile(FileType.Identity),
+				beIDCard.readFile(FileType.Identity));
+	}
+
+	@Test
+	public void testReadFileWithChainedResponses() throws Exception {
+		final BeIDCard beIDCard = new BeIDCard(new ChainingBeIDCard(PROFILE,
+				40), new TestLogger());
+
+		assertArrayEquals(expectedFile(FileType.AuthentificationCertificate),
+				beIDCard.readFile(FileType.AuthentificationCertificate));
+		assertArrayEquals(expectedFile(FileType.Address),
+				beIDCard.readFile(FileType.Address));
+	}
+
+	@Test
+	public void testExtendedLengthReadBinary() throws Exception {
+		final ConstrainedBeIDCard simulatedCard = new ConstrainedBeIDCard(
+				PROFILE, 0x10000, false);
+		final BeIDCard beIDCard = new BeIDCard(simulatedCard, new TestLogger());
+
+		// probing: one extended read, one to confirm the end of the file
+		assertArrayEquals(expectedFile(FileType.Photo),
+				beIDCard.readFile(FileType.Photo));
+		assertEquals(2, simulatedCard.getReadBinaryCount());
+		assertEquals(Integer.valueOf(0x1000),
+				ReadBinaryBlockSizes.getBlockSize(simulatedCard.getATR(), null));
+
+		simulatedCard.resetReadBinaryCount();
+		assertArrayEquals(expectedFile(FileType.Photo),
+				beIDCard.readFile(FileType.Photo));
+		assertEquals(1, simulatedCard.getReadBinaryCount());
+	}
+
+	@Test
+	public void testExtendedLengthRefused() throws Exception {
+		final ConstrainedBeIDCard simulatedCard = new ConstrainedBeIDCard(
+				PROFILE, 0x100, true);
+		final BeIDCard beIDCard = new BeIDCard(simulatedCard, new TestLogger());
+
+		assertArrayEquals(expectedFile(FileType.Photo),
+				beIDCard.readFile(FileType.Photo));
+		assertEquals(Integer.valueOf(0xff),
+				ReadBinaryBlockSizes.getBlockSize(simulatedCard.getATR(), null));
+		assertArrayEquals(expectedFile(FileType.CACertificate),
+				beIDCard.readFile(FileType.CACertificate));
+	}
+
+	@Test
+	public void testExtendedLengthLimitedByCard() throws Exception {
+		final ConstrainedBeIDCard simulatedCard = new ConstrainedBeIDCard(
+				PROFILE, 0x200, false);
+		final BeIDCard beIDCard = new BeIDCard(simulatedCard, new TestLogger());
+
+		assertArrayEquals(expectedFile(FileType.Photo),
+				beIDCard.readFile(FileType.Photo));
+		assertEquals(Integer.valueOf(0x200),
+				ReadBinaryBlockSizes.getBlockSize(simulatedCard.getATR(), null));
+
+		simulatedCard.resetReadBinaryCount();
+		assertArrayEquals(expectedFile(FileType.Photo),
+				beIDCard.readFile(FileType.Photo));
+		assertEquals(6, simulatedCard.getReadBinaryCount());
+	}
+
+	@Test
+	public void testReadFiles() throws Exception {
+		final BeIDCard beIDCard = new BeIDCard(
+				new SimulatedBeIDCard(PROFILE), new TestLogger());
+		final EnumSet<FileType> fileTypes = EnumSet.of(FileType.Identity,
+				FileType.IdentitySignature, FileType.Address,
+				FileType.AddressSignature, FileType.Photo,
+				FileType.RRNCertificate);
+
+		final Map<FileType, byte[]> files = beIDCard.readFiles(fileTypes);
+
+		assertEquals(fileTypes, files.keySet());
+		for (FileType fileType : fileTypes) {
+			assertArrayEquals(expectedFile(fileType), files.get(fileType));
+		}
+	}
+
+	@Test
+	public void testReadFileIntoBuffer() throws Exception {
+		final BeIDCard beIDCard = new BeIDCard(
+				new SimulatedBeIDCard(PROFILE), new TestLogger());
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(0x4000);
+		buffer.put((byte) 0x55);
+
+		final int length = beIDCard.readFile(FileType.Photo, buffer);
+
+		final byte[] expected = expectedFile(FileType.Photo);
+		assertEquals(expected.length, length);
+		assertEquals(1 + expected.length, buffer.position());
+		buffer.flip();
+		assertEquals(0x55, buffer.get());
+		final byte[] actual = new byte[length];
+		buffer.get(actual);
+		assertArrayEquals(expected, actual);
+	}
+
+	@Test
+	public void testReadFileIntoTooSmallBuffer() throws Exception {
+		final BeIDCard beIDCard = new BeIDCard(
+				new SimulatedBeIDCard(PROFILE), new TestLogger());
+
+		try {
+			beIDCard.readFile(FileType.Photo, ByteBuffer.allocate(0x100));
+			fail();
+		} catch (final BufferOverflowException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testReadFileIntoPooledBuffer() throws Exception {
+		final BeIDCard beIDCard = new BeIDCard(
+				new SimulatedBeIDCard(PROFILE), new TestLogger());
+		final ByteBufferPool pool = new ByteBufferPool(true, 4);
+
+		final ByteBuffer buffer = beIDCard.readFile(FileType.Identity, pool);
+		assertTrue(buffer.isDirect());
+		final byte[] actual = new byte[buffer.remaining()];
+		buffer.get(actual);
+		assertArrayEquals(expectedFile(FileType.Identity), actual);
+		pool.release(buffer);
+
+		final ByteBuffer reusedBuffer = beIDCard.readFile(FileType.Identity,
+				pool);
+		assertTrue(buffer == reusedBuffer);
+		assertEquals(actual.length, reusedBuffer.remaining());
+	}
+
+	@Test
+	public void testOpenFileStream() throws Exception {
+		final ConstrainedBeIDCard simulatedCard = new ConstrainedBeIDCard(
+				PROFILE, 0x100, false);
+		final BeIDCard beIDCard = new BeIDCard(simulatedCard, new TestLogger());
+
+		final InputStream inputStream = beIDCard.openFileStream(FileType.Photo);
+		try {
+			// only the first block is fetched from the card
+			assertEquals(0xff, inputStream.read());
+			assertEquals(1, simulatedCard.getReadBinaryCount());
+
+			final byte[] expected = expectedFile(FileType.Photo);
+			final byte[] actual = IOUtils.toByteArray(inputStream);
+			assertEquals(expected.length - 1, actual.length);
+			assertEquals(expected[expected.length - 1],
+					actual[actual.length - 1]);
+			assertEquals(-1, inputStream.read());
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	@Test
+	public void testOpenFileStreamClosedByOtherThread() throws Exception {
+		final BeIDCard beIDCard = new BeIDCard(new SimulatedBeIDCard(PROFILE),
+				new TestLogger());
+		final InputStream inputStream = beIDCard.openFileStream(FileType.Photo);
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					inputStream.close();
+					return null;
+				}
+			}).get(TIMEOUT, TimeUnit.MILLISECONDS);
+			fail();
+		} catch (final ExecutionException eex) {
+			assertTrue(eex.getCause() instanceof IOException);
+		} finally {
+			inputStream.close();
+		}
+
+		// closed by the opening thread, the card is released
+		try {
+			assertArrayEquals(expectedFile(FileType.Address), executor.submit(
+					new Callable<byte[]>() {
+						@Override
+						public byte[] call() throws Exception {
+							return beIDCard.readFile(FileType.Address);
+						}
+					}).get(TIMEOUT, TimeUnit.MILLISECONDS));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testCertificateFromFileStream() throws Exception {
+		final BeIDCard beIDCard = new BeIDCard(
+				new SimulatedBeIDCard(PROFILE), new TestLogger());
+
+		final X509Certificate certificate = beIDCard
+				.getAuthenticationCertificate();
+		final X509Certificate expectedCertificate = (X509Certificate) CertificateFactory
+				.getInstance("X.509").generateCertificate(
+						new ByteArrayInputStream(
+								expectedFile(FileType.AuthentificationCertificate)));
+		assertEquals(expectedCertificate, certificate);
+		assertEquals(3, beIDCard.getCertificateChain(
+				FileType.AuthentificationCertificate).size());
+	}
+
+	@Test
+	public void testReadFileRange() throws Exception {
+		final ConstrainedBeIDCard simulatedCard = new ConstrainedBeIDCard(
+				PROFILE, 0x100, false);
+		final BeIDCard beIDCard = new BeIDCard(simulatedCard, new TestLogger());
+		final byte[] expected = expectedFile(FileType.Photo);
+
+		final byte[] range = beIDCard.readFile(FileType.Photo, 1000, 300);
+
+		assertArrayEquals(Arrays.copyOfRange(expected, 1000, 1300), range);
+		assertEquals(2, simulatedCard.getReadBinaryCount());
+
+		final byte[] tail = beIDCard.readFile(FileType.Photo,
+				expected.length - 10, 100);
+		assertArrayEquals(Arrays.copyOfRange(expected, expected.length - 10,
+				expected.length), tail);
+	}
+
+	@Test
+	public void testPeekCertificate() throws Exception {
+		final ConstrainedBeIDCard simulatedCard = new ConstrainedBeIDCard(
+				PROFILE, 0x100, false);
+		final BeIDCard beIDCard = new BeIDCard(simulatedCard, new TestLogger());
+		final X509Certificate expectedCertificate = (X509Certificate) CertificateFactory
+				.getInstance("X.509").generateCertificate(
+						new ByteArrayInputStream(
+								expectedFile(FileType.AuthentificationCertificate)));
+
+		final CertificateInfo certificateInfo = beIDCard
+				.peekCertificate(FileType.AuthentificationCertificate);
+
+		assertEquals(expectedCertificate.getSerialNumber(),
+				certificateInfo.getSerialNumber());
+		assertEquals(expectedCertificate.getIssuerX500Principal(),
+				certificateInfo.getIssuer());
+		assertEquals(expectedCertificate.getSubjectX500Principal(),
+				certificateInfo.getSubject());
+		assertEquals(expectedCertificate.getNotBefore(),
+				certificateInfo.getNotBefore());
+		assertEquals(expectedCertificate.getNotAfter(),
+				certificateInfo.getNotAfter());
+		assertTrue(simulatedCard.getReadBinaryCount() < (expectedCertificate
+				.getEncoded().length + 0xfe) / 0xff);
+	}
+
+	@Test
+	public void testPeekCertificateInvalidName() throws Exception {
+		// a TBSCertificate with an issuer name holding an OCTET STRING
+		final byte[] certificate = new byte[]{0x30, 0x0d, 0x30, 0x0b, 0x02,
+				0x01, 0x01, 0x30, 0x00, 0x30, 0x02, 0x04, 0x00};
+		try {
+			CertificateInfoParser.parse(new ByteArrayInputStream(certificate));
+			fail();
+		} catch (final CertificateException cex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testSharingViolationBackoff() throws Exception {
+		final SharingViolationBeIDCard simulatedCard = new SharingViolationBeIDCard(
+				PROFILE, 1);
+		final DefaultPacingPolicy pacingPolicy = new DefaultPacingPolicy();
+		final BeIDCard beIDCard = new BeIDCard(simulatedCard, new TestLogger())
+				.setPacingPolicy(pacingPolicy);
+		final ATR newCardATR = new ATR(new byte[]{0x3b, (byte) 0x98,
+				(byte) 0x94, 0x40, (byte) 0xff, (byte) 0xa5, 0x03, 0x01, 0x01,
+				0x01, (byte) 0xad, 0x13, 0x10});
+		final ATR v10CardATR = new ATR(new byte[]{0x3b, (byte) 0x98,
+				(byte) 0x94, 0x40, 0x0a, (byte) 0xa5, 0x03, 0x01, 0x01, 0x01,
+				(byte) 0xad, 0x13, 0x10});
+
+		assertEquals(10,
+				pacingPolicy.getWrongLengthDelay(simulatedCard.getATR(), null));
+		assertEquals(10, pacingPolicy.getWrongLengthDelay(v10CardATR, null));
+		assertEquals(0, pacingPolicy.getWrongLengthDelay(newCardATR, null));
+		assertEquals(0,
+				pacingPolicy.getSelectFileDelay(simulatedCard.getATR(), null));
+
+		assertArrayEquals(expectedFile(FileType.Address),
+				beIDCard.readFile(FileType.Address));
+		assertEquals(20,
+				pacingPolicy.getSelectFileDelay(simulatedCard.getATR(), null));
+		assertEquals(0, pacingPolicy.getSelectFileDelay(newCardATR, null));
+
+		for (int idx = 0; idx < 16; idx++) {
+			beIDCard.readFile(FileType.Address);
+		}
+		assertEquals(10,
+				pacingPolicy.getSelectFileDelay(simulatedCard.getATR(), null));
+		for (int idx = 0; idx < 16; idx++) {
+			beIDCard.readFile(FileType.Address);
+		}
+		assertEquals(0,
+				pacingPolicy.getSelectFileDelay(simulatedCard.getATR(), null));
+	}
+
+	@Test
+	public void testSignTracksSecurityState() throws Exception {
+		final SimulatedSigningBeIDCard simulatedCard = new SimulatedSigningBeIDCard(
+				PROFILE);
+		final BeIDCard beIDCard = new BeIDCard(simulatedCard, new TestLogger());
+		beIDCard.setUI(new TestPINUI());
+
+		// unknown PIN state: the card tells us the PIN is required
+		beIDCard.signAuthn("hello".getBytes(), false);
+		assertEquals(1, simulatedCard
+				.getCommandCount(SimulatedSigningBeIDCard.INS_MSE_SET));
+		assertEquals(2, simulatedCard
+				.getCommandCount(SimulatedSigningBeIDCard.INS_COMPUTE_DIGITAL_SIGNATURE));
+		assertEquals(1, simulatedCard
+				.getCommandCount(SimulatedSigningBeIDCard.INS_VERIFY_PIN));
+
+		// within a single exclusive transaction, the key remains selected
+		simulatedCard.resetCommandCounts();
+		beIDCard.beginExclusive();
+		try {
+			beIDCard.signAuthn("hello".getBytes(), false);
+			beIDCard.signAuthn("world".getBytes(), false);
+		} finally {
+			beIDCard.endExclusive();
+		}
+		assertEquals(1, simulatedCard
+				.getCommandCount(SimulatedSigningBeIDCard.INS_MSE_SET));
+		assertEquals(2, simulatedCard
+				.getCommandCount(SimulatedSigningBeIDCard.INS_COMPUTE_DIGITAL_SIGNATURE));
+		assertEquals(0, simulatedCard
+				.getCommandCount(SimulatedSigningBeIDCard.INS_VERIFY_PIN));
+
+		// after logoff, while still holding the card, the PIN is verified
+		// straight away
+		beIDCard.beginExclusive();
+		try {
+			beIDCard.logoff();
+			simulatedCard.resetCommandCounts();
+			beIDCard.signAuthn("hello".getBytes(), false);
+		} finally {
+			beIDCard.endExclusive();
+		}
+		assertEquals(1, simulatedCard
+				.getCommandCount(SimulatedSigningBeIDCard.INS_COMPUTE_DIGITAL_SIGNATURE));
+		assertEquals(1, simulatedCard
+				.getCommandCount(SimulatedSigningBeIDCard.INS_VERIFY_PIN));
+
+		// once the card has been released, another process may have verified
+		// the PIN, so the card is asked first
+		beIDCard.logoff();
+		simulatedCard.resetCommandCounts();
+		beIDCard.signAuthn("hello".getBytes(), false);
+		assertEquals(2, simulatedCard
+				.getCommandCount(SimulatedSigningBeIDCard.INS_COMPUTE_DIGITAL_SIGNATURE));
+		assertEquals(1, simulatedCard
+				.getCommandCount(SimulatedSigningBeIDCard.INS_VERIFY_PIN));
+	}
+
+	@Test
+	public void testSignRecoversFromLostSecurityEnvironment() throws Exception {
+		final SimulatedSigningBeIDCard simulatedCard = new SimulatedSigningBeIDCard(
+				PROFILE);
+		final BeIDCard beIDCard = new BeIDCard(simulatedCard, new TestLogger());
+		beIDCard.setUI(new TestPINUI());
+
+		beIDCard.beginExclusive();
+		try {
+			beIDCard.signAuthn("hello".getBytes(), false);
+			simulatedCard.selectKey(-1);
+			simulatedCard.resetCommandCounts();
+			final byte[] signature = beIDCard.signAuthn("world".getBytes(),
+					false);
+			assertEquals((byte) 0x82, signature[0]);
+		} finally {
+			beIDCard.endExclusive();
+		}
+		assertEquals(1, simulatedCard
+				.getCommandCount(SimulatedSigningBeIDCard.INS_MSE_SET));
+		assertEquals(2, simulatedCard
+				.getCommandCount(SimulatedSigningBeIDCard.INS_COMPUTE_DIGITAL_SIGNATURE));
+	}
+
+	@Test
+	public void testSignBatch() throws Exception {
+		final SimulatedSigningBeIDCard simulatedCard = new SimulatedSigningBeIDCard(
+				PROFILE);
+		final BeIDCard beIDCard = new BeIDCard(simulatedCard, new TestLogger());
+		final TestPINUI ui = new TestPINUI();
+		beIDCard.setUI(ui);
+		final List<byte[]> digests = new ArrayList<byte[]>();
+		for (int idx = 0; idx < 3; idx++) {
+			final byte[] digest = new byte[20];
+			digest[0] = (byte) idx;
+			digests.add(digest);
+		}
+
+		final List<byte[]> signatures = beIDCard.signBatch(digests,
+				BeIDDigest.SHA_1, FileType.AuthentificationCertificate);
+
+		assertEquals(3, signatures.size());
+		for (int idx = 0; idx < 3; idx++) {
+			assertEquals((byte) 0x82, signatures.get(idx)[0]);
+			// key id, 15 bytes DigestInfo prefix, digest
+			assertEquals((byte) idx, signatures.get(idx)[16]);
+		}
+		assertEquals(1, simulatedCard
+				.getCommandCount(SimulatedSigningBeIDCard.INS_MSE_SET));
+		assertEquals(4, simulatedCard
+				.getCommandCount(SimulatedSigningBeIDCard.INS_COMPUTE_DIGITAL_SIGNATURE));
+		assertEquals(1, ui.getPINRequests());
+	}
+
+	@Test
+	public void testSignBatchNonRepudiation() throws Exception {
+		final SimulatedSigningBeIDCard simulatedCard = new SimulatedSigningBeIDCard(
+				PROFILE);
+		final BeIDCard beIDCard = new BeIDCard(simulatedCard, new TestLogger());
+		final TestPINUI ui = new TestPINUI();
+		beIDCard.setUI(ui);
+		final List<byte[]> digests = new ArrayList<byte[]>();
+		for (int idx = 0; idx < 3; idx++) {
+			digests.add(new byte[20]);
+		}
+
+		beIDCard.signBatch(digests, BeIDDigest.SHA_1,
+				FileType.NonRepudiationCertificate);
+		assertEquals(3, ui.getPINRequests());
+		assertEquals(1, simulatedCard
+				.getCommandCount(SimulatedSigningBeIDCard.INS_MSE_SET));
+
+		// the user cancels the second PIN entry
+		ui.cancelAfter(4);
+		try {
+			beIDCard.signBatch(digests, BeIDDigest.SHA_1,
+					FileType.NonRepudiationCertificate);
+			fail();
+		} catch (final BatchSignatureException e) {
+			assertEquals(1, e.getFailedIndex());
+			assertEquals(1, e.getSignatures().size());
+			assertTrue(e.getCause() instanceof UserCancelledException);
+		}
+	}
+
+	@Test
+	public void testAsyncBeIDCard() throws Exception {
+		final SimulatedSigningBeIDCard simulatedCard = new SimulatedSigningBeIDCard(
+				PROFILE);
+		final BeIDCard beIDCard = new BeIDCard(simulatedCard, new TestLogger());
+		beIDCard.setUI(new TestPINUI());
+		final AsyncBeIDCard asyncBeIDCard = new AsyncBeIDCard(beIDCard);
+		try {
+			final Future<byte[]> photo = asyncBeIDCard
+					.readFile(FileType.Photo);
+			final Future<List<X509Certificate>> chain = asyncBeIDCard
+					.getCertificateChain(FileType.AuthentificationCertificate);
+			final Future<byte[]> signature = asyncBeIDCard.sign(
+					new byte[20], BeIDDigest.SHA_1,
+					FileType.AuthentificationCertificate, false);
+			final Future<byte[]> challenge = asyncBeIDCard.getChallenge(20);
+
+			assertArrayEquals(expectedFile(FileType.Photo), photo.get());
+			assertEquals(3, chain.get().size());
+			assertEquals((byte) 0x82, signature.get()[0]);
+			try {
+				// not supported by the simulated card
+				challenge.get();
+				fail();
+			} catch (final ExecutionException e) {
+				assertTrue(e.getCause() instanceof ResponseAPDUException);
+			}
+		} finally {
+			asyncBeIDCard.close();
+		}
+	}
+
+	@Test
+	public void testAsyncBeIDCardCancellation() throws Exception {
+		final SlowBeIDCard simulatedCard = new SlowBeIDCard(PROFILE);
+		final BeIDCard beIDCard = new BeIDCard(simulatedCard, new TestLogger());
+		final AsyncBeIDCard asyncBeIDCard = new AsyncBeIDCard(beIDCard);
+		final CountDownLatch cancelled = new CountDownLatch(1);
+		try {
+			final Future<byte[]> photo = asyncBeIDCard.readFile(
+					FileType.Photo, new AsyncBeIDCard.Callback<byte[]>() {
+						@Override
+						public void succeeded(final byte[] result) {
+						}
+
+						@Override
+						public void failed(final Throwable cause) {
+						}
+
+						@Override
+						public void cancelled() {
+							cancelled.countDown();
+						}
+					});
+			final Future<byte[]> address = asyncBeIDCard
+					.readFile(FileType.Address);
+			simulatedCard.awaitFirstRead();
+
+			assertTrue(photo.cancel(true));
+			assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+			// the card thread carries on with the next operation
+			assertArrayEquals(expectedFile(FileType.Address), address.get());
+			assertTrue(simulatedCard.getReadBinaryCount() < 12);
+		} finally {
+			asyncBeIDCard.close();
+		}
+	}
+
+	@Test
+	public void testFileCache() throws Exception {
+		final ConstrainedBeIDCard simulatedCard = new ConstrainedBeIDCard(
+				PROFILE, 0x100, false);
+		final BeIDCard beIDCard = new BeIDCard(simulatedCard, new TestLogger())
+				.setFileCacheEnabled(true);
+
+		final byte[] photo = beIDCard.readFile(FileType.Photo);
+		final int readBinaryCount = simulatedCard.getReadBinaryCount();
+		photo[0] = 0;
+		assertArrayEquals(expectedFile(FileType.Photo),
+				beIDCard.readFile(FileType.Photo));
+		final InputStream inputStream = beIDCard.openFileStream(FileType.Photo);
+		try {
+			assertArrayEquals(expectedFile(FileType.Photo),
+					IOUtils.toByteArray(inputStream));
+		} finally {
+			inputStream.close();
+		}
+		assertArrayEquals(Arrays.copyOfRange(expectedFile(FileType.Photo), 10,
+				20), beIDCard.readFile(FileType.Photo, 10, 10));
+		assertEquals(readBinaryCount, simulatedCard.getReadBinaryCount());
+		assertEquals(3, beIDCard.getFileCache().getHits());
+		assertEquals(1, beIDCard.getFileCache().getMisses());
+
+		beIDCard.invalidateFileCache();
+		beIDCard.readFile(FileType.Photo);
+		assertEquals(2 * readBinaryCount, simulatedCard.getReadBinaryCount());
+	}
+
+	@Test
+	public void testCertificateCache() throws Exception {
+		final ConstrainedBeIDCard uncachedCard = new ConstrainedBeIDCard(
+				PROFILE, 0x100, false);
+		final List<X509Certificate> uncachedChain = new BeIDCard(uncachedCard,
+				new TestLogger()).getAuthenticationCertificateChain();
+
+		final CertificateCache certificateCache = new CertificateCache(8);
+		certificateCache
+				.addTrustedCertificate(expectedCertificate(FileType.RootCertificate));
+		final List<X509Certificate> firstChain = new BeIDCard(
+				new ConstrainedBeIDCard(PROFILE, 0x100, false),
+				new TestLogger()).setCertificateCache(certificateCache)
+				.getAuthenticationCertificateChain();
+		assertEquals(uncachedChain, firstChain);
+		assertEquals(2, certificateCache.size());
+		// the trusted root certificate
+		assertEquals(1, certificateCache.getHits());
+
+		final ConstrainedBeIDCard secondCard = new ConstrainedBeIDCard(PROFILE,
+				0x100, false);
+		final List<X509Certificate> secondChain = new BeIDCard(secondCard,
+				new TestLogger()).setCertificateCache(certificateCache)
+				.getAuthenticationCertificateChain();
+		assertEquals(uncachedChain, secondChain);
+		assertEquals(3, certificateCache.getHits());
+		// the authentication certificate is still read in full
+		assertTrue(secondCard.getReadBinaryCount() < uncachedCard
+				.getReadBinaryCount() * 2 / 3);
+	}
+
+	@Test
+	public void testCertificateCacheUntrusted() throws Exception {
+		final CertificateCache certificateCache = new CertificateCache(8);
+		new BeIDCard(new SimulatedBeIDCard(PROFILE), new TestLogger())
+				.setCertificateCache(certificateCache)
+				.getAuthenticationCertificateChain();
+		assertEquals(0, certificateCache.size());
+	}
+
+	@Test
+	public void testCertificateCacheForgedCertificate() throws Exception {
+		final X509Certificate caCertificate = expectedCertificate(FileType.CACertificate);
+		final KeyPairGenerator keyPairGenerator = KeyPairGenerator
+				.getInstance("RSA");
+		keyPairGenerator.initialize(1024);
+		final KeyPair keyPair = keyPairGenerator.generateKeyPair();
+		final X509v3CertificateBuilder certificateBuilder = new JcaX509v3CertificateBuilder(
+				caCertificate.getIssuerX500Principal(),
+				caCertificate.getSerialNumber(), caCertificate.getNotBefore(),
+				caCertificate.getNotAfter(),
+				caCertificate.getSubjectX500Principal(), keyPair.getPublic());
+		certificateBuilder.addExtension(Extension.basicConstraints, true,
+				new BasicConstraints(0));
+		final X509Certificate forgedCertificate = new JcaX509CertificateConverter()
+				.getCertificate(certificateBuilder
+						.build(new JcaContentSignerBuilder("SHA256withRSA")
+								.build(keyPair.getPrivate())));
+
+		final CertificateCache certificateCache = new CertificateCache(8);
+		certificateCache
+				.addTrustedCertificate(expectedCertificate(FileType.RootCertificate));
+		final SimulatedBeIDCard forgedCard = new SimulatedBeIDCard(PROFILE);
+		forgedCard.setFile(FileType.CACertificate.getFileId(),
+				forgedCertificate.getEncoded());
+
+		// the forged certificate is not cached
+		assertEquals(forgedCertificate, new BeIDCard(forgedCard,
+				new TestLogger()).setCertificateCache(certificateCache)
+				.getAuthenticationCertificateChain().get(1));
+		assertEquals(1, certificateCache.size());
+
+		// the genuine one is, and served for the forged one
+		new BeIDCard(new SimulatedBeIDCard(PROFILE), new TestLogger())
+				.setCertificateCache(certificateCache)
+				.getAuthenticationCertificateChain();
+		assertEquals(2, certificateCache.size());
+		assertEquals(caCertificate, new BeIDCard(forgedCard, new TestLogger())
+				.setCertificateCache(certificateCache)
+				.getAuthenticationCertificateChain().get(1));
+	}
+
+	@Test
+	public void testCertificateChainDecodedInBackground() throws Exception {
+		final CertificateFactory certificateFactory = CertificateFactory
+				.getInstance("X.509");
+		final List<X509Certificate> expectedChain = new ArrayList<X509Certificate>();
+		for (FileType fileType : new FileType[]{FileType.AuthentificationCertificate,
+				FileType.CACertificate, FileType.RootCertificate}) {
+			expectedChain.add((X509Certificate) certificateFactory
+					.generateCertificate(new ByteArrayInputStream(
+							expectedFile(fileType))));
+		}
+
+		final CertificateDecoder certificateDecoder = new CertificateDecoder(2);
+		try {
+			assertEquals(expectedChain, new BeIDCard(new SimulatedBeIDCard(
+					PROFILE), new TestLogger())
+					.setCertificateDecoder(certificateDecoder)
+					.setCertificateCache(null).getAuthenticationCertificateChain());
+		} finally {
+			certificateDecoder.shutdown();
+		}
+		assertEquals(expectedChain, new BeIDCard(
+				new SimulatedBeIDCard(PROFILE), new TestLogger())
+				.setCertificateDecoder(null).getAuthenticationCertificateChain());
+	}
+
+	@Test
+	public void testCertificateChainDecodingError() throws Exception {
+		final SimulatedBeIDCard simulatedCard = new SimulatedBeIDCard(PROFILE);
+		simulatedCard.setFile(FileType.CACertificate.getFileId(), new byte[]{
+				0x30, 0x03, 0x02, 0x01, 0x00});
+		try {
+			new BeIDCard(simulatedCard, new TestLogger()).setCertificateCache(
+					null).getAuthenticationCertificateChain();
+			fail();
+		} catch (final CertificateException cex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testFileStore() throws Exception {
+		final BeIDFileStore fileStore = new BeIDFileStore(
+				this.temporaryFolder.newFolder(), 0x100000,
+				24 * 60 * 60 * 1000, EnumSet.of(FileType.Identity,
+						FileType.Photo, FileType.AuthentificationCertificate,
+						FileType.CACertificate, FileType.RootCertificate));
+
+		final ConstrainedBeIDCard firstCard = new ConstrainedBeIDCard(PROFILE,
+				0x100, false);
+		firstCard.setCardData(cardData(1));
+		final BeIDCard firstBeIDCard = new BeIDCard(firstCard,
+				new TestLogger()).setFileCacheEnabled(true)
+				.setFileStore(fileStore).setCertificateCache(null);
+		firstBeIDCard.readFile(FileType.Identity);
+		firstBeIDCard.readFile(FileType.Photo);
+		final List<X509Certificate> chain = firstBeIDCard
+				.getAuthenticationCertificateChain();
+
+		// the same card, presented again
+		final ConstrainedBeIDCard secondCard = new ConstrainedBeIDCard(
+				PROFILE, 0x100, false);
+		secondCard.setCardData(cardData(1));
+		final BeIDCard secondBeIDCard = new BeIDCard(secondCard,
+				new TestLogger()).setFileCacheEnabled(true)
+				.setFileStore(fileStore).setCertificateCache(null);
+		assertArrayEquals(expectedFile(FileType.Photo),
+				secondBeIDCard.readFile(FileType.Photo));
+		assertArrayEquals(expectedFile(FileType.Identity),
+				secondBeIDCard.readFile(FileType.Identity));
+		assertEquals(chain,
+				secondBeIDCard.getAuthenticationCertificateChain());
+		// only the identity signature was read
+		assertEquals(1, secondCard.getReadBinaryCount());
+
+		// another card, reading everything
+		final ConstrainedBeIDCard otherCard = new ConstrainedBeIDCard(PROFILE,
+				0x100, false);
+		otherCard.setCardData(cardData(2));
+		new BeIDCard(otherCard, new TestLogger()).setFileCacheEnabled(true)
+				.setFileStore(fileStore).readFile(FileType.Photo);
+		assertTrue(otherCard.getReadBinaryCount() > 1);
+
+		// a reissued card, of which the stored files must not be used
+		final ConstrainedBeIDCard reissuedCard = new ConstrainedBeIDCard(
+				PROFILE, 0x100, false);
+		reissuedCard.setCardData(cardData(1));
+		final byte[] identitySignature = expectedFile(FileType.IdentitySignature);
+		identitySignature[0] ^= 0xff;
+		reissuedCard.setFile(FileType.IdentitySignature.getFileId(),
+				identitySignature);
+		new BeIDCard(reissuedCard, new TestLogger()).setFileCacheEnabled(true)
+				.setFileStore(fileStore).readFile(FileType.Photo);
+		assertTrue(reissuedCard.getReadBinaryCount() > 1);
+	}
+
+	@Test
+	public void testFileStoreCorrupt() throws Exception {
+		final File directory = this.temporaryFolder.newFolder();
+		final BeIDFileStore fileStore = new BeIDFileStore(directory, 0x100000,
+				24 * 60 * 60 * 1000);
+		fileStore.store(cardData(1), new EnumMap<FileType, byte[]>(Collections
+				.singletonMap(FileType.IdentitySignature,
+						expectedFile(FileType.IdentitySignature))));
+		final File file = directory.listFiles()[0];
+
+		// a length beyond the end of the file
+		final DataOutputStream outputStream = new DataOutputStream(
+				new FileOutputStream(file));
+		try {
+			outputStream.writeInt(0x42654944);
+			outputStream.writeUTF(FileType.IdentitySignature.name());
+			outputStream.writeInt(Integer.MAX_VALUE);
+		} finally {
+			outputStream.close();
+		}
+
+		try {
+			fileStore.load(cardData(1),
+					expectedFile(FileType.IdentitySignature));
+			fail();
+		} catch (final IOException ioex) {
+			// expected
+		}
+		assertFalse(file.exists());
+
+		// the card is read instead
+		final SimulatedBeIDCard simulatedCard = new SimulatedBeIDCard(PROFILE);
+		simulatedCard.setCardData(cardData(2));
+		fileStore.store(cardData(2), new EnumMap<FileType, byte[]>(Collections
+				.singletonMap(FileType.IdentitySignature,
+						expectedFile(FileType.IdentitySignature))));
+		final File secondFile = directory.listFiles()[0];
+		final byte[] negativeLength = new byte[]{0x42, 0x65, 0x49, 0x44, 0x00,
+				0x05, 'P', 'h', 'o', 't', 'o', (byte) 0xff, (byte) 0xff,
+				(byte) 0xff, (byte) 0xff};
+		FileUtils.writeByteArrayToFile(secondFile, negativeLength);
+		assertArrayEquals(expectedFile(FileType.Photo), new BeIDCard(
+				simulatedCard, new TestLogger()).setFileCacheEnabled(true)
+				.setFileStore(fileStore).readFile(FileType.Photo));
+	}
+
+	@Test
+	public void testFileStoreDefaultFileTypes() throws Exception {
+		final BeIDFileStore fileStore = new BeIDFileStore(
+				this.temporaryFolder.newFolder(), 0x100000, 24 * 60 * 60 * 1000);
+		assertFalse(fileStore.isStored(FileType.Identity));
+		assertFalse(fileStore.isStored(FileType.Photo));
+		assertTrue(fileStore.isStored(FileType.IdentitySignature));
+
+		final ConstrainedBeIDCard firstCard = new ConstrainedBeIDCard(PROFILE,
+				0x100, false);
+		firstCard.setCardData(cardData(1));
+		final BeIDCard firstBeIDCard = new BeIDCard(firstCard,
+				new TestLogger()).setFileCacheEnabled(true).setFileStore(
+				fileStore);
+		firstBeIDCard.readFile(FileType.Identity);
+		final List<X509Certificate> chain = firstBeIDCard
+				.getAuthenticationCertificateChain();
+
+		// the certificates are stored, the identity is not
+		final ConstrainedBeIDCard secondCard = new ConstrainedBeIDCard(
+				PROFILE, 0x100, false);
+		secondCard.setCardData(cardData(1));
+		final BeIDCard secondBeIDCard = new BeIDCard(secondCard,
+				new TestLogger()).setFileCacheEnabled(true).setFileStore(
+				fileStore);
+		assertEquals(chain,
+				secondBeIDCard.getAuthenticationCertificateChain());
+		final int readBinaryCount = secondCard.getReadBinaryCount();
+		assertArrayEquals(expectedFile(FileType.Identity),
+				secondBeIDCard.readFile(FileType.Identity));
+		assertTrue(secondCard.getReadBinaryCount() > readBinaryCount);
+	}
+
+	@Test
+	public void testFileStoreEviction() throws Exception {
+		final File directory = this.temporaryFolder.newFolder();
+		final BeIDFileStore fileStore = new BeIDFileStore(directory, 0x4000,
+				24 * 60 * 60 * 1000, EnumSet.of(FileType.Identity,
+						FileType.Photo));
+		for (int serial = 1; serial <= 4; serial++) {
+			final SimulatedBeIDCard simulatedCard = new SimulatedBeIDCard(
+					PROFILE);
+			simulatedCard.setCardData(cardData(serial));
+			new BeIDCard(simulatedCard, new TestLogger())
+					.setFileCacheEnabled(true).setFileStore(fileStore)
+					.readFiles(EnumSet.of(FileType.Identity, FileType.Photo));
+		}
+		// a little over 3 KB per card
+		assertEquals(4, directory.list().length);
+
+		new BeIDFileStore(directory, 0x2000, 24 * 60 * 60 * 1000).store(
+				cardData(5), new EnumMap<FileType, byte[]>(Collections
+						.singletonMap(FileType.IdentitySignature, new byte[1])));
+		assertEquals(3, directory.list().length);
+
+		// the maximum size holds while the store keeps being used
+		for (int serial = 6; serial <= 12; serial++) {
+			final SimulatedBeIDCard simulatedCard = new SimulatedBeIDCard(
+					PROFILE);
+			simulatedCard.setCardData(cardData(serial));
+			new BeIDCard(simulatedCard, new TestLogger())
+					.setFileCacheEnabled(true).setFileStore(fileStore)
+					.readFiles(EnumSet.of(FileType.Identity, FileType.Photo));
+			long size = 0;
+			for (File file : directory.listFiles()) {
+				size += file.length();
+			}
+			assertTrue(size <= 0x4000);
+		}
+
+		// cards not seen for too long are evicted when another is stored
+		final long twoDaysAgo = System.currentTimeMillis() - 2 * 24 * 60 * 60
+				* 1000;
+		for (File file : directory.listFiles()) {
+			file.setLastModified(twoDaysAgo);
+		}
+		fileStore.store(cardData(13), new EnumMap<FileType, byte[]>(
+				Collections.singletonMap(FileType.IdentitySignature,
+						new byte[1])));
+		assertEquals(1, directory.list().length);
+	}
+
+	@Test
+	public void testSelectAppletRemembered() throws Exception {
+		final AppletBeIDCard firstCard = new AppletBeIDCard();
+		new BeIDCard(firstCard, new TestLogger()).selectApplet();
+		// BELPIC AID, then applet AID
+		assertEquals(2, firstCard.getSelectAppletCount());
+		assertEquals(Selection.APPLET_AID,
+				AppletSelections.getSelection(firstCard.getATR()));
+
+		final AppletBeIDCard secondCard = new AppletBeIDCard();
+		final BeIDCard secondBeIDCard = new BeIDCard(secondCard,
+				new TestLogger());
+		secondBeIDCard.selectApplet();
+		assertEquals(1, secondCard.getSelectAppletCount());
+		secondBeIDCard.selectApplet();
+		assertEquals(1, secondCard.getSelectAppletCount());
+
+		// a selected file proves the applet to be active
+		final AppletBeIDCard thirdCard = new AppletBeIDCard();
+		final BeIDCard thirdBeIDCard = new BeIDCard(thirdCard,
+				new TestLogger());
+		thirdBeIDCard.beginExclusive();
+		try {
+			thirdBeIDCard.readFile(FileType.Identity);
+			thirdBeIDCard.selectApplet();
+			assertEquals(0, thirdCard.getSelectAppletCount());
+		} finally {
+			thirdBeIDCard.endExclusive();
+		}
+
+		// until another process could have deselected it
+		thirdBeIDCard.selectApplet();
+		assertEquals(1, thirdCard.getSelectAppletCount());
+	}
+
+	@Test
+	public void testSelectAppletActiveAfterReset() throws Exception {
+		final AppletBeIDCard firstCard = new AppletBeIDCard();
+		new BeIDCard(firstCard, new TestLogger()).readFile(FileType.Identity);
+		assertEquals(Selection.ACTIVE_AFTER_RESET,
+				AppletSelections.getSelection(firstCard.getATR()));
+
+		final AppletBeIDCard secondCard = new AppletBeIDCard();
+		final BeIDCard secondBeIDCard = new BeIDCard(secondCard,
+				new TestLogger());
+		secondBeIDCard.selectApplet();
+		assertEquals(0, secondCard.getSelectAppletCount());
+		assertArrayEquals(expectedFile(FileType.Identity),
+				secondBeIDCard.readFile(FileType.Identity));
+
+		// not inferred once another process could have used the card
+		AppletSelections.clear();
+		final BeIDCard thirdBeIDCard = new BeIDCard(new AppletBeIDCard(),
+				new TestLogger());
+		thirdBeIDCard.beginExclusive();
+		thirdBeIDCard.endExclusive();
+		thirdBeIDCard.readFile(FileType.Identity);
+		assertNull(AppletSelections.getSelection(firstCard.getATR()));
+	}
+
+	@Test
+	public void testCardSession() throws Exception {
+		final ExclusiveBeIDCard simulatedCard = new ExclusiveBeIDCard();
+		final BeIDCard beIDCard = new BeIDCard(simulatedCard, new TestLogger());
+
+		final CardSession session = beIDCard.openSession();
+		try {
+			beIDCard.readFile(FileType.Identity);
+			beIDCard.readFile(FileType.Address);
+			final CardSession nestedSession = beIDCard.openSession();
+			try {
+				beIDCard.getAuthenticationCertificateChain();
+			} finally {
+				nestedSession.close();
+			}
+			assertTrue(session.isOpen());
+			beIDCard.readFile(FileType.Photo);
+		} finally {
+			session.close();
+		}
+		session.close();
+		assertEquals(1, simulatedCard.getBeginExclusiveCount());
+		assertEquals(1, simulatedCard.getEndExclusiveCount());
+
+		// without a session, each operation has a transaction of its own
+		beIDCard.readFile(FileType.Identity);
+		beIDCard.readFile(FileType.Address);
+		assertEquals(3, simulatedCard.getBeginExclusiveCount());
+		assertEquals(3, simulatedCard.getEndExclusiveCount());
+	}
+
+	@Test
+	public void testCardSessionMaximumHoldTime() throws Exception {
+		final ExclusiveBeIDCard simulatedCard = new ExclusiveBeIDCard();
+		final BeIDCard beIDCard = new BeIDCard(simulatedCard, new TestLogger());
+
+		final CardSession session = beIDCard.openSession(200,
+				TimeUnit.MILLISECONDS);
+		try {
+			beIDCard.readFile(FileType.Identity);
+			assertEquals(0, simulatedCard.getEndExclusiveCount());
+			Thread.sleep(300);
+			// released once this one is done
+			beIDCard.readFile(FileType.Address);
+			assertEquals(1, simulatedCard.getBeginExclusiveCount());
+			assertEquals(1, simulatedCard.getEndExclusiveCount());
+			// and acquired again by the next one
+			beIDCard.readFile(FileType.Photo);
+			assertEquals(2, simulatedCard.getBeginExclusiveCount());
+		} finally {
+			session.close();
+		}
+		assertEquals(2, simulatedCard.getBeginExclusiveCount());
+		assertEquals(2, simulatedCard.getEndExclusiveCount());
+	}
+
+	@Test
+	public void testCardSessionAcquireAgainFails() throws Exception {
+		final ExclusiveBeIDCard simulatedCard = new ExclusiveBeIDCard();
+		final BeIDCard beIDCard = new BeIDCard(simulatedCard, new TestLogger());
+
+		final CardSession session = beIDCard.openSession(1,
+				TimeUnit.MILLISECONDS);
+		try {
+			Thread.sleep(10);
+			beIDCard.readFile(FileType.Identity);
+			assertEquals(1, simulatedCard.getEndExclusiveCount());
+			simulatedCard.failBeginExclusive(true);
+			try {
+				beIDCard.readFile(FileType.Address);
+				fail();
+			} catch (final CardException cex) {
+				// expected
+			}
+		} finally {
+			session.close();
+		}
+		assertEquals(1, simulatedCard.getEndExclusiveCount());
+
+		// the card is not left held by this thread
+		simulatedCard.failBeginExclusive(false);
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			assertArrayEquals(expectedFile(FileType.Address), executor.submit(
+					new Callable<byte[]>() {
+						@Override
+						public byte[] call() throws Exception {
+							return beIDCard.readFile(FileType.Address);
+						}
+					}).get(TIMEOUT, TimeUnit.MILLISECONDS));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static byte[] cardData(final int serial) {
+		final byte[] cardData = new byte[28];
+		cardData[15] = (byte) serial;
+		return cardData;
+	}
+
+	private static X509Certificate expectedCertificate(final FileType fileType)
+			throws Exception {
+		return (X509Certificate) CertificateFactory.getInstance("X.509")
+				.generateCertificate(
+						new ByteArrayInputStream(expectedFile(fileType)));
+	}
+
+	private static byte[] expectedFile(final FileType fileType)
+			throws Exception {
+		final InputStream inputStream = SimulatedBeIDCardTest.class
+				.getResourceAsStream("/" + PROFILE + "_" + fileType + ".tlv");
+		try {
+			return IOUtils.toByteArray(inputStream);
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	/*
+	 * A simulated card that counts its READ BINARY commands, returns at most
+	 * maximumLength bytes for each of them, and optionally refuses extended
+	 * length commands altogether.
+	 */
+	@Test
+	public void testDeadline() throws Exception {
+		final SlowBeIDCard simulatedCard = new SlowBeIDCard(PROFILE);
+		final BeIDCard beIDCard = new BeIDCard(simulatedCard, new TestLogger());
+		beIDCard.setDeadline(new Deadline(20, TimeUnit.MILLISECONDS));
+		try {
+			beIDCard.readFile(FileType.Identity);
+			beIDCard.readFile(FileType.Address);
+			fail();
+		} catch (final CardTimeoutException ctex) {
+			assertFalse(ctex.isCancelled());
+		}
+		final int readBinaryCount = simulatedCard.getReadBinaryCount();
+		try {
+			beIDCard.readFile(FileType.Photo);
+			fail();
+		} catch (final CardTimeoutException ctex) {
+			// expected
+		}
+		assertEquals(readBinaryCount, simulatedCard.getReadBinaryCount());
+
+		// the card was released
+		beIDCard.setDeadline(null);
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			assertArrayEquals(expectedFile(FileType.Address), executor.submit(
+					new Callable<byte[]>() {
+						@Override
+						public byte[] call() throws Exception {
+							return beIDCard.readFile(FileType.Address);
+						}
+					}).get(TIMEOUT, TimeUnit.MILLISECONDS));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testDeadlineCancelled() throws Exception {
+		final SlowBeIDCard simulatedCard = new SlowBeIDCard(PROFILE);
+		final BeIDCard beIDCard = new BeIDCard(simulatedCard, new TestLogger());
+		final Deadline deadline = new Deadline();
+		beIDCard.setDeadline(deadline);
+		deadline.cancel();
+		try {
+			beIDCard.readFile(FileType.Identity);
+			fail();
+		} catch (final CardTimeoutException ctex) {
+			assertTrue(ctex.isCancelled());
+		}
+		assertEquals(0, simulatedCard.getReadBinaryCount());
+	}
+
+	@Test
+	public void testDeadlineWhileWaitingForCard() throws Exception {
+		final BeIDCard beIDCard = new BeIDCard(new SimulatedBeIDCard(PROFILE),
+				new TestLogger());
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		beIDCard.beginExclusive();
+		try {
+			executor.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					beIDCard.setDeadline(new Deadline(100,
+							TimeUnit.MILLISECONDS));
+					return beIDCard.readFile(FileType.Identity);
+				}
+			}).get(TIMEOUT, TimeUnit.MILLISECONDS);
+			fail();
+		} catch (final ExecutionException eex) {
+			assertTrue(eex.getCause() instanceof CardTimeoutException);
+		} finally {
+			beIDCard.endExclusive();
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testDeadlinePerThread() throws Exception {
+		final BeIDCard beIDCard = new BeIDCard(new SimulatedBeIDCard(PROFILE),
+				new TestLogger());
+		final Deadline deadline = new Deadline();
+		deadline.cancel();
+		beIDCard.setDeadline(deadline);
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		final AsyncBeIDCard asyncBeIDCard = new AsyncBeIDCard(beIDCard);
+		try {
+			// other threads keep their own deadline
+			assertArrayEquals(expectedFile(FileType.Address), executor.submit(
+					new Callable<byte[]>() {
+						@Override
+						public byte[] call() throws Exception {
+							assertNull(beIDCard.getDeadline());
+							return beIDCard.readFile(FileType.Address);
+						}
+					}).get(TIMEOUT, TimeUnit.MILLISECONDS));
+
+			// an asynchronous operation runs with the deadline it was
+			// submitted with
+			final Future<byte[]> cancelledRead = asyncBeIDCard
+					.readFile(FileType.Address);
+			beIDCard.setDeadline(null);
+			final Future<byte[]> read = asyncBeIDCard
+					.readFile(FileType.Address);
+			try {
+				cancelledRead.get(TIMEOUT, TimeUnit.MILLISECONDS);
+				fail();
+			} catch (final ExecutionException eex) {
+				assertTrue(eex.getCause() instanceof CardTimeoutException);
+			}
+			assertArrayEquals(expectedFile(FileType.Address),
+					read.get(TIMEOUT, TimeUnit.MILLISECONDS));
+		} finally {
+			asyncBeIDCard.close();
+			executor.shutdown();
+		}
+	}
+
+	private static final class ConstrainedBeIDCard extends SimulatedBeIDCard {
+		private final int maximumLength;
+		private final boolean refuseExtendedLength;
+		private int readBinaryCount;
+
+		public ConstrainedBeIDCard(final String profile,
+				final int maximumLength, final boolean refuseExtendedLength) {
+			super(profile);
+			this.maximumLength = maximumLength;
+			this.refuseExtendedLength = refuseExtendedLength;
+		}
+
+		public int getReadBinaryCount() {
+			return this.readBinaryCount;
+		}
+
+		public void resetReadBinaryCount() {
+			this.readBinaryCount = 0;
+		}
+
+		@Override
+		protected ResponseAPDU readBinary(final int offset, final int length) {
+			this.readBinaryCount++;
+			if (this.refuseExtendedLength && length > 0x100) {
+				return new ResponseAPDU(new byte[]{0x67, 0x00});
+			}
+			return super.readBinary(offset,
+					Math.min(length, this.maximumLength));
+		}
+	}
+
+	/*
+	 * A simulated card on which the applet can only be selected by its
+	 * applet AID, counting the SELECT commands by AID.
+	 */
+	private static final class AppletBeIDCard extends SimulatedBeIDCard {
+		private static final byte[] APPLET_AID = new byte[]{(byte) 0xA0,
+				0x00, 0x00, 0x00, 0x30, 0x29, 0x05, 0x70, 0x00, (byte) 0xAD,
+				0x13, 0x10, 0x01, 0x01, (byte) 0xFF};
+		private int selectAppletCount;
+
+		public AppletBeIDCard() {
+			super(PROFILE);
+		}
+
+		public int getSelectAppletCount() {
+			return this.selectAppletCount;
+		}
+
+		@Override
+		protected ResponseAPDU transmit(final CommandAPDU apdu)
+				throws CardException {
+			if (apdu.getCLA() == 0x00 && apdu.getINS() == 0xA4
+					&& apdu.getP1() == 0x04) {
+				this.selectAppletCount++;
+				return Arrays.equals(APPLET_AID, apdu.getData())
+						? OK
+						: FILE_NOT_FOUND;
+			}
+			return super.transmit(apdu);
+		}
+	}
+
+	/*
+	 * A simulated card counting the exclusive transactions.
+	 */
+	private static final class ExclusiveBeIDCard extends SimulatedBeIDCard {
+		private int beginExclusiveCount;
+		private int endExclusiveCount;
+		private volatile boolean failBeginExclusive;
+
+		public ExclusiveBeIDCard() {
+			super(PROFILE);
+		}
+
+		public int getBeginExclusiveCount() {
+			return this.beginExclusiveCount;
+		}
+
+		public int getEndExclusiveCount() {
+			return this.endExclusiveCount;
+		}
+
+		public void failBeginExclusive(final boolean failBeginExclusive) {
+			this.failBeginExclusive = failBeginExclusive;
+		}
+
+		@Override
+		public void beginExclusive() throws CardException {
+			if (this.failBeginExclusive) {
+				throw new CardException("held by another process");
+			}
+			this.beginExclusiveCount++;
+		}
+
+		@Override
+		public void endExclusive() throws CardException {
+			this.endExclusiveCount++;
+		}
+	}
+
+	private static final class TestPINUI extends BeIDCardUIAdapter {
+		private int pinRequests;
+		private int cancelAfter = Integer.MAX_VALUE;
+
+		public int getPINRequests() {
+			return this.pinRequests;
+		}
+
+		public void cancelAfter(final int pinRequests) {
+			this.cancelAfter = pinRequests;
+		}
+
+		@Override
+		public char[] obtainPIN(final int triesLeft, final PINPurpose type,
+				final String applicationName) throws UserCancelledException {
+			if (++this.pinRequests > this.cancelAfter) {
+				throw new UserCancelledException();
+			}
+			return "1234".toCharArray();
+		}
+	}
+
+	/*
+	 * A simulated card that takes its time to answer READ BINARY commands.
+	 */
+	private static final class SlowBeIDCard extends SimulatedBeIDCard {
+		private final CountDownLatch firstRead;
+		private volatile int readBinaryCount;
+
+		public SlowBeIDCard(final String profile) {
+			super(profile);
+			this.firstRead = new CountDownLatch(1);
+		}
+
+		public void awaitFirstRead() throws InterruptedException {
+			this.firstRead.await();
+		}
+
+		public int getReadBinaryCount() {
+			return this.readBinaryCount;
+		}
+
+		@Override
+		protected ResponseAPDU readBinary(final int offset, final int length) {
+			this.readBinaryCount++;
+			this.firstRead.countDown();
+			try {
+				Thread.sleep(50);
+			} catch (final InterruptedException e) {
+				// like a real card, finish the command at hand
+				Thread.currentThread().interrupt();
+			}
+			return super.readBinary(offset, length);
+		}
+	}
+
+	/*
+	 * A simulated card that fails its first transmissions with a sharing
+	 * violation.
+	 */
+	private static final class SharingViolationBeIDCard extends
+			SimulatedBeIDCard {
+		private int sharingViolations;
+
+		public SharingViolationBeIDCard(final String profile,
+				final int sharingViolations) {
+			super(profile);
+			this.sharingViolations = sharingViolations;
+		}
+
+		@Override
+		protected ResponseAPDU transmit(final CommandAPDU apdu)
+				throws CardException {
+			if (this.sharingViolations > 0) {
+				this.sharingViolations--;
+				throw new CardException("transmit failed",
+						new RuntimeException("SCARD_E_SHARING_VIOLATION"));
+			}
+			return super.transmit(apdu);
+		}
+	}
+
+	/*
+	 * A simulated card that returns its READ BINARY responses in chunks,
+	 * using the T=0 0x61 status word and GET RESPONSE.
+	 */
+	private static final class ChainingBeIDCard extends SimulatedBeIDCard {
+		private final int chunkSize;
+		private byte[] pending;
+		private int pendingOffset;
+
+		public ChainingBeIDCard(final String profile, final int chunkSize) {
+			super(profile);
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		protected ResponseAPDU transmit(final CommandAPDU apdu)
+				throws CardException {
+			if (apdu.getCLA() == 0x00 && apdu.getINS() == 0xC0) {
+				return nextChunk();
+			}
+			final ResponseAPDU responseApdu = super.transmit(apdu);
+			if (apdu.getINS() != 0xB0 || responseApdu.getSW() != 0x9000) {
+				return responseApdu;
+			}
+			this.pending = responseApdu.getData();
+			this.pendingOffset = 0;
+			return nextChunk();
+		}
+
+		private ResponseAPDU nextChunk() {
+			final int remaining = this.pending.length - this.pendingOffset;
+			final int length = Math.min(remaining, this.chunkSize);
+			final byte[] response = new byte[length + 2];
+			System.arraycopy(this.pending, this.pendingOffset, response, 0,
+					length);
+			this.pendingOffset += length;
+			final int left = this.pending.length - this.pendingOffset;
+			if (left > 0) {
+				response[length] = 0x61;
+				response[length + 1] = (byte) Math.min(left, this.chunkSize);
+			} else {
+				response[length] = (byte) 0x90;
+				response[length + 1] = 0x00;
+			}
+			return new ResponseAPDU(response);
+		}
+	}
+}
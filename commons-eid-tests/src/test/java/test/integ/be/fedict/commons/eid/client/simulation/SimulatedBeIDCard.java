@@ -18,13 +18,19 @@
 
 package test.integ.be.fedict.commons.eid.client.simulation;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import javax.smartcardio.ATR;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
 import org.apache.commons.io.IOUtils;
 import be.fedict.commons.eid.client.FileType;
 
 public class SimulatedBeIDCard extends SimulatedCard {
+	private byte[] cardData;
+
 	public SimulatedBeIDCard(final String profile) {
 		super(null);
 
@@ -63,7 +69,30 @@ public class SimulatedBeIDCard extends SimulatedCard {
 			final String profile) throws IOException {
 		final InputStream idInputStream = SimulatedBeIDCard.class
 				.getResourceAsStream("/" + profile + "_" + type + ".tlv");
+		if (idInputStream == null) {
+			throw new FileNotFoundException(profile + "_" + type + ".tlv");
+		}
 		setFile(type.getFileId(), IOUtils.toByteArray(idInputStream));
 		return this;
 	}
+
+	public SimulatedBeIDCard setCardData(final byte[] cardData) {
+		this.cardData = cardData;
+		return this;
+	}
+
+	@Override
+	protected ResponseAPDU transmit(final CommandAPDU apdu)
+			throws CardException {
+		// "GET CARD DATA"
+		if (apdu.getCLA() == 0x80 && apdu.getINS() == 0xE4
+				&& this.cardData != null) {
+			final byte[] response = new byte[this.cardData.length + 2];
+			System.arraycopy(this.cardData, 0, response, 0,
+					this.cardData.length);
+			response[this.cardData.length] = (byte) 0x90;
+			return new ResponseAPDU(response);
+		}
+		return super.transmit(apdu);
+	}
 }
@@ -53,19 +53,23 @@ public class SimulatedCard extends Card {
 		this.atr = atr;
 	}
 
+	public void setProtocol(final String protocol) {
+		this.protocol = protocol;
+	}
+
 	@Override
 	public void beginExclusive() throws CardException {
-		throw new RuntimeException("Not Implemented In SimulatedCard");
+		// a simulated card has no other processes to compete with
 	}
 
 	@Override
 	public void disconnect(final boolean arg0) throws CardException {
-		throw new RuntimeException("Not Implemented In SimulatedCard");
+		// nothing to release
 	}
 
 	@Override
 	public void endExclusive() throws CardException {
-		throw new RuntimeException("Not Implemented In SimulatedCard");
+		// a simulated card has no other processes to compete with
 	}
 
 	@Override
@@ -20,8 +20,10 @@ package test.integ.be.fedict.commons.eid.client.simulation;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import javax.smartcardio.CardException;
 import javax.smartcardio.CardTerminal;
@@ -29,16 +31,39 @@ import javax.smartcardio.CardTerminals;
 
 public class SimulatedCardTerminals extends CardTerminals {
 	private final Set<SimulatedCardTerminal> terminals;
+	// card presence as of the previous waitForChange, null before the first
+	private Map<CardTerminal, Boolean> cardsPresent;
+	private final List<CardTerminal> cardsInserted, cardsRemoved;
+	private int waitForChangeCount;
+	private boolean terminalChangesReported = true;
 
 	public SimulatedCardTerminals() {
 		this.terminals = new HashSet<SimulatedCardTerminal>();
+		this.cardsInserted = new ArrayList<CardTerminal>();
+		this.cardsRemoved = new ArrayList<CardTerminal>();
+	}
+
+	/*
+	 * Whether attaching or detaching a terminal wakes up waitForChange(),
+	 * which PCSC does not always do.
+	 */
+	public synchronized SimulatedCardTerminals setTerminalChangesReported(
+			final boolean terminalChangesReported) {
+		this.terminalChangesReported = terminalChangesReported;
+		return this;
+	}
+
+	public synchronized int getWaitForChangeCount() {
+		return this.waitForChangeCount;
 	}
 
 	public synchronized SimulatedCardTerminals attachCardTerminal(
 			final SimulatedCardTerminal terminal) {
 		terminal.setTerminals(this);
 		this.terminals.add(terminal);
-		notifyAll();
+		if (this.terminalChangesReported) {
+			notifyAll();
+		}
 		return this;
 	}
 
@@ -46,7 +71,9 @@ public class SimulatedCardTerminals extends CardTerminals {
 			final SimulatedCardTerminal terminal) {
 		terminal.setTerminals(null);
 		this.terminals.remove(terminal);
-		notifyAll();
+		if (this.terminalChangesReported) {
+			notifyAll();
+		}
 		return this;
 	}
 
@@ -84,21 +111,68 @@ public class SimulatedCardTerminals extends CardTerminals {
 				return Collections.unmodifiableList(absentList);
 			}
 
+			case CARD_INSERTION :
+				return Collections
+						.unmodifiableList(new ArrayList<CardTerminal>(
+								this.cardsInserted));
+
+			case CARD_REMOVAL :
+				return Collections
+						.unmodifiableList(new ArrayList<CardTerminal>(
+								this.cardsRemoved));
+
 			default :
-				throw new CardException(
-						"list with CARD_INSERTION or CARD_REMOVAL not supported in SimulatedCardTerminals");
+				throw new CardException("unknown state " + state);
 
 		}
 	}
 
+	/*
+	 * Like PCSC, returns straight away if cards were inserted or removed since
+	 * the previous call, after which list(CARD_INSERTION) and
+	 * list(CARD_REMOVAL) report those terminals. Any attach, detach, insert or
+	 * remove wakes up the waiting thread.
+	 */
 	@Override
 	public synchronized boolean waitForChange(final long timeout)
 			throws CardException {
+		this.waitForChangeCount++;
+		if (null == this.cardsPresent) {
+			this.cardsPresent = getCardsPresent();
+		} else if (updateCardChanges()) {
+			return true;
+		}
 		try {
 			wait(timeout);
 		} catch (final InterruptedException iex) {
 			return false;
 		}
+		updateCardChanges();
 		return true;
 	}
+
+	private boolean updateCardChanges() throws CardException {
+		final Map<CardTerminal, Boolean> currentCardsPresent = getCardsPresent();
+		this.cardsInserted.clear();
+		this.cardsRemoved.clear();
+		for (Map.Entry<CardTerminal, Boolean> entry : currentCardsPresent
+				.entrySet()) {
+			final Boolean previous = this.cardsPresent.get(entry.getKey());
+			if (entry.getValue() && !Boolean.TRUE.equals(previous)) {
+				this.cardsInserted.add(entry.getKey());
+			} else if (!entry.getValue() && Boolean.TRUE.equals(previous)) {
+				this.cardsRemoved.add(entry.getKey());
+			}
+		}
+		this.cardsPresent = currentCardsPresent;
+		return !this.cardsInserted.isEmpty() || !this.cardsRemoved.isEmpty();
+	}
+
+	private Map<CardTerminal, Boolean> getCardsPresent() throws CardException {
+		final Map<CardTerminal, Boolean> currentCardsPresent = new HashMap<CardTerminal, Boolean>();
+		for (CardTerminal terminal : this.terminals) {
+			currentCardsPresent.put(terminal, terminal.isCardPresent());
+		}
+		return currentCardsPresent;
+	}
 }
\ No newline at end of file
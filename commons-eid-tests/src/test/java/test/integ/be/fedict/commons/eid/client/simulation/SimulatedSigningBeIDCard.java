@@ -0,0 +1,133 @@
+/*
+ * Commons eID Project.
+ * Copyright (C) 2016 e-Contract.be BVBA.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License version
+ * 3.0 as published by the Free Software Foundation.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, see 
+ * http://www.gnu.org/licenses/.
+ */
+
+
+package test.integ.be.fedict.commons.eid.client.simulation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * A simulated eID card that also accepts the security related commands:
+ * MSE SET, COMPUTE DIGITAL SIGNATURE, VERIFY PIN and LOGOFF. It counts the
+ * commands it receives, by instruction byte, and does not report any CCID
+ * features.
+ */
+public class SimulatedSigningBeIDCard extends SimulatedBeIDCard {
+	public static final int INS_MSE_SET = 0x22;
+	public static final int INS_COMPUTE_DIGITAL_SIGNATURE = 0x2A;
+	public static final int INS_VERIFY_PIN = 0x20;
+	public static final int INS_LOGOFF = 0xE6;
+
+	protected static final ResponseAPDU SECURITY_STATUS_NOT_SATISFIED = new ResponseAPDU(
+			new byte[]{0x69, (byte) 0x82});
+	protected static final ResponseAPDU CONDITIONS_OF_USE_NOT_SATISFIED = new ResponseAPDU(
+			new byte[]{0x69, (byte) 0x85});
+
+	private final Map<Integer, Integer> commandCounts;
+	private int selectedKeyId;
+	private boolean pinVerified;
+	private boolean nonRepudiationPinVerified;
+
+	public SimulatedSigningBeIDCard(final String profile) {
+		super(profile);
+		this.commandCounts = new HashMap<Integer, Integer>();
+		this.selectedKeyId = -1;
+	}
+
+	public synchronized int getCommandCount(final int ins) {
+		final Integer count = this.commandCounts.get(ins);
+		return null == count ? 0 : count;
+	}
+
+	public synchronized void resetCommandCounts() {
+		this.commandCounts.clear();
+	}
+
+	public synchronized boolean isPinVerified() {
+		return this.pinVerified;
+	}
+
+	/*
+	 * as done by another process using the card
+	 */
+	public synchronized void selectKey(final int keyId) {
+		this.selectedKeyId = keyId;
+	}
+
+	@Override
+	public byte[] transmitControlCommand(final int controlCode,
+			final byte[] command) throws CardException {
+		// no CCID features
+		return new byte[0];
+	}
+
+	@Override
+	protected synchronized ResponseAPDU transmit(final CommandAPDU apdu)
+			throws CardException {
+		final Integer count = this.commandCounts.get(apdu.getINS());
+		this.commandCounts.put(apdu.getINS(), null == count ? 1 : count + 1);
+
+		if (apdu.getCLA() == 0x00 && apdu.getINS() == INS_MSE_SET) {
+			final byte[] data = apdu.getData();
+			this.selectedKeyId = data[data.length - 1] & 0xff;
+			return OK;
+		}
+		if (apdu.getCLA() == 0x00 && apdu.getINS() == INS_VERIFY_PIN) {
+			this.pinVerified = true;
+			this.nonRepudiationPinVerified = true;
+			return OK;
+		}
+		if (apdu.getCLA() == 0x80 && apdu.getINS() == INS_LOGOFF) {
+			this.pinVerified = false;
+			return OK;
+		}
+		if (apdu.getCLA() == 0x00
+				&& apdu.getINS() == INS_COMPUTE_DIGITAL_SIGNATURE) {
+			return computeDigitalSignature(apdu.getData());
+		}
+		return super.transmit(apdu);
+	}
+
+	private ResponseAPDU computeDigitalSignature(final byte[] digestInfo) {
+		if (-1 == this.selectedKeyId) {
+			return CONDITIONS_OF_USE_NOT_SATISFIED;
+		}
+		if (0x83 == this.selectedKeyId) {
+			// the non-repudiation key requires a PIN for every signature
+			if (!this.nonRepudiationPinVerified) {
+				return SECURITY_STATUS_NOT_SATISFIED;
+			}
+			this.nonRepudiationPinVerified = false;
+		} else if (!this.pinVerified) {
+			return SECURITY_STATUS_NOT_SATISFIED;
+		}
+
+		// not a real signature: key id, followed by the digest info
+		final byte[] response = new byte[1 + digestInfo.length + 2];
+		response[0] = (byte) this.selectedKeyId;
+		System.arraycopy(digestInfo, 0, response, 1, digestInfo.length);
+		response[response.length - 2] = (byte) 0x90;
+		response[response.length - 1] = 0x00;
+		return new ResponseAPDU(response);
+	}
+}